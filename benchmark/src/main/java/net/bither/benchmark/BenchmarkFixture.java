@@ -0,0 +1,191 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.ApplicationDataDirectoryLocator;
+import net.bither.ApplicationInstanceManager;
+import net.bither.Bither;
+import net.bither.bitherj.core.AbstractHD;
+import net.bither.bitherj.core.HDAccount;
+import net.bither.db.AddressDBHelper;
+import net.bither.db.BlockProvider;
+import net.bither.db.DesktopDbImpl;
+import net.bither.db.HDAccountProvider;
+import net.bither.db.TxDBHelper;
+import net.bither.preference.UserPreference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A tx db of a given size for one benchmark trial. The first trial of a size
+ * and seed generates it with a ChainWriter and keeps a copy under
+ * fixtures, later trials start from a copy of that. Everything lives under the
+ * working directory, which the jmh task points at build/benchmark.
+ *
+ * The providers are singletons bound to ApplicationInstanceManager.txDBHelper
+ * when first used, so there is one fixture per JVM; jmh forks one per trial.
+ */
+public class BenchmarkFixture {
+
+    public static final long DEFAULT_SEED = 1;
+    public static final int HD_ADDRESS_COUNT = 2000;
+
+    private static final String DB_NAME = "bither.db";
+    private static final String MARKER_NAME = "fixture.properties";
+    private static final String TX_DB_VERSION = "tx_db_version";
+
+    private final int txCount;
+    private final long seed;
+    private final File workDir;
+    private final SyntheticChain chain;
+
+    public static int addressCountFor(int txCount) {
+        return Math.max(100, Math.min(20000, txCount / 20));
+    }
+
+    public BenchmarkFixture(int txCount, long seed) {
+        this.txCount = txCount;
+        this.seed = seed;
+        this.workDir = new File("work", "tx-" + txCount + "-" + seed + "-" + System.nanoTime());
+        this.chain = new SyntheticChain(seed, addressCountFor(txCount), HD_ADDRESS_COUNT);
+    }
+
+    public SyntheticChain getChain() {
+        return chain;
+    }
+
+    public List<String> getAddresses() {
+        return chain.getAddresses();
+    }
+
+    public List<String> getHdAddresses() {
+        return chain.getHdAddresses();
+    }
+
+    public void open() throws IOException, SQLException {
+        if (Bither.getApplicationDataDirectoryLocator() == null) {
+            // the preferences are read from the data directory, the jmh task runs in portable mode
+            Bither.setApplicationDataDirectoryLocator(new ApplicationDataDirectoryLocator());
+        }
+        File fixtureDir = new File("fixtures", "tx-" + txCount + "-" + seed);
+        File marker = new File(fixtureDir, MARKER_NAME);
+        workDir.mkdirs();
+        boolean generate = !marker.exists();
+        if (generate) {
+            // a fresh db, let the helper create the tables
+            UserPreference.getInstance().setTxDbVersion(0);
+        } else {
+            copy(new File(fixtureDir, DB_NAME), new File(workDir, DB_NAME));
+            UserPreference.getInstance().setTxDbVersion(Integer.parseInt(
+                    load(marker).getProperty(TX_DB_VERSION)));
+        }
+        UserPreference.getInstance().setAddressDbVersion(0);
+
+        ApplicationInstanceManager.txDBHelper = new TxDBHelper(workDir.getPath());
+        ApplicationInstanceManager.txDBHelper.initDb();
+        ApplicationInstanceManager.addressDBHelper = new AddressDBHelper(workDir.getPath());
+        ApplicationInstanceManager.addressDBHelper.initDb();
+        new DesktopDbImpl().construct();
+
+        if (generate) {
+            generate();
+            // closing the last connection checkpoints the wal into the db file
+            ApplicationInstanceManager.txDBHelper.close();
+            fixtureDir.mkdirs();
+            copy(new File(workDir, DB_NAME), new File(fixtureDir, DB_NAME));
+            ApplicationInstanceManager.txDBHelper.initDb();
+            Properties properties = new Properties();
+            properties.setProperty(TX_DB_VERSION, Integer.toString(UserPreference.getInstance().getTxDbVersion()));
+            save(properties, marker);
+        }
+        chain.setLastBlock(BlockProvider.getInstance().getLastBlock());
+    }
+
+    public void close() {
+        ApplicationInstanceManager.txDBHelper.close();
+        ApplicationInstanceManager.addressDBHelper.close();
+        File[] files = workDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    private void generate() throws SQLException {
+        List<HDAccount.HDAccountAddress> hdAccountAddresses = new ArrayList<HDAccount.HDAccountAddress>();
+        int index = 0;
+        for (String address : chain.getHdAddresses()) {
+            hdAccountAddresses.add(new HDAccount.HDAccountAddress(address, new byte[33],
+                    AbstractHD.PathType.EXTERNAL_ROOT_PATH, index++, false, true));
+        }
+        HDAccountProvider.getInstance().addAddress(hdAccountAddresses);
+
+        // the last percent stays unconfirmed
+        new ChainWriter(ApplicationInstanceManager.txDBHelper, chain, -1).write(txCount, txCount / 100);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void save(Properties properties, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.utils.Base58;
+import net.bither.db.TxDBHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Streams the headers and txs of a SyntheticChain straight into a tx db,
+ * committing every COMMIT_TX_COUNT txs, so millions of rows need no more
+ * memory than one chunk. The rows are the ones a sync stores: spent flags
+ * and the addresses_txs rows of ins are resolved by the db from the outs
+ * written before.
+ */
+public class ChainWriter {
+
+    public static final int COMMIT_TX_COUNT = 1000;
+
+    private static final String INSERT_BLOCK_SQL = "insert or ignore into blocks " +
+            "(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main)" +
+            " values (?,?,?,?,?,?,?,?,?) ";
+    private static final String INSERT_TX_SQL = "insert or ignore into txs " +
+            "(tx_hash,tx_ver,tx_locktime,tx_time,block_no,source)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_IN_SQL = "insert or ignore into ins " +
+            "(tx_hash,in_sn,prev_tx_hash,prev_out_sn,in_signature,in_sequence)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_OUT_SQL = "insert or ignore into outs " +
+            "(tx_hash,out_sn,out_script,out_value,out_status,out_address,hd_account_id)" +
+            " values (?,?,?,?,?,?,?) ";
+    private static final String INSERT_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
+    private static final String INSERT_IN_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) " +
+            "select out_address,? from outs where tx_hash=? and out_sn=? and out_address is not null";
+    private static final String UPDATE_SPENT_SQL = "update outs set out_status=? where tx_hash=? and out_sn=?";
+
+    private final TxDBHelper db;
+    private final SyntheticChain chain;
+    private final HashSet<String> hdAddresses;
+    private final int hdAccountId;
+
+    private int orphanInterval;
+    private int doubleSpendInterval;
+    private int txRowCount;
+    private int blockRowCount;
+    private int orphanCount;
+    private int doubleSpendCount;
+
+    private PreparedStatement blockStatement;
+    private PreparedStatement txStatement;
+    private PreparedStatement inStatement;
+    private PreparedStatement outStatement;
+    private PreparedStatement addressTxStatement;
+    private PreparedStatement inAddressTxStatement;
+    private PreparedStatement spentStatement;
+
+    /**
+     * @param hdAccountId the account outs to the chain's HD addresses belong to, -1 for none
+     */
+    public ChainWriter(TxDBHelper db, SyntheticChain chain, int hdAccountId) {
+        this.db = db;
+        this.chain = chain;
+        this.hdAccountId = hdAccountId;
+        this.hdAddresses = new HashSet<String>(chain.getHdAddresses());
+    }
+
+    /**
+     * One orphan header for every orphanInterval blocks, 0 for none.
+     */
+    public void setOrphanInterval(int orphanInterval) {
+        this.orphanInterval = orphanInterval;
+    }
+
+    /**
+     * One unconfirmed double spend in place of every doubleSpendInterval-th tx, 0 for none.
+     */
+    public void setDoubleSpendInterval(int doubleSpendInterval) {
+        this.doubleSpendInterval = doubleSpendInterval;
+    }
+
+    /**
+     * Writes txCount txs, TXS_PER_BLOCK to a header, the last unconfirmedCount
+     * of them left unconfirmed.
+     */
+    public void write(int txCount, int unconfirmedCount) throws SQLException {
+        Connection conn = db.getConn();
+        conn.setAutoCommit(false);
+        // the statements bypass the statement cache, its statistics would only slow the bulk insert down
+        blockStatement = conn.prepareStatement(INSERT_BLOCK_SQL);
+        txStatement = conn.prepareStatement(INSERT_TX_SQL);
+        inStatement = conn.prepareStatement(INSERT_IN_SQL);
+        outStatement = conn.prepareStatement(INSERT_OUT_SQL);
+        addressTxStatement = conn.prepareStatement(INSERT_ADDRESS_TX_SQL);
+        inAddressTxStatement = conn.prepareStatement(INSERT_IN_ADDRESS_TX_SQL);
+        spentStatement = conn.prepareStatement(UPDATE_SPENT_SQL);
+        try {
+            int confirmedCount = txCount - unconfirmedCount;
+            Block block = chain.nextBlock();
+            addBlock(block);
+            int pending = 0;
+            for (int i = 0; i < txCount; i++) {
+                if (i < confirmedCount && i > 0 && i % SyntheticChain.TXS_PER_BLOCK == 0) {
+                    block = chain.nextBlock();
+                    addBlock(block);
+                    if (orphanInterval > 0 && block.getBlockNo() % orphanInterval == 0) {
+                        addBlock(chain.orphanBlock());
+                        orphanCount++;
+                    }
+                }
+                Tx tx = null;
+                if (doubleSpendInterval > 0 && i > 0 && i % doubleSpendInterval == 0) {
+                    tx = chain.doubleSpendTx(Tx.TX_UNCONFIRMED);
+                    if (tx != null) {
+                        doubleSpendCount++;
+                    }
+                }
+                if (tx == null) {
+                    tx = chain.nextTx(i < confirmedCount ? block.getBlockNo() : Tx.TX_UNCONFIRMED);
+                }
+                addTx(tx);
+                pending++;
+                if (pending == COMMIT_TX_COUNT) {
+                    flush(conn);
+                    pending = 0;
+                }
+            }
+            flush(conn);
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            closeStatements();
+        }
+    }
+
+    public int getTxRowCount() {
+        return txRowCount;
+    }
+
+    public int getBlockRowCount() {
+        return blockRowCount;
+    }
+
+    public int getOrphanCount() {
+        return orphanCount;
+    }
+
+    public int getDoubleSpendCount() {
+        return doubleSpendCount;
+    }
+
+    private void addBlock(Block block) throws SQLException {
+        blockStatement.setInt(1, block.getBlockNo());
+        blockStatement.setBytes(2, block.getBlockHash());
+        blockStatement.setBytes(3, block.getBlockRoot());
+        blockStatement.setLong(4, block.getBlockVer());
+        blockStatement.setLong(5, block.getBlockBits());
+        blockStatement.setLong(6, block.getBlockNonce());
+        blockStatement.setInt(7, block.getBlockTime());
+        blockStatement.setBytes(8, block.getBlockPrev());
+        blockStatement.setInt(9, block.isMain() ? 1 : 0);
+        blockStatement.addBatch();
+        blockRowCount++;
+    }
+
+    private void addTx(Tx tx) throws SQLException {
+        txStatement.setBytes(1, tx.getTxHash());
+        txStatement.setLong(2, tx.getTxVer());
+        txStatement.setLong(3, tx.getTxLockTime());
+        txStatement.setLong(4, tx.getTxTime());
+        txStatement.setString(5, tx.getBlockNo() == Tx.TX_UNCONFIRMED ? null : Integer.toString(tx.getBlockNo()));
+        txStatement.setInt(6, tx.getSource());
+        txStatement.addBatch();
+        for (In in : tx.getIns()) {
+            inStatement.setBytes(1, tx.getTxHash());
+            inStatement.setInt(2, in.getInSn());
+            inStatement.setBytes(3, in.getPrevTxHash());
+            inStatement.setInt(4, in.getPrevOutSn());
+            inStatement.setString(5, Base58.encode(in.getInSignature()));
+            inStatement.setLong(6, in.getInSequence());
+            inStatement.addBatch();
+
+            inAddressTxStatement.setBytes(1, tx.getTxHash());
+            inAddressTxStatement.setBytes(2, in.getPrevTxHash());
+            inAddressTxStatement.setInt(3, in.getPrevOutSn());
+            inAddressTxStatement.addBatch();
+
+            spentStatement.setInt(1, Out.OutStatus.spent.getValue());
+            spentStatement.setBytes(2, in.getPrevTxHash());
+            spentStatement.setInt(3, in.getPrevOutSn());
+            spentStatement.addBatch();
+        }
+        for (Out out : tx.getOuts()) {
+            outStatement.setBytes(1, tx.getTxHash());
+            outStatement.setInt(2, out.getOutSn());
+            outStatement.setString(3, Base58.encode(out.getOutScript()));
+            outStatement.setLong(4, out.getOutValue());
+            outStatement.setInt(5, Out.OutStatus.unspent.getValue());
+            outStatement.setString(6, out.getOutAddress());
+            outStatement.setInt(7, hdAddresses.contains(out.getOutAddress()) ? hdAccountId : -1);
+            outStatement.addBatch();
+
+            addressTxStatement.setString(1, out.getOutAddress());
+            addressTxStatement.setBytes(2, tx.getTxHash());
+            addressTxStatement.addBatch();
+        }
+        txRowCount++;
+    }
+
+    private void flush(Connection conn) throws SQLException {
+        blockStatement.executeBatch();
+        txStatement.executeBatch();
+        inStatement.executeBatch();
+        outStatement.executeBatch();
+        addressTxStatement.executeBatch();
+        // parents come before their children, so every out spent by this chunk is stored by now
+        inAddressTxStatement.executeBatch();
+        spentStatement.executeBatch();
+        conn.commit();
+    }
+
+    private void closeStatements() throws SQLException {
+        List<PreparedStatement> statements = Arrays.asList(blockStatement, txStatement,
+                inStatement, outStatement, addressTxStatement, inAddressTxStatement, spentStatement);
+        for (PreparedStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.ApplicationInstanceManager;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.db.BlockProvider;
+import net.bither.db.HDAccountProvider;
+import net.bither.db.TxProvider;
+import net.bither.db.UtxoCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the provider calls that dominate sync and the tx views, on a
+ * generated wallet of txCount txs. Write benchmarks handle a batch of
+ * BATCH_SIZE txs or headers per call, as a sync does.
+ *
+ * Sizes up to a million txs can be chosen with -p txCount=1000,1000000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DbProviderBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+    public static final int BELONG_LOOKUP_SIZE = 50;
+
+    @Param({"1000", "10000", "100000"})
+    public int txCount;
+
+    @Param({"1"})
+    public long seed;
+
+    private BenchmarkFixture fixture;
+    private Random random;
+    private List<String> addresses;
+
+    private List<String> belongLookup;
+    private PerRowTxWriter perRowTxWriter;
+
+    @Setup(Level.Trial)
+    public void openFixture() throws IOException, SQLException {
+        fixture = new BenchmarkFixture(txCount, seed);
+        fixture.open();
+        random = new Random(seed);
+        addresses = fixture.getAddresses();
+        perRowTxWriter = new PerRowTxWriter(ApplicationInstanceManager.txDBHelper);
+        belongLookup = new ArrayList<String>();
+        // one in ten addresses of a sync batch is ours
+        for (int i = 0; i < BELONG_LOOKUP_SIZE; i++) {
+            List<String> from = i % 10 == 0 ? fixture.getHdAddresses() : addresses;
+            belongLookup.add(from.get(random.nextInt(from.size())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeFixture() {
+        fixture.close();
+    }
+
+    /**
+     * Fresh txs and headers for each call of a write benchmark. Kept apart from
+     * the read benchmarks, which are too short for a setup per call.
+     */
+    @State(Scope.Thread)
+    public static class WriteBatch {
+        List<Tx> txs;
+        List<Block> blocks;
+
+        @Setup(Level.Invocation)
+        public void prepare(DbProviderBenchmark benchmark) {
+            SyntheticChain chain = benchmark.fixture.getChain();
+            txs = new ArrayList<Tx>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                txs.add(chain.externalTx(Tx.TX_UNCONFIRMED));
+            }
+            blocks = new ArrayList<Block>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                blocks.add(chain.nextBlock());
+            }
+        }
+    }
+
+    /**
+     * Unconfirmed txs stored before each confirmTx call, outside the measured time.
+     */
+    @State(Scope.Thread)
+    public static class UnconfirmedBatch {
+        List<byte[]> txHashes;
+        int blockNo;
+
+        @Setup(Level.Invocation)
+        public void store(DbProviderBenchmark benchmark) {
+            SyntheticChain chain = benchmark.fixture.getChain();
+            List<Tx> txs = new ArrayList<Tx>(BATCH_SIZE);
+            txHashes = new ArrayList<byte[]>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Tx tx = chain.externalTx(Tx.TX_UNCONFIRMED);
+                txs.add(tx);
+                txHashes.add(tx.getTxHash());
+            }
+            TxProvider.getInstance().addTxs(txs);
+            Block block = chain.nextBlock();
+            BlockProvider.getInstance().addBlocks(Collections.singletonList(block));
+            blockNo = block.getBlockNo();
+        }
+    }
+
+    @Benchmark
+    public void addTxs(WriteBatch batch) {
+        TxProvider.getInstance().addTxs(batch.txs);
+    }
+
+    /**
+     * The per row path addTxs had before it was batched, on the same batches, as its baseline.
+     */
+    @Benchmark
+    public void addTxsPerRow(WriteBatch batch) {
+        perRowTxWriter.addTxs(batch.txs);
+    }
+
+    @Benchmark
+    public void confirmTx(UnconfirmedBatch batch) {
+        TxProvider.getInstance().confirmTx(batch.blockNo, batch.txHashes);
+    }
+
+    @Benchmark
+    public void addBlocks(WriteBatch batch) {
+        BlockProvider.getInstance().addBlocks(batch.blocks);
+    }
+
+    @Benchmark
+    public List<Tx> getTxAndDetailByAddress() {
+        return TxProvider.getInstance().getTxAndDetailByAddress(nextAddress(), 1);
+    }
+
+    @Benchmark
+    public List<Out> getUnspendOutWithAddress() {
+        return TxProvider.getInstance().getUnspendOutWithAddress(nextAddress());
+    }
+
+    /**
+     * The same call with the unspent out cache emptied first, as after a write
+     * touching the address.
+     */
+    @Benchmark
+    public List<Out> getUnspendOutWithAddressUncached() {
+        UtxoCache.getInstance().clear();
+        return TxProvider.getInstance().getUnspendOutWithAddress(nextAddress());
+    }
+
+    @Benchmark
+    public HashSet<String> getBelongAccountAddresses() {
+        return HDAccountProvider.getInstance().getBelongAccountAddresses(belongLookup);
+    }
+
+    private String nextAddress() {
+        return addresses.get(random.nextInt(addresses.size()));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.db.DbWriter;
+import net.bither.db.HDAccountProvider;
+import net.bither.db.TxDBHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tx ingestion addTxs had before TxBatchInserter, kept as the baseline of
+ * the addTxs benchmark: per tx a membership lookup, and per tx, in and out an
+ * existence check, a prepared insert and the lookups of the spends, each
+ * addresses_txs row written on its own. It writes the blob schema of today in
+ * one writer operation, so only the statement pattern differs.
+ */
+public class PerRowTxWriter {
+
+    private static final String TX_EXIST_SQL = "select count(0) cnt from txs where tx_hash=?";
+    private static final String OUT_EXIST_SQL = "select count(0) cnt from outs where tx_hash=? and out_sn=?";
+    private static final String IN_EXIST_SQL = "select count(0) cnt from ins where tx_hash=? and in_sn=?";
+    private static final String INSERT_TX_SQL = "insert into txs " +
+            "(tx_hash,tx_ver,tx_locktime,tx_time,block_no,source)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_IN_SQL = "insert into ins " +
+            "(tx_hash,in_sn,prev_tx_hash,prev_out_sn,in_signature,in_sequence)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_OUT_SQL = "insert into outs " +
+            "(tx_hash,out_sn,out_script,out_value,out_status,out_address,hd_account_id)" +
+            " values (?,?,?,?,?,?,?) ";
+    private static final String SPENDING_IN_SQL = "select tx_hash from ins where prev_tx_hash=? and prev_out_sn=?";
+    private static final String PREV_OUT_ADDRESS_SQL = "select out_address from outs where tx_hash=? and out_sn=?";
+    private static final String UPDATE_SPENT_SQL = "update outs set out_status=? where tx_hash=? and out_sn=?";
+    private static final String INSERT_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
+
+    private final TxDBHelper db;
+
+    public PerRowTxWriter(TxDBHelper db) {
+        this.db = db;
+    }
+
+    public void addTxs(final List<Tx> txs) {
+        try {
+            db.getWriter().execute(new DbWriter.Operation<Void>() {
+                @Override
+                public Void run(Connection conn) throws SQLException {
+                    for (Tx tx : txs) {
+                        addTx(conn, tx);
+                    }
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addTx(Connection conn, Tx tx) throws SQLException {
+        // the old path asked for the membership of every tx on its own
+        HDAccountProvider.getInstance().getBelongAccountAddresses(tx.getOutAddressList());
+        // addresses of the addresses_txs rows of this tx
+        List<String> addresses = new ArrayList<String>();
+        if (!exists(conn, TX_EXIST_SQL, tx.getTxHash(), -1)) {
+            PreparedStatement statement = conn.prepareStatement(INSERT_TX_SQL);
+            statement.setBytes(1, tx.getTxHash());
+            statement.setLong(2, tx.getTxVer());
+            statement.setLong(3, tx.getTxLockTime());
+            statement.setLong(4, tx.getTxTime());
+            if (tx.getBlockNo() == Tx.TX_UNCONFIRMED) {
+                statement.setNull(5, Types.INTEGER);
+            } else {
+                statement.setInt(5, tx.getBlockNo());
+            }
+            statement.setInt(6, tx.getSource());
+            statement.executeUpdate();
+            statement.close();
+        }
+        for (In in : tx.getIns()) {
+            if (!exists(conn, IN_EXIST_SQL, tx.getTxHash(), in.getInSn())) {
+                PreparedStatement statement = conn.prepareStatement(INSERT_IN_SQL);
+                statement.setBytes(1, tx.getTxHash());
+                statement.setInt(2, in.getInSn());
+                statement.setBytes(3, in.getPrevTxHash());
+                statement.setInt(4, in.getPrevOutSn());
+                statement.setBytes(5, in.getInSignature());
+                statement.setLong(6, in.getInSequence());
+                statement.executeUpdate();
+                statement.close();
+            }
+            PreparedStatement statement = conn.prepareStatement(PREV_OUT_ADDRESS_SQL);
+            statement.setBytes(1, in.getPrevTxHash());
+            statement.setInt(2, in.getPrevOutSn());
+            ResultSet c = statement.executeQuery();
+            while (c.next()) {
+                addresses.add(c.getString(1));
+            }
+            c.close();
+            statement.close();
+            updateSpent(conn, in.getPrevTxHash(), in.getPrevOutSn());
+        }
+        for (Out out : tx.getOuts()) {
+            if (!exists(conn, OUT_EXIST_SQL, tx.getTxHash(), out.getOutSn())) {
+                PreparedStatement statement = conn.prepareStatement(INSERT_OUT_SQL);
+                statement.setBytes(1, tx.getTxHash());
+                statement.setInt(2, out.getOutSn());
+                statement.setBytes(3, out.getOutScript());
+                statement.setLong(4, out.getOutValue());
+                statement.setInt(5, out.getOutStatus().getValue());
+                statement.setString(6, out.getOutAddress());
+                statement.setInt(7, out.getHDAccountId());
+                statement.executeUpdate();
+                statement.close();
+            }
+            if (out.getOutAddress() != null) {
+                addresses.add(out.getOutAddress());
+            }
+            PreparedStatement statement = conn.prepareStatement(SPENDING_IN_SQL);
+            statement.setBytes(1, tx.getTxHash());
+            statement.setInt(2, out.getOutSn());
+            ResultSet c = statement.executeQuery();
+            boolean isSpent = c.next();
+            c.close();
+            statement.close();
+            if (isSpent) {
+                updateSpent(conn, tx.getTxHash(), out.getOutSn());
+            }
+        }
+        for (String address : addresses) {
+            if (address == null) {
+                continue;
+            }
+            PreparedStatement statement = conn.prepareStatement(INSERT_ADDRESS_TX_SQL);
+            statement.setString(1, address);
+            statement.setBytes(2, tx.getTxHash());
+            statement.executeUpdate();
+            statement.close();
+        }
+    }
+
+    private static boolean exists(Connection conn, String sql, byte[] txHash, int sn) throws SQLException {
+        PreparedStatement statement = conn.prepareStatement(sql);
+        statement.setBytes(1, txHash);
+        if (sn >= 0) {
+            statement.setInt(2, sn);
+        }
+        ResultSet c = statement.executeQuery();
+        boolean exists = c.next() && c.getInt(1) > 0;
+        c.close();
+        statement.close();
+        return exists;
+    }
+
+    private static void updateSpent(Connection conn, byte[] txHash, int outSn) throws SQLException {
+        PreparedStatement statement = conn.prepareStatement(UPDATE_SPENT_SQL);
+        statement.setInt(1, Out.OutStatus.spent.getValue());
+        statement.setBytes(2, txHash);
+        statement.setInt(3, outSn);
+        statement.executeUpdate();
+        statement.close();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.utils.Base58;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic txs and headers for the benchmark fixtures and the wallet
+ * generator. Txs move coins between a fixed set of addresses, each spending
+ * earlier outs and sending change back, so the outs, ins and addresses_txs
+ * tables look like a wallet. The same seed always gives the same addresses,
+ * txs and headers.
+ */
+public class SyntheticChain {
+
+    public static final int TXS_PER_BLOCK = 20;
+
+    // outs waiting to be spent, bounded so a million tx fixture does not keep every out
+    private static final int MAX_UNSPENT = 50000;
+    // spent outs a double spend can pick from
+    private static final int MAX_RECENTLY_SPENT = 1000;
+
+    private static final class OutPoint {
+        final byte[] txHash;
+        final int outSn;
+        final long value;
+
+        OutPoint(byte[] txHash, int outSn, long value) {
+            this.txHash = txHash;
+            this.outSn = outSn;
+            this.value = value;
+        }
+    }
+
+    private final Random random;
+    private final List<String> addresses;
+    private final List<String> hdAddresses;
+    private final List<OutPoint> unspent = new ArrayList<OutPoint>();
+    private final List<OutPoint> recentlySpent = new ArrayList<OutPoint>();
+
+    private int hdPaymentPercent;
+    private byte[] lastBlockHash;
+    private byte[] previousBlockHash;
+    private int lastBlockNo;
+    private int lastBlockTime;
+
+    public SyntheticChain(long seed, int addressCount, int hdAddressCount) {
+        // addresses come from their own generator, so they do not depend on how many txs were made
+        this(seed, makeAddresses(new Random(seed), addressCount + hdAddressCount), hdAddressCount);
+    }
+
+    /**
+     * @param addresses the addresses txs pay to, the last hdAddressCount of them
+     *                  are handed out as HD account addresses instead
+     */
+    public SyntheticChain(long seed, List<String> addresses, int hdAddressCount) {
+        int split = addresses.size() - hdAddressCount;
+        this.addresses = new ArrayList<String>(addresses.subList(0, split));
+        this.hdAddresses = new ArrayList<String>(addresses.subList(split, addresses.size()));
+        this.random = new Random(seed * 31 + 17);
+        this.lastBlockHash = new byte[32];
+        this.previousBlockHash = new byte[32];
+        this.lastBlockNo = 0;
+        this.lastBlockTime = 1400000000;
+    }
+
+    public List<String> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * Addresses for the HD account, they only receive txs after setHdPaymentPercent.
+     */
+    public List<String> getHdAddresses() {
+        return hdAddresses;
+    }
+
+    /**
+     * Share of the payments that go to an HD account address.
+     */
+    public void setHdPaymentPercent(int hdPaymentPercent) {
+        this.hdPaymentPercent = hdPaymentPercent;
+    }
+
+    public int getLastBlockNo() {
+        return lastBlockNo;
+    }
+
+    /**
+     * Continues from a header already in the db.
+     */
+    public void setLastBlock(Block block) {
+        previousBlockHash = block.getBlockPrev();
+        lastBlockHash = block.getBlockHash();
+        lastBlockNo = block.getBlockNo();
+        lastBlockTime = block.getBlockTime();
+    }
+
+    public Block nextBlock() {
+        lastBlockNo++;
+        lastBlockTime += 600;
+        byte[] hash = randomBytes(32);
+        Block block = new Block(hash, 2, lastBlockHash, randomBytes(32), lastBlockTime, 0x1d00ffffL,
+                random.nextInt() & 0xffffffffL, lastBlockNo, true);
+        previousBlockHash = lastBlockHash;
+        lastBlockHash = hash;
+        return block;
+    }
+
+    /**
+     * A header competing with the last one for the same height, left off the
+     * main chain as an orphan.
+     */
+    public Block orphanBlock() {
+        return new Block(randomBytes(32), 2, previousBlockHash, randomBytes(32), lastBlockTime + 1, 0x1d00ffffL,
+                random.nextInt() & 0xffffffffL, lastBlockNo, false);
+    }
+
+    /**
+     * A tx spending earlier outs of the chain, paying one address and sending the
+     * change back.
+     */
+    public Tx nextTx(int blockNo) {
+        Tx tx = newTx(blockNo);
+        int inCount = Math.min(unspent.size(), 1 + random.nextInt(2));
+        long value = 0;
+        for (int i = 0; i < inCount; i++) {
+            OutPoint outPoint = unspent.remove(random.nextInt(unspent.size()));
+            addIn(tx, outPoint.txHash, outPoint.outSn);
+            value += outPoint.value;
+            if (recentlySpent.size() == MAX_RECENTLY_SPENT) {
+                recentlySpent.set(random.nextInt(MAX_RECENTLY_SPENT), outPoint);
+            } else {
+                recentlySpent.add(outPoint);
+            }
+        }
+        if (inCount == 0) {
+            // nothing left to spend, coins come in from outside
+            addIn(tx, randomBytes(32), 0);
+            value = 100000000L + random.nextInt(100000000);
+        }
+        long fee = 10000;
+        long payment = Math.max(1, (value - fee) / (2 + random.nextInt(8)));
+        boolean toHd = hdPaymentPercent > 0 && hdAddresses.size() > 0 && random.nextInt(100) < hdPaymentPercent;
+        addOut(tx, toHd ? hdAddresses.get(random.nextInt(hdAddresses.size())) : randomAddress(), payment);
+        addOut(tx, randomAddress(), Math.max(1, value - fee - payment));
+        for (Out out : tx.getOuts()) {
+            if (unspent.size() < MAX_UNSPENT) {
+                unspent.add(new OutPoint(tx.getTxHash(), out.getOutSn(), out.getOutValue()));
+            }
+        }
+        return tx;
+    }
+
+    /**
+     * A tx funded from outside the wallet, as most txs arriving during a sync are.
+     */
+    public Tx externalTx(int blockNo) {
+        Tx tx = newTx(blockNo);
+        addIn(tx, randomBytes(32), random.nextInt(4));
+        addOut(tx, randomAddress(), 100000 + random.nextInt(100000000));
+        addOut(tx, Base58.encode(randomBytes(21)), 100000 + random.nextInt(100000000));
+        return tx;
+    }
+
+    /**
+     * A tx spending an out an earlier tx of the chain already spent, or null
+     * before anything was spent. Its outs are not spent by later txs.
+     */
+    public Tx doubleSpendTx(int blockNo) {
+        if (recentlySpent.size() == 0) {
+            return null;
+        }
+        OutPoint outPoint = recentlySpent.get(random.nextInt(recentlySpent.size()));
+        Tx tx = newTx(blockNo);
+        addIn(tx, outPoint.txHash, outPoint.outSn);
+        addOut(tx, Base58.encode(randomBytes(21)), Math.max(1, outPoint.value - 10000));
+        return tx;
+    }
+
+    private Tx newTx(int blockNo) {
+        Tx tx = new Tx();
+        tx.setTxHash(randomBytes(32));
+        tx.setTxVer(1);
+        tx.setTxLockTime(0);
+        tx.setTxTime(lastBlockTime);
+        tx.setBlockNo(blockNo);
+        tx.setSource(0);
+        tx.setIns(new ArrayList<In>());
+        tx.setOuts(new ArrayList<Out>());
+        return tx;
+    }
+
+    private void addIn(Tx tx, byte[] prevTxHash, int prevOutSn) {
+        In in = new In();
+        in.setTx(tx);
+        in.setTxHash(tx.getTxHash());
+        in.setInSn(tx.getIns().size());
+        in.setPrevTxHash(prevTxHash);
+        in.setPrevOutSn(prevOutSn);
+        in.setInSignature(randomBytes(106));
+        in.setInSequence(0xffffffff);
+        tx.getIns().add(in);
+    }
+
+    private void addOut(Tx tx, String address, long value) {
+        Out out = new Out();
+        out.setTx(tx);
+        out.setTxHash(tx.getTxHash());
+        out.setOutSn(tx.getOuts().size());
+        out.setOutScript(randomBytes(25));
+        out.setOutValue(value);
+        out.setOutStatus(Out.OutStatus.unspent);
+        out.setOutAddress(address);
+        tx.getOuts().add(out);
+    }
+
+    private String randomAddress() {
+        return addresses.get(random.nextInt(addresses.size()));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static List<String> makeAddresses(Random random, int count) {
+        List<String> result = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[21];
+            random.nextBytes(bytes);
+            // version byte of a main net pay to pubkey hash address, so it starts with 1; the db needs no checksum
+            bytes[0] = 0;
+            result.add(Base58.encode(bytes));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.benchmark;
+
+import net.bither.ApplicationDataDirectoryLocator;
+import net.bither.ApplicationInstanceManager;
+import net.bither.Bither;
+import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.core.AbstractHD;
+import net.bither.bitherj.core.Address;
+import net.bither.bitherj.core.HDAccount;
+import net.bither.bitherj.crypto.ECKey;
+import net.bither.bitherj.crypto.SecureCharSequence;
+import net.bither.bitherj.crypto.mnemonic.MnemonicCode;
+import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.utils.PrivateKeyUtil;
+import net.bither.db.AddressDBHelper;
+import net.bither.db.AddressProvider;
+import net.bither.db.DesktopDbImpl;
+import net.bither.db.TxDBHelper;
+import net.bither.implbitherj.DesktopImplAbstractApp;
+import net.bither.mnemonic.MnemonicCodeDesktop;
+import net.bither.preference.UserPreference;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fills the data directory with a wallet of a given size for load tests and
+ * UI stress tests: watch only and private key addresses, an HD account, and a
+ * chain of txs between them with change, confirmations over a header chain,
+ * orphan headers, double spends and an unconfirmed tail. The same options
+ * give the same addresses, txs and headers; only the encrypted private keys
+ * differ, their salts are random.
+ *
+ * It writes to the application data directory, in portable mode to the
+ * working directory. The gradle task generateWallet runs it in portable
+ * mode under build/wallet.
+ */
+public class WalletGenerator {
+
+    public static final long DEFAULT_SEED = 1;
+    public static final int DEFAULT_TX_COUNT = 100000;
+    public static final int DEFAULT_WATCH_ONLY_COUNT = 1000;
+    public static final int DEFAULT_PRIVATE_KEY_COUNT = 5;
+    public static final int DEFAULT_HD_PAYMENT_PERCENT = 10;
+    public static final int DEFAULT_ORPHAN_INTERVAL = 100;
+    public static final int DEFAULT_DOUBLE_SPEND_INTERVAL = 1000;
+    public static final String DEFAULT_PASSWORD = "bither-stress";
+
+    private static final String INSERT_WATCH_ONLY_SQL = "insert into addresses " +
+            "(address,encrypt_private_key,pub_key,is_xrandom,is_trash,is_synced,sort_time)" +
+            " values (?,null,?,0,0,1,?) ";
+    private static final int ADDRESS_COMMIT_COUNT = 1000;
+
+    private long seed = DEFAULT_SEED;
+    private int txCount = DEFAULT_TX_COUNT;
+    private int watchOnlyCount = DEFAULT_WATCH_ONLY_COUNT;
+    private int privateKeyCount = DEFAULT_PRIVATE_KEY_COUNT;
+    private boolean hdAccount = true;
+    private int hdPaymentPercent = DEFAULT_HD_PAYMENT_PERCENT;
+    private int orphanInterval = DEFAULT_ORPHAN_INTERVAL;
+    private int doubleSpendInterval = DEFAULT_DOUBLE_SPEND_INTERVAL;
+    private String password = DEFAULT_PASSWORD;
+
+    private SecureRandom keyRandom;
+    private long sortTime;
+
+    public static void main(String[] args) {
+        WalletGenerator generator = new WalletGenerator();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--no-hd-account".equals(arg)) {
+                    generator.setHdAccount(false);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException(arg);
+                }
+                String value = args[++i];
+                if ("--seed".equals(arg)) {
+                    generator.setSeed(Long.parseLong(value));
+                } else if ("--txs".equals(arg)) {
+                    generator.setTxCount(Integer.parseInt(value));
+                } else if ("--watch-only".equals(arg)) {
+                    generator.setWatchOnlyCount(Integer.parseInt(value));
+                } else if ("--private-keys".equals(arg)) {
+                    generator.setPrivateKeyCount(Integer.parseInt(value));
+                } else if ("--hd-payment-percent".equals(arg)) {
+                    generator.setHdPaymentPercent(Integer.parseInt(value));
+                } else if ("--orphan-interval".equals(arg)) {
+                    generator.setOrphanInterval(Integer.parseInt(value));
+                } else if ("--double-spend-interval".equals(arg)) {
+                    generator.setDoubleSpendInterval(Integer.parseInt(value));
+                } else if ("--password".equals(arg)) {
+                    generator.setPassword(value);
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("unknown or incomplete option: " + e.getMessage());
+            System.out.println("options: --seed n --txs n --watch-only n --private-keys n --no-hd-account\n" +
+                    "         --hd-payment-percent n --orphan-interval blocks --double-spend-interval txs\n" +
+                    "         --password text");
+            System.exit(1);
+        }
+        try {
+            generator.generate();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setTxCount(int txCount) {
+        this.txCount = txCount;
+    }
+
+    public void setWatchOnlyCount(int watchOnlyCount) {
+        this.watchOnlyCount = watchOnlyCount;
+    }
+
+    /**
+     * Each key is encrypted with scrypt, so keep this in the tens.
+     */
+    public void setPrivateKeyCount(int privateKeyCount) {
+        this.privateKeyCount = privateKeyCount;
+    }
+
+    public void setHdAccount(boolean hdAccount) {
+        this.hdAccount = hdAccount;
+    }
+
+    public void setHdPaymentPercent(int hdPaymentPercent) {
+        this.hdPaymentPercent = hdPaymentPercent;
+    }
+
+    public void setOrphanInterval(int orphanInterval) {
+        this.orphanInterval = orphanInterval;
+    }
+
+    public void setDoubleSpendInterval(int doubleSpendInterval) {
+        this.doubleSpendInterval = doubleSpendInterval;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public void generate() throws SQLException, IOException, NoSuchAlgorithmException {
+        long begin = System.currentTimeMillis();
+        if (Bither.getApplicationDataDirectoryLocator() == null) {
+            Bither.setApplicationDataDirectoryLocator(new ApplicationDataDirectoryLocator());
+        }
+        String dataDir = Bither.getApplicationDataDirectoryLocator().getApplicationDataDirectory();
+        if (dataDir.length() == 0) {
+            dataDir = new File("").getAbsolutePath();
+        }
+        File txDb = new File(dataDir + File.separator + "bither.db");
+        File addressDb = new File(dataDir + File.separator + "address.db");
+        if (txDb.exists() || addressDb.exists()) {
+            throw new IllegalStateException("a wallet already exists in " + txDb.getParent());
+        }
+        // the helpers create their tables for version 0
+        UserPreference.getInstance().setTxDbVersion(0);
+        UserPreference.getInstance().setAddressDbVersion(0);
+        if (UserPreference.getInstance().getAppMode() == null) {
+            UserPreference.getInstance().setAppMode(BitherjSettings.AppMode.HOT);
+        }
+        ApplicationInstanceManager.txDBHelper = new TxDBHelper(dataDir);
+        ApplicationInstanceManager.txDBHelper.initDb();
+        ApplicationInstanceManager.addressDBHelper = new AddressDBHelper(dataDir);
+        ApplicationInstanceManager.addressDBHelper.initDb();
+        new DesktopImplAbstractApp().construct();
+        new DesktopDbImpl().construct();
+        MnemonicCode.setInstance(new MnemonicCodeDesktop());
+
+        // seeded before its first use SHA1PRNG repeats the same keys for the same seed
+        keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(seed);
+        sortTime = System.currentTimeMillis();
+        try {
+            List<String> addresses = new ArrayList<String>();
+            addresses.addAll(addPrivateKeyAddresses());
+            addresses.addAll(addWatchOnlyAddresses());
+            int hdAccountId = -1;
+            List<String> hdAddresses = new ArrayList<String>();
+            if (hdAccount) {
+                hdAccountId = addHDAccount();
+                hdAddresses = getExternalHDAddresses();
+            }
+            System.out.println("addresses: " + addresses.size() + " watch only and private key, "
+                    + hdAddresses.size() + " HD");
+            addresses.addAll(hdAddresses);
+
+            SyntheticChain chain = new SyntheticChain(seed, addresses, hdAddresses.size());
+            chain.setHdPaymentPercent(hdPaymentPercent);
+            ChainWriter writer = new ChainWriter(ApplicationInstanceManager.txDBHelper, chain, hdAccountId);
+            writer.setOrphanInterval(orphanInterval);
+            writer.setDoubleSpendInterval(doubleSpendInterval);
+            writer.write(txCount, txCount / 100);
+            if (hdAccount) {
+                markIssuedHDAddresses(hdAccountId);
+            }
+            System.out.println("txs: " + writer.getTxRowCount() + " with " + writer.getDoubleSpendCount()
+                    + " double spends, headers: " + writer.getBlockRowCount() + " with "
+                    + writer.getOrphanCount() + " orphans, " + (System.currentTimeMillis() - begin) + "ms");
+        } finally {
+            ApplicationInstanceManager.txDBHelper.close();
+            ApplicationInstanceManager.addressDBHelper.close();
+        }
+    }
+
+    private List<String> addPrivateKeyAddresses() {
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < privateKeyCount; i++) {
+            ECKey ecKey = ECKey.generateECKey(keyRandom);
+            String addressString = ecKey.toAddress();
+            ecKey = PrivateKeyUtil.encrypt(ecKey, new SecureCharSequence(password.toCharArray()));
+            Address address = new Address(addressString, ecKey.getPubKey(),
+                    PrivateKeyUtil.getEncryptedString(ecKey), false);
+            ecKey.clearPrivateKey();
+            // also stores the password seed with the first key
+            AddressProvider.getInstance().addAddress(address);
+            addresses.add(addressString);
+        }
+        return addresses;
+    }
+
+    private List<String> addWatchOnlyAddresses() throws SQLException {
+        List<String> addresses = new ArrayList<String>();
+        Connection conn = ApplicationInstanceManager.addressDBHelper.getConn();
+        conn.setAutoCommit(false);
+        PreparedStatement statement = conn.prepareStatement(INSERT_WATCH_ONLY_SQL);
+        try {
+            for (int i = 0; i < watchOnlyCount; i++) {
+                ECKey ecKey = ECKey.generateECKey(keyRandom);
+                statement.setString(1, ecKey.toAddress());
+                statement.setString(2, Base58.encode(ecKey.getPubKey()));
+                statement.setLong(3, sortTime--);
+                statement.addBatch();
+                addresses.add(ecKey.toAddress());
+                if ((i + 1) % ADDRESS_COMMIT_COUNT == 0) {
+                    statement.executeBatch();
+                    conn.commit();
+                }
+            }
+            statement.executeBatch();
+            conn.commit();
+        } finally {
+            statement.close();
+        }
+        return addresses;
+    }
+
+    private int addHDAccount() {
+        HDAccount account = new HDAccount(keyRandom, new SecureCharSequence(password.toCharArray()),
+                new HDAccount.HDAccountGenerationDelegate() {
+                    @Override
+                    public void onHDAccountGenerationProgress(double progress) {
+
+                    }
+                });
+        return account.getHdSeedId();
+    }
+
+    private List<String> getExternalHDAddresses() throws SQLException {
+        List<String> addresses = new ArrayList<String>();
+        PreparedStatement statement = ApplicationInstanceManager.txDBHelper.getPreparedStatement(
+                "select address from hd_account_addresses where path_type=? order by address_index",
+                new String[]{Integer.toString(AbstractHD.PathType.EXTERNAL_ROOT_PATH.getValue())});
+        ResultSet c = statement.executeQuery();
+        while (c.next()) {
+            addresses.add(c.getString(1));
+        }
+        c.close();
+        statement.close();
+        return addresses;
+    }
+
+    private void markIssuedHDAddresses(int hdAccountId) {
+        ApplicationInstanceManager.txDBHelper.executeUpdate("update hd_account_addresses set is_issued=1 " +
+                        "where address in (select out_address from outs where hd_account_id=?)",
+                new String[]{Integer.toString(hdAccountId)});
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the hot queries of the tx db and reports every
+ * one that scans a whole table, so a schema change or a rewritten query that
+ * loses its index is caught before it reaches a wallet with a long history.
+ * The temp stage tables are scanned on purpose, they only hold the rows of
+ * the current call.
+ *
+ * Run it against the tx db of generateWallet with gradle :benchmark:checkQueryPlans.
+ * It exits with 1 when a query scans a table. It lives in the package of the
+ * providers to read their package-private sql.
+ */
+public class QueryPlanCheck {
+
+    private static final Map<String, String> HOT_QUERIES = new LinkedHashMap<String, String>();
+
+    static {
+        HOT_QUERIES.put("tx by address", TxProvider.TX_BY_ADDRESS_SQL);
+        HOT_QUERIES.put("tx count by address", TxProvider.TX_COUNT_BY_ADDRESS_SQL);
+        HOT_QUERIES.put("sent from address", TxProvider.SENT_FROM_ADDRESS_SQL);
+        HOT_QUERIES.put("utxo by address", TxProvider.UTXO_BY_ADDRESS_SQL);
+        HOT_QUERIES.put("confirm double spend", TxProvider.CONFIRM_DOUBLE_SPEND_SQL);
+        HOT_QUERIES.put("reorg double spend", TxProvider.REORG_DOUBLE_SPEND_SQL);
+        HOT_QUERIES.put("resolve prev outs", PrevOutResolver.RESOLVE_SQL);
+        HOT_QUERIES.put("remove descendants", TxCascadeRemover.STAGE_DESCENDANTS_SQL);
+        HOT_QUERIES.put("remove restore prev outs", TxCascadeRemover.RESTORE_PREV_OUTS_SQL);
+        for (int i = 0; i < TxCascadeRemover.DELETE_SQL.length; i++) {
+            HOT_QUERIES.put("remove delete " + i, TxCascadeRemover.DELETE_SQL[i]);
+        }
+        HOT_QUERIES.put("hd utxo", HDAccountProvider.utxoByHDAccountSql);
+        HOT_QUERIES.put("hd issued index", HDAccountProvider.issuedIndexSql);
+        HOT_QUERIES.put("hd unsynced address count", HDAccountProvider.unSyncedAddressCountSql);
+        HOT_QUERIES.put("last main block", BlockProvider.lastMainBlockSql);
+        HOT_QUERIES.put("orphan block by prev", BlockProvider.orphanBlockByPrevSql);
+    }
+
+    // temp stage tables and the recursive table of the cascade removal
+    private static final List<String> SCANNABLE_TABLES = Arrays.asList(
+            "confirm_txs", "reorg_txs", "prev_outs", "remove_roots", "remove_txs", "descendant");
+
+    private static final String SCAN_PREFIX = "SCAN ";
+    private static final String TABLE_PREFIX = "TABLE ";
+
+    /**
+     * @return one line per query that scans a table, empty when every plan uses an index
+     */
+    public static List<String> check(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate(TxProvider.CONFIRM_STAGE_SQL);
+        stmt.executeUpdate(TxProvider.REORG_STAGE_SQL);
+        stmt.executeUpdate(PrevOutResolver.CREATE_STAGE_SQL);
+        for (String sql : TxCascadeRemover.CREATE_STAGE_SQL) {
+            stmt.executeUpdate(sql);
+        }
+        stmt.close();
+
+        List<String> violations = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : HOT_QUERIES.entrySet()) {
+            for (String detail : explain(conn, entry.getValue())) {
+                if (isFullScan(detail)) {
+                    violations.add(entry.getKey() + ": " + detail);
+                }
+            }
+        }
+        return violations;
+    }
+
+    static List<String> explain(Connection conn, String sql) throws SQLException {
+        List<String> details = new ArrayList<String>();
+        // parameters left unbound are null, which does not change the plan
+        PreparedStatement statement = conn.prepareStatement("explain query plan " + sql);
+        ResultSet c = statement.executeQuery();
+        while (c.next()) {
+            details.add(c.getString(c.findColumn("detail")));
+        }
+        c.close();
+        statement.close();
+        return details;
+    }
+
+    private static boolean isFullScan(String detail) {
+        if (detail == null || !detail.startsWith(SCAN_PREFIX)) {
+            return false;
+        }
+        String target = detail.substring(SCAN_PREFIX.length());
+        // newer sqlite leaves out the TABLE
+        if (target.startsWith(TABLE_PREFIX)) {
+            target = target.substring(TABLE_PREFIX.length());
+        }
+        String table = target.split(" ")[0];
+        return !table.equals("SUBQUERY") && !SCANNABLE_TABLES.contains(table);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("usage: QueryPlanCheck <tx db file>");
+            System.exit(2);
+        }
+        Connection conn = null;
+        try {
+            Class.forName("org.sqlite.JDBC");
+            conn = DriverManager.getConnection("jdbc:sqlite:" + args[0]);
+            List<String> violations = check(conn);
+            for (String violation : violations) {
+                System.err.println(violation);
+            }
+            System.out.println(HOT_QUERIES.size() + " queries checked, " + violations.size() + " full scans");
+            conn.close();
+            System.exit(violations.size() == 0 ? 0 : 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -24,7 +24,11 @@ import net.bither.bitherj.core.AddressManager;
 import net.bither.bitherj.crypto.mnemonic.MnemonicCode;
 import net.bither.db.AddressDBHelper;
 import net.bither.db.DesktopDbImpl;
+import net.bither.db.DbMaintenance;
+import net.bither.db.HDAccountProvider;
+import net.bither.db.SqlStats;
 import net.bither.db.TxDBHelper;
+import net.bither.db.WalletSnapshot;
 import net.bither.implbitherj.DesktopImplAbstractApp;
 import net.bither.logging.LoggingConfiguration;
 import net.bither.logging.LoggingFactory;
@@ -44,7 +48,9 @@ import net.bither.viewsystem.action.ExitAction;
 import net.bither.viewsystem.base.ColorAndFontConstants;
 import net.bither.viewsystem.base.FontSizer;
 import net.bither.viewsystem.dialogs.DialogConfirmTask;
+import net.bither.viewsystem.dialogs.DialogDbUpgrade;
 import net.bither.viewsystem.dialogs.DialogProgress;
+import net.bither.viewsystem.dialogs.DialogWalletSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,6 +74,8 @@ public final class Bither {
     private static CoreController coreController = null;
 
     private static MainFrame mainFrame = null;
+    // only touched on the event dispatch thread
+    private static DialogWalletSnapshot dialogWalletSnapshot = null;
 
     private static GenericApplication genericApplication = null;
     private static ApplicationDataDirectoryLocator applicationDataDirectoryLocator = null;
@@ -127,8 +135,34 @@ public final class Bither {
     }
 
     private static void initBitherApplication() {
+        HeapTelemetry.getInstance().start();
+        SqlStats.getInstance().registerMBean();
+        WalletSnapshot.loadAtLaunch(applicationDataDirectoryLocator.getApplicationDataDirectory());
         ApplicationInstanceManager.txDBHelper = new TxDBHelper(applicationDataDirectoryLocator.getApplicationDataDirectory());
+        final DialogDbUpgrade dialogDbUpgrade;
+        if (ApplicationInstanceManager.txDBHelper.needUpgrade()) {
+            dialogDbUpgrade = new DialogDbUpgrade();
+            ApplicationInstanceManager.txDBHelper.setUpgradeListener(dialogDbUpgrade);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    dialogDbUpgrade.setVisible(true);
+                }
+            });
+        } else {
+            dialogDbUpgrade = null;
+            showWalletSnapshot();
+        }
         ApplicationInstanceManager.txDBHelper.initDb();
+        if (dialogDbUpgrade != null) {
+            ApplicationInstanceManager.txDBHelper.setUpgradeListener(null);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    dialogDbUpgrade.dispose();
+                }
+            });
+        }
         ApplicationInstanceManager.addressDBHelper = new AddressDBHelper(applicationDataDirectoryLocator.getApplicationDataDirectory());
         ApplicationInstanceManager.addressDBHelper.initDb();
         if (UserPreference.getInstance().getAppMode() == null) {
@@ -139,7 +173,10 @@ public final class Bither {
         desktopImplAbstractApp.construct();
         DesktopDbImpl desktopDb = new DesktopDbImpl();
         desktopDb.construct();
+        HDAccountProvider.getInstance().getAddressIndex();
+        DbMaintenance.getInstance().start();
         AddressManager.getInstance();
+        WalletSnapshot.reconcileInBackground();
         try {
             MnemonicCode.setInstance(new MnemonicCodeDesktop());
         } catch (IOException e) {
@@ -149,6 +186,24 @@ public final class Bither {
 
     }
 
+    /**
+     * Shows the balances and latest txs of the last session while the dbs open
+     * and the wallet loads, until the main frame replaces it.
+     */
+    private static void showWalletSnapshot() {
+        final WalletSnapshot snapshot = WalletSnapshot.getLaunchSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                dialogWalletSnapshot = new DialogWalletSnapshot(snapshot);
+                dialogWalletSnapshot.setVisible(true);
+            }
+        });
+    }
+
     public static boolean canReloadTx() {
         if (reloadTxTime == -1) {
             return true;
@@ -312,6 +367,10 @@ public final class Bither {
             FontSizer.INSTANCE.initialise();
 
             mainFrame = new MainFrame(coreController, coreController.getCurrentView());
+            if (dialogWalletSnapshot != null) {
+                dialogWalletSnapshot.dispose();
+                dialogWalletSnapshot = null;
+            }
             coreController.registerViewSystem(mainFrame);
             runProcessCommandLineURIWithArgs(args);
             // Indicate to the application that startup has completed.
@@ -475,6 +534,13 @@ public final class Bither {
         return applicationDataDirectoryLocator;
     }
 
+    /**
+     * For tools that run the db code without main, such as the benchmarks.
+     */
+    public static void setApplicationDataDirectoryLocator(ApplicationDataDirectoryLocator locator) {
+        applicationDataDirectoryLocator = locator;
+    }
+
     public static Address getActionAddress() {
         return activeWalletModelData;
     }
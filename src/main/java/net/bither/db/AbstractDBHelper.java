@@ -22,11 +22,20 @@ import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class AbstractDBHelper {
 
     private Connection conn;
+    private StatementCache statementCache;
+    private ReadConnectionPool readPool;
+    private DbWriter writer;
+    // held by the writer thread for a group, and by anything else using the writer connection
+    private final ReentrantLock lock = new ReentrantLock();
 
     private String dbFileFullName;
     protected String connectionString;
@@ -58,59 +67,231 @@ public abstract class AbstractDBHelper {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
+        boolean isCreating = false;
         try {
             conn = DriverManager.getConnection(this.connectionString, null, null);
+            // before the journal mode, which already writes the first page of a new db
+            DbMaintenance.getInstance().enableIncrementalVacuum(conn);
+            // journal mode can not be changed inside a transaction
+            boolean isWal = enableWal(conn);
             conn.setAutoCommit(false);
+            statementCache = new StatementCache(conn, this);
             int dbVersion = dbVersion();
             int cuerrentVersion = currentVersion();
             if (dbVersion == 0) {
+                isCreating = true;
                 onCreate(conn);
+                isCreating = false;
             } else if (dbVersion() < cuerrentVersion) {
                 onUpgrade(conn, cuerrentVersion, dbVersion);
             }
+            if (isWal) {
+                initReadPool();
+            }
+            if (useWriterThread()) {
+                writer = new DbWriter(this);
+            }
         } catch (SQLException e) {
-            File file = new File(dbFileFullName);
-            if (file.exists()) {
-                file.delete();
+            e.printStackTrace();
+            if (isCreating) {
+                // nothing but an empty schema is lost, the next launch creates it again
+                for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                    File file = new File(dbFileFullName + suffix);
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                }
+            } else if (conn != null) {
+                // an upgrade that failed keeps its committed chunks and the old version, the next launch resumes it
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackException) {
+                    rollbackException.printStackTrace();
+                }
             }
+        }
+    }
+
+    /**
+     * Whether writes go through a DbWriter thread instead of the calling thread.
+     */
+    protected boolean useWriterThread() {
+        return false;
+    }
+
+    /**
+     * @return null when the db is written from the calling threads
+     */
+    public DbWriter getWriter() {
+        return writer;
+    }
+
+    protected int readPoolSize() {
+        return ReadConnectionPool.DEFAULT_SIZE;
+    }
+
+    private boolean enableWal(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        String journalMode = null;
+        ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=WAL");
+        if (rs.next()) {
+            journalMode = rs.getString(1);
+        }
+        rs.close();
+        boolean isWal = "wal".equalsIgnoreCase(journalMode);
+        if (isWal) {
+            // in WAL mode NORMAL only gives up durability of the last commits on power loss, never consistency
+            stmt.executeUpdate("PRAGMA synchronous=NORMAL");
+        }
+        stmt.close();
+        return isWal;
+    }
+
+    private void initReadPool() {
+        try {
+            readPool = new ReadConnectionPool(this, this.connectionString, readPoolSize());
+        } catch (SQLException e) {
+            // queries keep working on the writer connection
+            readPool = null;
             e.printStackTrace();
         }
     }
 
+    /**
+     * Starts a read transaction with snapshot isolation on a pooled read-only
+     * connection, so long reads do not hold up writers. Falls back to the writer
+     * connection, under the lock, when the database is not in WAL mode. Reads
+     * from inside a writer operation see the writes of its group.
+     */
+    public ReadSession beginRead() throws SQLException {
+        if (readPool != null && (writer == null || !writer.isWriterThread())) {
+            return readPool.acquire();
+        }
+        ReadSession session = new ReadSession(null, conn, statementCache, lock);
+        session.open();
+        return session;
+    }
+
+    /**
+     * The lock guarding the writer connection. Take it around any use of
+     * getConn() outside the writer thread.
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
 
+    public boolean isWal() {
+        return readPool != null;
+    }
+
+    /**
+     * A connection of its own for work that must not join the transactions of the writer connection.
+     */
+    Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(this.connectionString, null, null);
+    }
+
+    /**
+     * @return the size of the db file and its write-ahead log in bytes
+     */
+    public long getDbFileSize() {
+        return new File(dbFileFullName).length() + new File(dbFileFullName + "-wal").length();
+    }
+
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * The returned statement comes from the connection's statement cache,
+     * close() hands it back to the cache.
+     */
     public PreparedStatement getPreparedStatement(String sql, String[] arg) throws SQLException {
-        PreparedStatement stmt = conn.prepareStatement(sql);
-        if (arg != null) {
-            for (int i = 0; i < arg.length; i++) {
-                stmt.setString(i + 1, arg[i]);
-            }
-        }
+        return getPreparedStatement(sql, (Object[]) arg);
+    }
+
+    /**
+     * byte[] arguments are bound as blobs, the hash columns of the tx db are stored that way.
+     */
+    public PreparedStatement getPreparedStatement(String sql, Object[] arg) throws SQLException {
+        PreparedStatement stmt = statementCache.acquire(sql);
+        bindArgs(stmt, arg);
         return stmt;
+    }
 
+    static void bindArgs(PreparedStatement stmt, Object[] arg) throws SQLException {
+        if (arg == null) {
+            return;
+        }
+        for (int i = 0; i < arg.length; i++) {
+            Object value = arg[i];
+            if (value == null) {
+                stmt.setNull(i + 1, Types.NULL);
+            } else if (value instanceof byte[]) {
+                stmt.setBytes(i + 1, (byte[]) value);
+            } else if (value instanceof Integer) {
+                stmt.setInt(i + 1, (Integer) value);
+            } else if (value instanceof Long) {
+                stmt.setLong(i + 1, (Long) value);
+            } else {
+                stmt.setString(i + 1, value.toString());
+            }
+        }
     }
 
     public boolean executeUpdate(String sql, String[] arg) {
+        return executeUpdate(sql, (Object[]) arg);
+    }
 
-        try {
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            if (arg != null) {
-                for (int i = 0; i < arg.length; i++) {
-                    stmt.setString(i + 1, arg[i]);
-                }
+    public boolean executeUpdate(final String sql, final Object[] arg) {
+        if (writer != null) {
+            try {
+                writer.execute(new DbWriter.Operation<Void>() {
+                    @Override
+                    public Void run(Connection conn) throws SQLException {
+                        PreparedStatement stmt = getPreparedStatement(sql, arg);
+                        stmt.executeUpdate();
+                        stmt.close();
+                        return null;
+                    }
+                });
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
             }
+            return true;
+        }
+        lock.lock();
+        try {
+            PreparedStatement stmt = getPreparedStatement(sql, arg);
             stmt.executeUpdate();
             conn.commit();
             stmt.close();
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            lock.unlock();
         }
         return true;
     }
 
 
     public void close() {
+        if (writer != null) {
+            writer.stop();
+            writer = null;
+        }
+        if (readPool != null) {
+            readPool.close();
+            readPool = null;
+        }
         try {
+            if (statementCache != null) {
+                statementCache.clear();
+                statementCache = null;
+            }
             if (conn != null) {
                 conn.close();
                 conn = null;
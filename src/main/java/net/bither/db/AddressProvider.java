@@ -30,6 +30,7 @@ import net.bither.bitherj.db.IAddressProvider;
 import net.bither.bitherj.exception.AddressFormatException;
 import net.bither.bitherj.utils.Base58;
 import net.bither.bitherj.utils.Utils;
+import net.bither.utils.CheckUtil;
 
 import javax.annotation.Nullable;
 import java.sql.Connection;
@@ -40,6 +41,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 public class AddressProvider implements IAddressProvider {
 
@@ -66,7 +72,15 @@ public class AddressProvider implements IAddressProvider {
         return addressProvider;
     }
 
+    /**
+     * Told about every key changePassword has re-encrypted, from the thread that changes the password.
+     */
+    public interface ChangePasswordListener {
+        void onReEncrypted(int done, int total);
+    }
+
     private AddressDBHelper mDb;
+    private volatile ChangePasswordListener changePasswordListener;
 
 
     private AddressProvider(AddressDBHelper db) {
@@ -74,7 +88,7 @@ public class AddressProvider implements IAddressProvider {
     }
 
     @Override
-    public boolean changePassword(CharSequence oldPassword, CharSequence newPassword) {
+    public boolean changePassword(final CharSequence oldPassword, final CharSequence newPassword) {
         final HashMap<String, String> addressesPrivKeyHashMap = new HashMap<String, String>();
         String hdmEncryptPassword = null;
         PasswordSeed passwordSeed = null;
@@ -206,100 +220,175 @@ public class AddressProvider implements IAddressProvider {
             return false;
         }
 
-        for (Map.Entry<String, String> kv : addressesPrivKeyHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwdKeepFlag(kv.getValue(), oldPassword, newPassword));
+        // every key is re-encrypted before anything is written, so the old password stays valid until the commit
+        List<Callable<Boolean>> reEncryptions = new ArrayList<Callable<Boolean>>();
+        for (final Map.Entry<String, String> kv : addressesPrivKeyHashMap.entrySet()) {
+            reEncryptions.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    kv.setValue(EncryptedData.changePwdKeepFlag(kv.getValue(), oldPassword, newPassword));
+                    return true;
+                }
+            });
         }
+        final String[] hdmEncryptPasswords = new String[]{hdmEncryptPassword};
         if (hdmEncryptPassword != null) {
-            hdmEncryptPassword = EncryptedData.changePwd(hdmEncryptPassword, oldPassword, newPassword);
-        }
-        for (Map.Entry<Integer, String> kv : encryptMnemonicSeedHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
+            reEncryptions.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    hdmEncryptPasswords[0] = EncryptedData.changePwd(hdmEncryptPasswords[0], oldPassword, newPassword);
+                    return true;
+                }
+            });
         }
-        for (Map.Entry<Integer, String> kv : encryptHDSeedHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
+        addReEncryptions(reEncryptions, encryptMnemonicSeedHashMap, oldPassword, newPassword);
+        addReEncryptions(reEncryptions, encryptHDSeedHashMap, oldPassword, newPassword);
+        addReEncryptions(reEncryptions, singularModeBackupHashMap, oldPassword, newPassword);
+        addReEncryptions(reEncryptions, hdEncryptSeedHashMap, oldPassword, newPassword);
+        addReEncryptions(reEncryptions, hdEncryptMnemonicSeedHashMap, oldPassword, newPassword);
+        final PasswordSeed finalPasswordSeed = passwordSeed;
+        if (passwordSeed != null) {
+            reEncryptions.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return finalPasswordSeed.changePassword(oldPassword, newPassword);
+                }
+            });
         }
-
-        for (Map.Entry<Integer, String> kv : singularModeBackupHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
+        if (!reEncrypt(reEncryptions)) {
+            return false;
         }
 
-        for (Map.Entry<Integer, String> kv : hdEncryptSeedHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
-        }
-        for (Map.Entry<Integer, String> kv : hdEncryptMnemonicSeedHashMap.entrySet()) {
-            kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
-        }
-        if (passwordSeed != null) {
-            boolean result = passwordSeed.changePassword(oldPassword, newPassword);
-            if (!result) {
-                return false;
-            }
-        }
-        final String finalHdmEncryptPassword = hdmEncryptPassword;
-        final PasswordSeed finalPasswordSeed = passwordSeed;
+        final String finalHdmEncryptPassword = hdmEncryptPasswords[0];
+        this.mDb.getLock().lock();
         try {
-
-            this.mDb.getConn().setAutoCommit(false);
-            String sql = "update addresses set encrypt_private_key=? where  address=? ";
-            for (Map.Entry<String, String> kv : addressesPrivKeyHashMap.entrySet()) {
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
-                stmt.setString(1, kv.getValue());
-                stmt.setString(2, kv.getKey());
-                stmt.executeUpdate();
-                stmt.close();
-            }
-            sql = "update hdm_bid set encrypt_bither_password=?  ";
-            if (finalHdmEncryptPassword != null) {
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
-                stmt.setString(1, finalHdmEncryptPassword);
-                stmt.executeUpdate();
+            Connection conn = this.mDb.getConn();
+            try {
+                conn.setAutoCommit(false);
+                String sql = "update addresses set encrypt_private_key=? where  address=? ";
+                PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
+                for (Map.Entry<String, String> kv : addressesPrivKeyHashMap.entrySet()) {
+                    stmt.setString(1, kv.getValue());
+                    stmt.setString(2, kv.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
                 stmt.close();
+                sql = "update hdm_bid set encrypt_bither_password=?  ";
+                if (finalHdmEncryptPassword != null) {
+                    stmt = this.mDb.getPreparedStatement(sql, null);
+                    stmt.setString(1, finalHdmEncryptPassword);
+                    stmt.executeUpdate();
+                    stmt.close();
 
-            }
-            sql = "update hd_seeds set encrypt_seed=? %s %s where  hd_seed_id=? ";
-            for (Map.Entry<Integer, String> kv : encryptMnemonicSeedHashMap.entrySet()) {
-                String singularModeBackupStr = "";
-                if (singularModeBackupHashMap.containsKey(kv.getKey())) {
-                    singularModeBackupStr = ",singular_mode_backup='" + singularModeBackupHashMap.get(kv.getKey()) + "'";
                 }
-                if (encryptHDSeedHashMap.containsKey(kv.getKey())) {
-                    sql = Utils.format(sql, ",encrypt_hd_seed='" + encryptHDSeedHashMap.get(kv.getKey()) + "'", singularModeBackupStr);
+                // a seed without an hd seed or a singular mode backup keeps the stored value
+                sql = "update hd_seeds set encrypt_seed=?,encrypt_hd_seed=ifnull(?,encrypt_hd_seed)," +
+                        "singular_mode_backup=ifnull(?,singular_mode_backup) where  hd_seed_id=? ";
+                for (Map.Entry<Integer, String> kv : encryptMnemonicSeedHashMap.entrySet()) {
+                    stmt = this.mDb.getPreparedStatement(sql, null);
+                    stmt.setString(1, kv.getValue());
+                    stmt.setString(2, encryptHDSeedHashMap.get(kv.getKey()));
+                    stmt.setString(3, singularModeBackupHashMap.get(kv.getKey()));
+                    stmt.setString(4, kv.getKey().toString());
+
+                    stmt.executeUpdate();
+                    stmt.close();
                 }
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
-                stmt.setString(1, kv.getValue());
-                stmt.setString(2, kv.getKey().toString());
 
-                stmt.executeUpdate();
-                stmt.close();
-            }
+                sql = "update hd_account set encrypt_mnemonic_seed=?,encrypt_seed=?  where  hd_account_id=? ";
+
+                for (Map.Entry<Integer, String> kv : hdEncryptMnemonicSeedHashMap.entrySet()) {
 
-            sql = "update hd_account set encrypt_mnemonic_seed=?,encrypt_seed=?  where  hd_account_id=? ";
+                    stmt = this.mDb.getPreparedStatement(sql, null);
+                    stmt.setString(1, kv.getValue());
+                    stmt.setString(2, hdEncryptSeedHashMap.get(kv.getKey()));
+                    stmt.setString(3, kv.getKey().toString());
 
-            for (Map.Entry<Integer, String> kv : hdEncryptMnemonicSeedHashMap.entrySet()) {
 
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
-                stmt.setString(1, kv.getValue());
-                stmt.setString(2, hdEncryptSeedHashMap.get(kv.getKey()));
-                stmt.setString(3, kv.getKey().toString());
+                    stmt.executeUpdate();
+                    stmt.close();
+                }
+                if (finalPasswordSeed != null) {
+                    sql = "update password_seed set password_seed=?  ";
+                    stmt = this.mDb.getPreparedStatement(sql, null);
+                    stmt.setString(1, finalPasswordSeed.toPasswordSeedString());
+                    stmt.executeUpdate();
+                    stmt.close();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                // nothing of a failed change may reach a later commit
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackException) {
+                    rollbackException.printStackTrace();
+                }
+                return false;
+            }
+        } finally {
+            this.mDb.getLock().unlock();
+        }
 
+        return true;
+    }
 
-                stmt.executeUpdate();
-                stmt.close();
+    public void setChangePasswordListener(ChangePasswordListener listener) {
+        this.changePasswordListener = listener;
+    }
+
+    private static void addReEncryptions(List<Callable<Boolean>> reEncryptions, Map<Integer, String> encrypted,
+                                         final CharSequence oldPassword, final CharSequence newPassword) {
+        for (final Map.Entry<Integer, String> kv : encrypted.entrySet()) {
+            reEncryptions.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    kv.setValue(EncryptedData.changePwd(kv.getValue(), oldPassword, newPassword));
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the scrypt heavy re-encryptions on the re-encrypt threads of CheckUtil,
+     * and stops at the first one that fails.
+     */
+    private boolean reEncrypt(List<Callable<Boolean>> reEncryptions) {
+        int total = reEncryptions.size();
+        if (total == 0) {
+            return true;
+        }
+        CompletionService<Boolean> completionService =
+                new ExecutorCompletionService<Boolean>(CheckUtil.getReEncryptExecutor());
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(total);
+        try {
+            for (Callable<Boolean> reEncryption : reEncryptions) {
+                futures.add(completionService.submit(reEncryption));
             }
-            if (finalPasswordSeed != null) {
-                sql = "update password_seed set password_seed=?  ";
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
-                stmt.setString(1, finalPasswordSeed.toPasswordSeedString());
-                stmt.executeUpdate();
-                stmt.close();
+            for (int done = 1; done <= total; done++) {
+                if (!completionService.take().get()) {
+                    return false;
+                }
+                ChangePasswordListener listener = changePasswordListener;
+                if (listener != null) {
+                    listener.onReEncrypted(done, total);
+                }
             }
-            this.mDb.getConn().commit();
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return false;
+        } finally {
+            // what has not started yet is dropped once one failed
+            for (Future<Boolean> future : futures) {
+                future.cancel(false);
+            }
         }
-
-        return true;
     }
 
     @Override
@@ -336,7 +425,7 @@ public class AddressProvider implements IAddressProvider {
 
 
     private boolean hasPasswordSeed(Connection conn) throws SQLException {
-        PreparedStatement stmt = conn.prepareStatement("select  count(0) cnt from password_seed  where  password_seed is not null ");
+        PreparedStatement stmt = this.mDb.getPreparedStatement("select  count(0) cnt from password_seed  where  password_seed is not null ", null);
         ResultSet c = stmt.executeQuery();
         int count = 0;
         try {
@@ -476,10 +565,11 @@ public class AddressProvider implements IAddressProvider {
     @Override
     public int addHDKey(final String encryptedMnemonicSeed, final String encryptHdSeed, final String firstAddress, final boolean isXrandom, final String addressOfPS) {
         int result = 0;
+        this.mDb.getLock().lock();
         try {
             this.mDb.getConn().setAutoCommit(false);
             String[] params = new String[]{encryptedMnemonicSeed, encryptHdSeed, Integer.toString(isXrandom ? 1 : 0), firstAddress};
-            PreparedStatement stmt = this.mDb.getConn().prepareStatement(insertHDSeedSql);
+            PreparedStatement stmt = this.mDb.getPreparedStatement(insertHDSeedSql, null);
             if (params != null) {
                 for (int i = 0; i < params.length; i++) {
                     stmt.setString(i + 1, params[i]);
@@ -506,6 +596,8 @@ public class AddressProvider implements IAddressProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
         return result;
     }
@@ -564,38 +656,43 @@ public class AddressProvider implements IAddressProvider {
         } catch (Exception ex) {
             ex.printStackTrace();
         }
-        if (!isExist) {
-            try {
-                this.mDb.getConn().setAutoCommit(false);
-                String encryptedBitherPasswordString = bitherId.getEncryptedBitherPasswordString();
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(insertHDMBidSql);
-                stmt.setString(1, bitherId.getAddress());
-                stmt.setString(2, encryptedBitherPasswordString);
-                stmt.executeUpdate();
-                if (!hasPasswordSeed(this.mDb.getConn()) && !Utils.isEmpty(addressOfPS)) {
-                    addPasswordSeed(this.mDb.getConn(), new PasswordSeed(addressOfPS, encryptedBitherPasswordString));
+        this.mDb.getLock().lock();
+        try {
+            if (!isExist) {
+                try {
+                    this.mDb.getConn().setAutoCommit(false);
+                    String encryptedBitherPasswordString = bitherId.getEncryptedBitherPasswordString();
+                    PreparedStatement stmt = this.mDb.getPreparedStatement(insertHDMBidSql, null);
+                    stmt.setString(1, bitherId.getAddress());
+                    stmt.setString(2, encryptedBitherPasswordString);
+                    stmt.executeUpdate();
+                    if (!hasPasswordSeed(this.mDb.getConn()) && !Utils.isEmpty(addressOfPS)) {
+                        addPasswordSeed(this.mDb.getConn(), new PasswordSeed(addressOfPS, encryptedBitherPasswordString));
+                    }
+                    this.mDb.getConn().commit();
+                    stmt.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
                 }
-                this.mDb.getConn().commit();
-                stmt.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        } else {
-            try {
-                this.mDb.getConn().setAutoCommit(false);
-                String encryptedBitherPasswordString = bitherId.getEncryptedBitherPasswordString();
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(updateHDMBidSql);
-                stmt.setString(1, encryptedBitherPasswordString);
-                stmt.setString(2, bitherId.getAddress());
-                stmt.executeUpdate();
-                if (!hasPasswordSeed(this.mDb.getConn()) && !Utils.isEmpty(addressOfPS)) {
-                    addPasswordSeed(this.mDb.getConn(), new PasswordSeed(addressOfPS, encryptedBitherPasswordString));
+            } else {
+                try {
+                    this.mDb.getConn().setAutoCommit(false);
+                    String encryptedBitherPasswordString = bitherId.getEncryptedBitherPasswordString();
+                    PreparedStatement stmt = this.mDb.getPreparedStatement(updateHDMBidSql, null);
+                    stmt.setString(1, encryptedBitherPasswordString);
+                    stmt.setString(2, bitherId.getAddress());
+                    stmt.executeUpdate();
+                    if (!hasPasswordSeed(this.mDb.getConn()) && !Utils.isEmpty(addressOfPS)) {
+                        addPasswordSeed(this.mDb.getConn(), new PasswordSeed(addressOfPS, encryptedBitherPasswordString));
+                    }
+                    this.mDb.getConn().commit();
+                    stmt.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
                 }
-                this.mDb.getConn().commit();
-                stmt.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
             }
+        } finally {
+            this.mDb.getLock().unlock();
         }
     }
 
@@ -634,7 +731,7 @@ public class AddressProvider implements IAddressProvider {
         try {
             for (HDMAddress.Pubs pubs : pubsList) {
                 String sql = "select count(0) cnt from hdm_addresses where hd_seed_id=? and hd_seed_index=?";
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+                PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
                 stmt.setString(1, Integer.toString(hdSeedId));
                 stmt.setString(2, Integer.toString(pubs.index));
                 ResultSet rs = stmt.executeQuery();
@@ -651,6 +748,7 @@ public class AddressProvider implements IAddressProvider {
             ex.printStackTrace();
             isExist = true;
         }
+        this.mDb.getLock().lock();
         try {
             if (!isExist) {
                 this.mDb.getConn().setAutoCommit(false);
@@ -663,6 +761,8 @@ public class AddressProvider implements IAddressProvider {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
 
     }
@@ -747,6 +847,7 @@ public class AddressProvider implements IAddressProvider {
 
     @Override
     public void completeHDMAddresses(final int hdSeedId, final List<HDMAddress> addresses) {
+        this.mDb.getLock().lock();
         try {
             boolean isExist = true;
             ResultSet c = null;
@@ -754,7 +855,7 @@ public class AddressProvider implements IAddressProvider {
                 for (HDMAddress address : addresses) {
                     String sql = "select count(0) cnt from hdm_addresses " +
                             "where hd_seed_id=? and hd_seed_index=? and address is null";
-                    PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+                    PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
                     stmt.setString(1, Integer.toString(hdSeedId));
                     stmt.setString(2, Integer.toString(address.getIndex()));
                     c = stmt.executeQuery();
@@ -779,7 +880,7 @@ public class AddressProvider implements IAddressProvider {
                 for (int i = 0; i < addresses.size(); i++) {
                     HDMAddress address = addresses.get(i);
                     String sql = "update hdm_addresses set pub_key_remote=?,address=? where hd_seed_id=? and hd_seed_index=?";
-                    PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+                    PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
                     stmt.setString(1, Base58.encode(address.getPubRemote()));
                     stmt.setString(2, address.getAddress());
                     stmt.setString(3, Integer.toString(hdSeedId));
@@ -791,18 +892,21 @@ public class AddressProvider implements IAddressProvider {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
 
     }
 
     public void setHDMPubsRemote(final int hdSeedId, final int index, final byte[] remote) {
+        this.mDb.getLock().lock();
         try {
             boolean isExist = true;
             ResultSet c = null;
             try {
                 String sql = "select count(0) cnt from hdm_addresses " +
                         "where hd_seed_id=? and hd_seed_index=? and address is null";
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+                PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
                 stmt.setString(1, Integer.toString(hdSeedId));
 
                 c = stmt.executeQuery();
@@ -824,7 +928,7 @@ public class AddressProvider implements IAddressProvider {
             }
             if (isExist) {
                 String sql = "update hdm_addresses set pub_key_remote=? where hd_seed_id=? and hd_seed_index=?";
-                PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+                PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
                 stmt.setString(1, Base58.encode(remote));
                 stmt.setString(2, Integer.toString(hdSeedId));
                 stmt.setString(3, Integer.toString(index));
@@ -834,6 +938,8 @@ public class AddressProvider implements IAddressProvider {
             this.mDb.getConn().commit();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
 
 
@@ -845,6 +951,7 @@ public class AddressProvider implements IAddressProvider {
 
     @Override
     public void recoverHDMAddresses(final int hdSeedId, final List<HDMAddress> addresses) {
+        this.mDb.getLock().lock();
         try {
             this.mDb.getConn().setAutoCommit(false);
             for (int i = 0; i < addresses.size(); i++) {
@@ -857,6 +964,8 @@ public class AddressProvider implements IAddressProvider {
             this.mDb.getConn().commit();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
     }
 
@@ -918,12 +1027,13 @@ public class AddressProvider implements IAddressProvider {
 
     @Override
     public void addAddress(final Address address) {
+        this.mDb.getLock().lock();
         try {
 
             this.mDb.getConn().setAutoCommit(false);
             String[] params = new String[]{address.getAddress(), address.hasPrivKey() ? address.getEncryptPrivKeyOfDb() : null, Base58.encode(address.getPubKey()),
                     Integer.toString(address.isFromXRandom() ? 1 : 0), Integer.toString(address.isSyncComplete() ? 1 : 0), Integer.toString(address.isTrashed() ? 1 : 0), Long.toString(address.getSortTime())};
-            PreparedStatement stmt = this.mDb.getConn().prepareStatement(insertAddressSql);
+            PreparedStatement stmt = this.mDb.getPreparedStatement(insertAddressSql, null);
             if (params != null) {
                 for (int i = 0; i < params.length; i++) {
                     stmt.setString(i + 1, params[i]);
@@ -940,6 +1050,8 @@ public class AddressProvider implements IAddressProvider {
             stmt.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
     }
 
@@ -1141,6 +1253,7 @@ public class AddressProvider implements IAddressProvider {
                             String firstAddress, boolean isXrandom, String addressOfPS,
                             byte[] externalPub, byte[] internalPub) {
         int result = 0;
+        this.mDb.getLock().lock();
         try {
 
             String[] params = new String[]{encryptedMnemonicSeed, encryptSeed, firstAddress, Base58.encode(externalPub)
@@ -1151,7 +1264,7 @@ public class AddressProvider implements IAddressProvider {
 
             this.mDb.getConn().setAutoCommit(false);
 
-            PreparedStatement stmt = this.mDb.getConn().prepareStatement(sql);
+            PreparedStatement stmt = this.mDb.getPreparedStatement(sql, null);
             if (params != null) {
                 for (int i = 0; i < params.length; i++) {
                     stmt.setString(i + 1, params[i]);
@@ -1177,6 +1290,8 @@ public class AddressProvider implements IAddressProvider {
             stmt.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.mDb.getLock().unlock();
         }
         return result;
 
@@ -1344,7 +1459,7 @@ public class AddressProvider implements IAddressProvider {
     }
 
     public void addPasswordSeed(Connection conn, PasswordSeed passwordSeed) throws SQLException {
-        PreparedStatement stmt = conn.prepareStatement("insert into password_seed (password_seed)  values (?)");
+        PreparedStatement stmt = this.mDb.getPreparedStatement("insert into password_seed (password_seed)  values (?)", null);
         stmt.setString(1, passwordSeed.toPasswordSeedString());
         stmt.executeUpdate();
         stmt.close();
@@ -1458,7 +1573,7 @@ public class AddressProvider implements IAddressProvider {
 
     private void applyHDMAddressContentValues(Connection conn, String address, int hdSeedId, int index, byte[] pubKeysHot,
                                               byte[] pubKeysCold, byte[] pubKeysRemote, boolean isSynced) throws SQLException {
-        PreparedStatement stmt = conn.prepareStatement(insertHDMAddressSql);
+        PreparedStatement stmt = this.mDb.getPreparedStatement(insertHDMAddressSql, null);
         stmt.setString(1, Integer.toString(hdSeedId));
         stmt.setString(2, Integer.toString(index));
         stmt.setString(3, Base58.encode(pubKeysHot));
@@ -0,0 +1,288 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.core.Block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory copy of the blocks table. Headers are kept in an open addressing
+ * table keyed by a long folded from the block hash, and the main chain near the
+ * tip is also kept by height in a ring buffer as big as the window pruneOldBlocks
+ * keeps. BlockProvider updates it after each successful write, so it always
+ * mirrors the table.
+ */
+public class BlockHeaderIndex {
+
+    // pruneOldBlocks keeps at least one full difficulty interval below the tip, at most two
+    public static final int TIP_WINDOW = BitherjSettings.BLOCK_DIFFICULTY_INTERVAL * 2;
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /**
+     * A stored header without the tx list and cached fields of Block.
+     */
+    public static final class Header {
+        final byte[] blockHash;
+        final byte[] blockPrev;
+        final byte[] blockRoot;
+        final long blockVer;
+        final long blockBits;
+        final long blockNonce;
+        final int blockTime;
+        final int blockNo;
+        boolean isMain;
+
+        Header(Block block) {
+            this.blockHash = block.getBlockHash();
+            this.blockPrev = block.getBlockPrev();
+            this.blockRoot = block.getBlockRoot();
+            this.blockVer = block.getBlockVer();
+            this.blockBits = block.getBlockBits();
+            this.blockNonce = block.getBlockNonce();
+            this.blockTime = block.getBlockTime();
+            this.blockNo = block.getBlockNo();
+            this.isMain = block.isMain();
+        }
+
+        Block toBlock() {
+            return new Block(blockHash, blockVer, blockPrev, blockRoot, blockTime, blockBits,
+                    blockNonce, blockNo, isMain);
+        }
+    }
+
+    private long[] keys;
+    private Header[] headers;
+    private int size = 0;
+
+    private final Header[] mainChain = new Header[TIP_WINDOW];
+    private Header tip;
+    private final List<Header> orphans = new ArrayList<Header>();
+
+    public BlockHeaderIndex() {
+        keys = new long[INITIAL_CAPACITY];
+        headers = new Header[INITIAL_CAPACITY];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean contains(byte[] blockHash) {
+        return find(blockHash) >= 0;
+    }
+
+    public synchronized Block getBlock(byte[] blockHash) {
+        int slot = find(blockHash);
+        return slot < 0 ? null : headers[slot].toBlock();
+    }
+
+    public synchronized Block getMainChainBlock(byte[] blockHash) {
+        int slot = find(blockHash);
+        return slot < 0 || !headers[slot].isMain ? null : headers[slot].toBlock();
+    }
+
+    public synchronized Block getMainChainBlock(int blockNo) {
+        Header header = mainChain[blockNo % TIP_WINDOW];
+        return header == null || header.blockNo != blockNo ? null : header.toBlock();
+    }
+
+    public synchronized Block getLastBlock() {
+        return tip == null ? null : tip.toBlock();
+    }
+
+    public synchronized Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        for (Header header : orphans) {
+            if (Arrays.equals(header.blockPrev, prevHash)) {
+                return header.toBlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ignores a block that is already indexed, as insert or ignore does.
+     */
+    public synchronized void add(Block block) {
+        if (find(block.getBlockHash()) >= 0) {
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        Header header = new Header(block);
+        long key = keyOf(header.blockHash);
+        int slot = slotOf(key, keys.length);
+        while (headers[slot] != null) {
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        keys[slot] = key;
+        headers[slot] = header;
+        size++;
+        link(header);
+    }
+
+    public synchronized void setMain(byte[] blockHash, boolean isMain) {
+        int slot = find(blockHash);
+        if (slot < 0 || headers[slot].isMain == isMain) {
+            return;
+        }
+        Header header = headers[slot];
+        unlink(header);
+        header.isMain = isMain;
+        link(header);
+    }
+
+    public synchronized void remove(byte[] blockHash) {
+        int slot = find(blockHash);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Mirrors "delete from blocks where block_no<?".
+     */
+    public synchronized void removeBelow(int blockNo) {
+        int slot = 0;
+        while (slot < headers.length) {
+            if (headers[slot] != null && headers[slot].blockNo < blockNo) {
+                // backward shifting may move an unchecked header into this slot, check it again
+                removeSlot(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    private void link(Header header) {
+        if (!header.isMain) {
+            orphans.add(header);
+            return;
+        }
+        int ringSlot = header.blockNo % TIP_WINDOW;
+        if (mainChain[ringSlot] == null || mainChain[ringSlot].blockNo <= header.blockNo) {
+            mainChain[ringSlot] = header;
+        }
+        if (tip == null || header.blockNo >= tip.blockNo) {
+            tip = header;
+        }
+    }
+
+    private void unlink(Header header) {
+        if (!header.isMain) {
+            orphans.remove(header);
+            return;
+        }
+        int ringSlot = header.blockNo % TIP_WINDOW;
+        if (mainChain[ringSlot] == header) {
+            mainChain[ringSlot] = null;
+        }
+        if (tip == header) {
+            tip = findTipBelow(header.blockNo);
+        }
+    }
+
+    private Header findTipBelow(int blockNo) {
+        for (int no = blockNo - 1; no > blockNo - TIP_WINDOW && no >= 0; no--) {
+            Header header = mainChain[no % TIP_WINDOW];
+            if (header != null && header.blockNo == no) {
+                return header;
+            }
+        }
+        // the window is empty, fall back to a scan of the whole index
+        Header best = null;
+        for (Header header : headers) {
+            if (header != null && header.isMain && (best == null || header.blockNo > best.blockNo)) {
+                best = header;
+            }
+        }
+        return best;
+    }
+
+    private int find(byte[] blockHash) {
+        if (blockHash == null) {
+            return -1;
+        }
+        long key = keyOf(blockHash);
+        int slot = slotOf(key, keys.length);
+        while (headers[slot] != null) {
+            if (keys[slot] == key && Arrays.equals(headers[slot].blockHash, blockHash)) {
+                return slot;
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    private void removeSlot(int slot) {
+        unlink(headers[slot]);
+        headers[slot] = null;
+        size--;
+        // backward shift deletion keeps every probe sequence free of holes
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (headers[next] != null) {
+            int home = slotOf(keys[next], keys.length);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                headers[hole] = headers[next];
+                headers[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Header[] oldHeaders = headers;
+        keys = new long[capacity];
+        headers = new Header[capacity];
+        for (int i = 0; i < oldHeaders.length; i++) {
+            if (oldHeaders[i] != null) {
+                int slot = slotOf(oldKeys[i], capacity);
+                while (headers[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = oldKeys[i];
+                headers[slot] = oldHeaders[i];
+            }
+        }
+    }
+
+    private static long keyOf(byte[] hash) {
+        // block hashes start or end with zero bytes depending on byte order, fold all of them
+        long key = 0;
+        for (int i = 0; i < hash.length; i++) {
+            key = key * 31 + (hash[i] & 0xff);
+        }
+        return key;
+    }
+
+    private static int slotOf(long key, int capacity) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (capacity - 1);
+    }
+}
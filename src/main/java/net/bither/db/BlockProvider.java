@@ -22,22 +22,28 @@ import net.bither.bitherj.core.Block;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.IBlockProvider;
 import net.bither.bitherj.exception.AddressFormatException;
-import net.bither.bitherj.utils.Base58;
+import net.bither.utils.HeapTelemetry;
 import net.bither.utils.LogUtil;
 import net.bither.utils.StringUtil;
-import net.bither.utils.SystemUtil;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class BlockProvider implements IBlockProvider {
+    static final String lastMainBlockSql = "select * from blocks where is_main=1 order by block_no desc limit 1";
+    // the + keeps sqlite on the block_prev index instead of the is_main one
+    static final String orphanBlockByPrevSql = "select * from blocks where block_prev=? and +is_main=0";
     private static final String insertBlockSql = "insert into blocks " +
             "(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main)" +
             " values (?,?,?,?,?,?,?,?,?) ";
+    // block_hash is the primary key, headers we already have are skipped by the db
+    private static final String insertOrIgnoreBlockSql = "insert or ignore into blocks " +
+            "(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main)" +
+            " values (?,?,?,?,?,?,?,?,?) ";
 
     private static BlockProvider blockProvider = new BlockProvider(ApplicationInstanceManager.txDBHelper);
 
@@ -47,16 +53,58 @@ public class BlockProvider implements IBlockProvider {
 
     private TxDBHelper mDb;
 
+    private long addedHeaderCount = 0;
+    private long addHeadersCostMillis = 0;
+
+    private BlockHeaderIndex headerIndex;
+
 
     private BlockProvider(TxDBHelper db) {
         this.mDb = db;
     }
 
+    /**
+     * Loads the blocks table into memory on first use. Returns null when it can not
+     * be read, callers then query the table.
+     */
+    private synchronized BlockHeaderIndex getHeaderIndex() {
+        if (headerIndex != null) {
+            return headerIndex;
+        }
+        BlockHeaderIndex index = new BlockHeaderIndex();
+        ReadSession session = null;
+        try {
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select * from blocks", null);
+            ResultSet c = statement.executeQuery();
+            while (c.next()) {
+                index.add(applyCursor(c));
+            }
+            c.close();
+            statement.close();
+        } catch (AddressFormatException e) {
+            e.printStackTrace();
+            return null;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        LogUtil.printlnOut("header index loaded: " + index.size());
+        headerIndex = index;
+        return headerIndex;
+    }
+
     public List<Block> getAllBlocks() {
         List<Block> blockItems = new ArrayList<Block>();
         String sql = "select * from blocks order by block_no desc";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 blockItems.add(applyCursor(c));
@@ -67,6 +115,10 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return blockItems;
     }
@@ -77,8 +129,10 @@ public class BlockProvider implements IBlockProvider {
         String sql = "select * from blocks order by block_no desc  limit ?";
 
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(limit)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{Integer.toString(limit)});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 blockItems.add(applyCursor(c));
@@ -89,6 +143,10 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return blockItems;
     }
@@ -96,8 +154,10 @@ public class BlockProvider implements IBlockProvider {
     public List<Block> getBlocksFrom(int blockNo) {
         List<Block> blockItems = new ArrayList<Block>();
         String sql = "select * from blocks where block_no>? order by block_no desc";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(blockNo)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{Integer.toString(blockNo)});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 blockItems.add(applyCursor(c));
@@ -108,16 +168,25 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        System.gc();
         return blockItems;
     }
 
     public int getBlockCount() {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.size();
+        }
         String sql = "select count(*) cnt from blocks ";
         int count = 0;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
@@ -129,16 +198,26 @@ public class BlockProvider implements IBlockProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return count;
     }
 
     public Block getLastBlock() {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getLastBlock();
+        }
         Block item = null;
-        String sql = "select * from blocks where is_main=1 order by block_no desc limit 1";
+        String sql = lastMainBlockSql;
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 item = applyCursor(c);
@@ -150,6 +229,9 @@ public class BlockProvider implements IBlockProvider {
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
+            if (session != null) {
+                session.close();
+            }
 
         }
 
@@ -159,8 +241,10 @@ public class BlockProvider implements IBlockProvider {
     public Block getLastOrphanBlock() {
         Block item = null;
         String sql = "select * from blocks where is_main=0 order by block_no desc limit 1";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 item = applyCursor(c);
@@ -171,15 +255,25 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return item;
     }
 
     public Block getBlock(byte[] blockHash) {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getBlock(blockHash);
+        }
         Block item = null;
         String sql = "select * from blocks where block_hash=?";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(blockHash)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{blockHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 item = applyCursor(c);
@@ -190,15 +284,25 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (AddressFormatException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return item;
     }
 
     public Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getOrphanBlockByPrevHash(prevHash);
+        }
         Block item = null;
-        String sql = "select * from blocks where block_prev=? and is_main=0";
+        String sql = orphanBlockByPrevSql;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(prevHash)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{prevHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 item = applyCursor(c);
@@ -209,16 +313,26 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return item;
     }
 
     public Block getMainChainBlock(byte[] blockHash) {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getMainChainBlock(blockHash);
+        }
         Block item = null;
         String sql = "select * from blocks where block_hash=? and is_main=1";
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(blockHash)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{blockHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 item = applyCursor(c);
@@ -229,30 +343,61 @@ public class BlockProvider implements IBlockProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return item;
     }
 
     public List<byte[]> exists(List<byte[]> blockHashes) {
         List<byte[]> exists = new ArrayList<byte[]>();
-        List<Block> blockItems = getAllBlocks();
-        for (Block blockItm : blockItems) {
-            for (byte[] bytes : exists) {
-                if (Arrays.equals(bytes, blockItm.getBlockHash())) {
-                    exists.add(bytes);
-                    break;
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            for (byte[] blockHash : blockHashes) {
+                if (index.contains(blockHash)) {
+                    exists.add(blockHash);
                 }
             }
+            return exists;
+        }
+        String sql = "select count(0) cnt from blocks where block_hash=?";
+        ReadSession session = null;
+        try {
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
+            for (byte[] blockHash : blockHashes) {
+                statement.setBytes(1, blockHash);
+                ResultSet c = statement.executeQuery();
+                if (c.next() && c.getInt(1) > 0) {
+                    exists.add(blockHash);
+                }
+                c.close();
+            }
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return exists;
     }
 
     public boolean isExist(byte[] blockHash) {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.contains(blockHash);
+        }
         boolean result = false;
         String sql = "select count(0) cnt from blocks where block_hash=?";
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(blockHash)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{blockHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
@@ -264,63 +409,111 @@ public class BlockProvider implements IBlockProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
 
-    public void addBlocks(List<Block> blockItemList) {
-        final List<Block> addBlockList = new ArrayList<Block>();
-        List<Block> allBlockList = getAllBlocks();
-        for (Block item : blockItemList) {
-            if (!allBlockList.contains(item)) {
-                addBlockList.add(item);
-            }
+    public void addBlocks(final List<Block> blockItemList) {
+        if (blockItemList == null || blockItemList.size() == 0) {
+            return;
         }
-        allBlockList.clear();
+        long begin = System.currentTimeMillis();
+        int addCount;
         try {
-            this.mDb.getConn().setAutoCommit(false);
-            for (Block item : addBlockList) {
-                PreparedStatement preparedStatement = this.mDb.getConn().prepareStatement(insertBlockSql);
-                preparedStatement.setInt(1, item.getBlockNo());
-                preparedStatement.setString(2, Base58.encode(item.getBlockHash()));
-                preparedStatement.setString(3, Base58.encode(item.getBlockRoot()));
-                preparedStatement.setLong(4, item.getBlockVer());
-                preparedStatement.setLong(5, item.getBlockBits());
-                preparedStatement.setLong(6, item.getBlockNonce());
-                preparedStatement.setInt(7, item.getBlockTime());
-                preparedStatement.setString(8, Base58.encode(item.getBlockPrev()));
-                preparedStatement.setInt(9, item.isMain() ? 1 : 0);
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-            }
-            this.mDb.getConn().commit();
+            addCount = this.mDb.getWriter().execute(new DbWriter.Operation<Integer>() {
+                @Override
+                public Integer run(Connection conn) throws SQLException {
+                    // only marks the writer thread as syncing headers, the telemetry thread samples it
+                    long token = HeapTelemetry.getInstance().begin(HeapTelemetry.Phase.HeaderSync);
+                    try {
+                        int count = 0;
+                        PreparedStatement preparedStatement = mDb.getPreparedStatement(insertOrIgnoreBlockSql, null);
+                        for (Block item : blockItemList) {
+                            preparedStatement.setInt(1, item.getBlockNo());
+                            preparedStatement.setBytes(2, item.getBlockHash());
+                            preparedStatement.setBytes(3, item.getBlockRoot());
+                            preparedStatement.setLong(4, item.getBlockVer());
+                            preparedStatement.setLong(5, item.getBlockBits());
+                            preparedStatement.setLong(6, item.getBlockNonce());
+                            preparedStatement.setInt(7, item.getBlockTime());
+                            preparedStatement.setBytes(8, item.getBlockPrev());
+                            preparedStatement.setInt(9, item.isMain() ? 1 : 0);
+                            preparedStatement.addBatch();
+                        }
+                        for (int updated : preparedStatement.executeBatch()) {
+                            if (updated > 0) {
+                                count += updated;
+                            }
+                        }
+                        preparedStatement.close();
+                        return count;
+                    } finally {
+                        HeapTelemetry.getInstance().end(HeapTelemetry.Phase.HeaderSync, token);
+                    }
+                }
+            });
+            BlockHeaderIndex index = getHeaderIndex();
+            if (index != null) {
+                for (Block item : blockItemList) {
+                    index.add(item);
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         }
-        LogUtil.printlnOut("addBlocks");
-        SystemUtil.callSystemGC();
+        long cost = System.currentTimeMillis() - begin;
+        synchronized (this) {
+            addedHeaderCount += addCount;
+            addHeadersCostMillis += cost;
+        }
+        LogUtil.printlnOut("addBlocks: " + addCount + "/" + blockItemList.size() + " headers in " + cost
+                + "ms, " + (blockItemList.size() * 1000 / Math.max(cost, 1)) + " headers/s");
+    }
 
+    /**
+     * headers written by addBlocks since start, with the time spent writing them
+     */
+    public synchronized long getAddedHeaderCount() {
+        return addedHeaderCount;
+    }
 
+    public synchronized double getHeadersPerSecond() {
+        return addHeadersCostMillis == 0 ? 0 : addedHeaderCount * 1000.0 / addHeadersCostMillis;
     }
 
     public void addBlock(Block item) {
         boolean blockExists = blockExists(item.getBlockHash());
         if (!blockExists) {
 
-            this.mDb.executeUpdate(insertBlockSql, new String[]{Integer.toString(item.getBlockNo()),
-                    Base58.encode(item.getBlockHash()), Base58.encode(item.getBlockRoot()), Long.toString(item.getBlockVer())
-                    , Long.toString(item.getBlockBits()), Long.toString(item.getBlockNonce()), Integer.toString(item.getBlockTime()), Base58.encode(item.getBlockPrev()), Integer.toString(item.isMain() ? 1 : 0)});
+            boolean success = this.mDb.executeUpdate(insertBlockSql, new Object[]{Integer.toString(item.getBlockNo()),
+                    item.getBlockHash(), item.getBlockRoot(), Long.toString(item.getBlockVer())
+                    , Long.toString(item.getBlockBits()), Long.toString(item.getBlockNonce()), Integer.toString(item.getBlockTime()), item.getBlockPrev(), Integer.toString(item.isMain() ? 1 : 0)});
+            BlockHeaderIndex index = getHeaderIndex();
+            if (success && index != null) {
+                index.add(item);
+            }
         }
         LogUtil.printlnOut("addBlock");
 
     }
 
     public boolean blockExists(byte[] blockHash) {
+        BlockHeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.contains(blockHash);
+        }
         String sql = "select count(0) cnt from blocks where block_hash=?";
 
         int cnt = 0;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(blockHash)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{blockHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
@@ -332,25 +525,50 @@ public class BlockProvider implements IBlockProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return cnt > 0;
     }
 
     public void updateBlock(byte[] blockHash, boolean isMain) {
-        this.mDb.executeUpdate("update blocks set is_main=? where block_hash=?",
-                new String[]{Integer.toString(isMain ? 1 : 0), Base58.encode(blockHash)});
+        boolean success = this.mDb.executeUpdate("update blocks set is_main=? where block_hash=?",
+                new Object[]{Integer.toString(isMain ? 1 : 0), blockHash});
+        BlockHeaderIndex index = getHeaderIndex();
+        if (success && index != null) {
+            index.setMain(blockHash, isMain);
+        }
     }
 
     public void removeBlock(byte[] blockHash) {
-        this.mDb.executeUpdate("delete from blocks where block_hash=?", new String[]{Base58.encode(blockHash)});
+        boolean success = this.mDb.executeUpdate("delete from blocks where block_hash=?", new Object[]{blockHash});
+        BlockHeaderIndex index = getHeaderIndex();
+        if (success && index != null) {
+            index.remove(blockHash);
+        }
     }
 
+    /**
+     * Leaves the pruning to the maintenance thread, which runs it when the db is idle.
+     */
     public void cleanOldBlock() {
+        DbMaintenance.getInstance().requestPrune();
+    }
+
+    /**
+     * Keeps one to two difficulty intervals of headers below the tip once there are more than 5000.
+     */
+    public void pruneOldBlocks() {
+        int cnt = 0;
+        int maxBlockNo = 0;
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select count(0) cnt from blocks";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
-            int cnt = 0;
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
                 if (idColumn != -1) {
@@ -361,9 +579,8 @@ public class BlockProvider implements IBlockProvider {
             statement.close();
             if (cnt > 5000) {
                 sql = "select max(block_no) max_block_no from blocks where is_main=1";
-                statement = this.mDb.getPreparedStatement(sql, null);
+                statement = session.getPreparedStatement(sql, null);
                 c = statement.executeQuery();
-                int maxBlockNo = 0;
                 if (c.next()) {
                     int idColumn = c.findColumn("max_block_no");
                     if (idColumn != -1) {
@@ -373,11 +590,22 @@ public class BlockProvider implements IBlockProvider {
                 }
                 c.close();
                 statement.close();
-                int blockNo = (maxBlockNo - BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) - maxBlockNo % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
-                this.mDb.executeUpdate("delete from blocks where block_no<?", new String[]{Integer.toString(blockNo)});
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        if (cnt > 5000) {
+            int blockNo = (maxBlockNo - BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) - maxBlockNo % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+            boolean success = this.mDb.executeUpdate("delete from blocks where block_no<?", new String[]{Integer.toString(blockNo)});
+            BlockHeaderIndex index = getHeaderIndex();
+            if (success && index != null) {
+                index.removeBelow(blockNo);
+            }
         }
     }
 
@@ -398,7 +626,7 @@ public class BlockProvider implements IBlockProvider {
         }
         idColumn = rs.findColumn(AbstractDb.BlocksColumns.BLOCK_HASH);
         if (idColumn != -1) {
-            blockHash = Base58.decode(rs.getString(idColumn));
+            blockHash = rs.getBytes(idColumn);
         }
         idColumn = rs.findColumn(AbstractDb.BlocksColumns.BLOCK_NO);
         if (idColumn != -1) {
@@ -410,11 +638,11 @@ public class BlockProvider implements IBlockProvider {
         }
         idColumn = rs.findColumn(AbstractDb.BlocksColumns.BLOCK_PREV);
         if (idColumn != -1) {
-            prevBlock = Base58.decode(rs.getString(idColumn));
+            prevBlock = rs.getBytes(idColumn);
         }
         idColumn = rs.findColumn(AbstractDb.BlocksColumns.BLOCK_ROOT);
         if (idColumn != -1) {
-            merkleRoot = Base58.decode(rs.getString(idColumn));
+            merkleRoot = rs.getBytes(idColumn);
         }
         idColumn = rs.findColumn(AbstractDb.BlocksColumns.BLOCK_TIME);
         if (idColumn != -1) {
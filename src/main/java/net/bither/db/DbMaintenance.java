@@ -0,0 +1,445 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.ApplicationInstanceManager;
+import net.bither.preference.UserPreference;
+import net.bither.utils.LogUtil;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Housekeeping of the tx and address dbs on a low priority thread: pruning
+ * old headers and peers, refreshing the planner statistics, handing free
+ * pages back to the file system and checking integrity. A job only starts
+ * once no statement went through a StatementCache for IDLE_MILLIS, so it
+ * stays out of the way of sync and the UI, and the vacuum waits again between
+ * chunks. What a job writes goes through the DbWriter of the db, queued with
+ * the other writes instead of holding the write lock against them, and what it
+ * only reads runs in a ReadSession. A new db is created with incremental auto
+ * vacuum, so the vacuum job frees pages a chunk at a time. An older db is
+ * switched over once by a full vacuum at an idle moment. Every run is logged
+ * with the db size before and after.
+ */
+public class DbMaintenance {
+
+    public enum Job {
+        Prune(60 * 60 * 1000L),
+        Analyze(24 * 60 * 60 * 1000L),
+        Vacuum(6 * 60 * 60 * 1000L),
+        IntegrityCheck(7 * 24 * 60 * 60 * 1000L);
+
+        private final long intervalMillis;
+
+        Job(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+    }
+
+    /**
+     * One job on one db.
+     */
+    public static final class Run {
+        private final Job job;
+        private final String dbName;
+        private final long time;
+        private final long sizeBefore;
+        private final long sizeAfter;
+        private final long millis;
+        private final String result;
+
+        private Run(Job job, String dbName, long time, long sizeBefore, long sizeAfter, long millis, String result) {
+            this.job = job;
+            this.dbName = dbName;
+            this.time = time;
+            this.sizeBefore = sizeBefore;
+            this.sizeAfter = sizeAfter;
+            this.millis = millis;
+            this.result = result;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        public String getDbName() {
+            return dbName;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getSizeBefore() {
+            return sizeBefore;
+        }
+
+        public long getSizeAfter() {
+            return sizeAfter;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "db maintenance " + job + " " + dbName + ": " + result + ", " + sizeBefore / 1024 + "KB -> "
+                    + sizeAfter / 1024 + "KB, " + millis + "ms";
+        }
+    }
+
+    public static final long START_DELAY_MILLIS = 5 * 60 * 1000;
+    public static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+    public static final long IDLE_MILLIS = 10 * 1000;
+
+    // pages freed per incremental vacuum step, 1MB with the default page size
+    private static final int VACUUM_CHUNK_PAGES = 1024;
+    // a full vacuum rewrites the file, only worth it when a quarter of it is free
+    private static final int FULL_VACUUM_FREE_DIVISOR = 4;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int MAX_HISTORY = 50;
+
+    private static DbMaintenance dbMaintenance = new DbMaintenance();
+
+    public static DbMaintenance getInstance() {
+        return dbMaintenance;
+    }
+
+    private final LinkedList<Run> history = new LinkedList<Run>();
+    private Thread worker;
+    private volatile boolean isStop = false;
+    private volatile boolean isPruneRequested = false;
+
+    private DbMaintenance() {
+    }
+
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(START_DELAY_MILLIS);
+                    while (!isStop) {
+                        for (Job job : Job.values()) {
+                            if (isDue(job)) {
+                                if (!waitForIdle()) {
+                                    return;
+                                }
+                                runJob(job);
+                            }
+                        }
+                        Thread.sleep(CHECK_INTERVAL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "DbMaintenance");
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Waits a few seconds for a running job, the dbs are closed right after.
+     */
+    public void stop() {
+        isStop = true;
+        Thread thread;
+        synchronized (this) {
+            thread = worker;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prunes headers and peers at the next idle moment.
+     */
+    public void requestPrune() {
+        isPruneRequested = true;
+    }
+
+    /**
+     * @return the latest runs, the newest first
+     */
+    public synchronized List<Run> getHistory() {
+        return new ArrayList<Run>(history);
+    }
+
+    private boolean isDue(Job job) {
+        if (job == Job.Prune && isPruneRequested) {
+            return true;
+        }
+        long last = UserPreference.getInstance().getDbMaintenanceTime(job.name());
+        return System.currentTimeMillis() - last >= job.getIntervalMillis();
+    }
+
+    private boolean waitForIdle() throws InterruptedException {
+        while (!isStop) {
+            long idle = System.currentTimeMillis() - StatementCache.getLastUseTime();
+            if (idle >= IDLE_MILLIS) {
+                return true;
+            }
+            Thread.sleep(IDLE_MILLIS - idle);
+        }
+        return false;
+    }
+
+    private void runJob(Job job) throws InterruptedException {
+        if (job == Job.Prune) {
+            isPruneRequested = false;
+            AbstractDBHelper db = ApplicationInstanceManager.txDBHelper;
+            long begin = System.currentTimeMillis();
+            long sizeBefore = db.getDbFileSize();
+            BlockProvider.getInstance().pruneOldBlocks();
+            PeerProvider.getInstance().prunePeers();
+            record(new Run(job, db.getDBName(), begin, sizeBefore, db.getDbFileSize(),
+                    System.currentTimeMillis() - begin, "ok"));
+        } else {
+            AbstractDBHelper[] dbs = new AbstractDBHelper[]{ApplicationInstanceManager.txDBHelper,
+                    ApplicationInstanceManager.addressDBHelper};
+            for (AbstractDBHelper db : dbs) {
+                if (isStop) {
+                    return;
+                }
+                runJob(job, db);
+            }
+        }
+        UserPreference.getInstance().setDbMaintenanceTime(job.name(), System.currentTimeMillis());
+    }
+
+    private void runJob(Job job, AbstractDBHelper db) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        long sizeBefore = db.getDbFileSize();
+        String result;
+        try {
+            if (job == Job.Analyze) {
+                write(db, new DbWriter.Operation<Void>() {
+                    @Override
+                    public Void run(Connection conn) throws SQLException {
+                        Statement stmt = conn.createStatement();
+                        stmt.executeUpdate("ANALYZE");
+                        // sqlite before 3.18 ignores pragmas it does not know
+                        stmt.execute("PRAGMA optimize");
+                        stmt.close();
+                        return null;
+                    }
+                });
+                result = "ok";
+            } else if (job == Job.Vacuum) {
+                result = vacuum(db);
+            } else {
+                result = integrityCheck(db);
+            }
+        } catch (SQLException e) {
+            // the job is tried again at its next interval
+            e.printStackTrace();
+            result = "failed: " + e.getMessage();
+        }
+        record(new Run(job, db.getDBName(), begin, sizeBefore, db.getDbFileSize(),
+                System.currentTimeMillis() - begin, result));
+    }
+
+    /**
+     * Asks for incremental auto vacuum before anything else touches the file. A
+     * new db is created with it, an existing one keeps its mode until the vacuum
+     * job converts it.
+     */
+    void enableIncrementalVacuum(Connection conn) {
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String vacuum(AbstractDBHelper db) throws SQLException, InterruptedException {
+        int freePages;
+        int pages;
+        boolean incremental;
+        ReadSession session = db.beginRead();
+        try {
+            Statement stmt = session.getConn().createStatement();
+            freePages = queryInt(stmt, "PRAGMA freelist_count");
+            pages = queryInt(stmt, "PRAGMA page_count");
+            incremental = queryInt(stmt, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+            stmt.close();
+        } finally {
+            session.close();
+        }
+        if (freePages == 0) {
+            return "nothing to free";
+        }
+        if (!incremental) {
+            if (isFullVacuumWorth(freePages, pages)) {
+                return convertToIncremental(db, freePages);
+            }
+            return freePages + " free pages, not worth a full vacuum";
+        }
+        int freed = 0;
+        while (freePages > 0 && !isStop) {
+            // one chunk per write, the writer runs other writes in between
+            int left = write(db, new DbWriter.Operation<Integer>() {
+                @Override
+                public Integer run(Connection conn) throws SQLException {
+                    Statement stmt = conn.createStatement();
+                    stmt.execute("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")");
+                    int left = queryInt(stmt, "PRAGMA freelist_count");
+                    stmt.close();
+                    return left;
+                }
+            });
+            if (left >= freePages) {
+                break;
+            }
+            freed += freePages - left;
+            freePages = left;
+            if (freePages > 0 && !waitForIdle()) {
+                break;
+            }
+        }
+        checkpoint(db);
+        return "freed " + freed + " pages";
+    }
+
+    /**
+     * The one full vacuum that switches an older db to incremental auto vacuum.
+     * It rewrites the file on a connection of its own while holding the lock of
+     * the db, so writes wait for it, readers of a WAL db do not.
+     */
+    private String convertToIncremental(AbstractDBHelper db, int freePages) throws SQLException {
+        ReentrantLock lock = db.getLock();
+        lock.lock();
+        try {
+            Connection conn = db.openConnection();
+            try {
+                Statement stmt = conn.createStatement();
+                stmt.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+                stmt.executeUpdate("VACUUM");
+                stmt.close();
+            } finally {
+                conn.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkpoint(db);
+        return "full vacuum of " + freePages + " free pages, incremental from now on";
+    }
+
+    private static boolean isFullVacuumWorth(int freePages, int pages) {
+        return freePages > 0 && freePages * FULL_VACUUM_FREE_DIVISOR >= pages;
+    }
+
+    /**
+     * Runs the operation through the writer of the db, or on a connection of its
+     * own for a db that is written from the calling threads.
+     */
+    private static <T> T write(AbstractDBHelper db, DbWriter.Operation<T> operation) throws SQLException {
+        if (db.getWriter() != null) {
+            return db.getWriter().execute(operation);
+        }
+        Connection conn = db.openConnection();
+        try {
+            return operation.run(conn);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void checkpoint(AbstractDBHelper db) throws SQLException {
+        // a passive checkpoint never waits for the writer
+        Connection conn = db.openConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("PRAGMA wal_checkpoint(PASSIVE)");
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private String integrityCheck(AbstractDBHelper db) throws SQLException {
+        List<String> problems = new ArrayList<String>();
+        ReadSession session = db.beginRead();
+        try {
+            Statement stmt = session.getConn().createStatement();
+            ResultSet rs = stmt.executeQuery("PRAGMA quick_check");
+            while (rs.next()) {
+                problems.add(rs.getString(1));
+            }
+            rs.close();
+            stmt.close();
+        } finally {
+            session.close();
+        }
+        if (problems.size() == 1 && "ok".equals(problems.get(0))) {
+            return "ok";
+        }
+        LogUtil.printlnError("db integrity check found problems: " + problems);
+        return "problems: " + problems;
+    }
+
+    private static int queryInt(Statement stmt, String sql) throws SQLException {
+        ResultSet rs = stmt.executeQuery(sql);
+        int value = 0;
+        if (rs.next()) {
+            value = rs.getInt(1);
+        }
+        rs.close();
+        return value;
+    }
+
+    private synchronized void record(Run run) {
+        history.addFirst(run);
+        if (history.size() > MAX_HISTORY) {
+            history.removeLast();
+        }
+        LogUtil.printlnOut(run.toString());
+    }
+}
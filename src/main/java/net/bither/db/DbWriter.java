@@ -0,0 +1,309 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.utils.LogUtil;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The only thread that writes to a db. Providers submit operations to a
+ * bounded queue, which holds back the submitters once sync produces writes
+ * faster than the disk takes them. The thread takes whatever is queued, up to
+ * MAX_GROUP_SIZE operations, and runs them in one transaction with one
+ * commit. Each operation runs in a savepoint of its own, so one that fails is
+ * rolled back without taking the rest of the group with it, and its future
+ * fails once the group is committed. Even an Error thrown by an operation
+ * only fails that operation, the thread goes on with the queue.
+ *
+ * The thread holds the lock of the db helper while it runs a group, the lock
+ * code working with the writer connection from other threads takes too. A
+ * thread holding that lock, like one inside a read session of a db that is
+ * not in WAL mode, can not wait for a write, so its submits fail at once.
+ */
+public class DbWriter {
+
+    public interface Operation<T> {
+        /**
+         * Runs inside the transaction of a group. Must neither commit nor roll back.
+         */
+        T run(Connection conn) throws SQLException;
+    }
+
+    public static final int QUEUE_CAPACITY = 256;
+    public static final int MAX_GROUP_SIZE = 64;
+
+    private static final String SAVEPOINT_SQL = "savepoint db_writer_op";
+    private static final String RELEASE_SQL = "release db_writer_op";
+    private static final String ROLLBACK_TO_SQL = "rollback to db_writer_op";
+
+    /**
+     * An operation waiting for its group to commit.
+     */
+    private static final class Task<T> extends FutureTask<T> {
+        private final Operation<T> operation;
+        private T result;
+        private SQLException failure;
+
+        private Task(Operation<T> operation) {
+            super(DbWriter.<T>notRun());
+            this.operation = operation;
+        }
+
+        private void succeed() {
+            set(result);
+        }
+
+        private void fail(Throwable e) {
+            setException(e);
+        }
+    }
+
+    private static <T> Callable<T> notRun() {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw new IllegalStateException("completed by the db writer");
+            }
+        };
+    }
+
+    private final AbstractDBHelper mDb;
+    private final BlockingQueue<Task<?>> queue = new ArrayBlockingQueue<Task<?>>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile boolean isStop = false;
+
+    private long groupCount;
+    private long operationCount;
+
+    DbWriter(AbstractDBHelper db) {
+        this.mDb = db;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DbWriter-" + db.getDBName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the operation, waiting while the queue is full.
+     *
+     * @return completes once the group of the operation is committed
+     */
+    public <T> Future<T> submit(Operation<T> operation) {
+        Task<T> task = new Task<T>(operation);
+        if (isStop) {
+            task.fail(new SQLException("db writer is stopped"));
+            return task;
+        }
+        if (Thread.currentThread() == thread) {
+            // an operation that writes through a provider joins the running group
+            try {
+                task.result = operation.run(this.mDb.getConn());
+                task.succeed();
+            } catch (Throwable e) {
+                task.fail(e);
+            }
+            return task;
+        }
+        if (this.mDb.getLock().isHeldByCurrentThread()) {
+            // the writer thread would wait for the lock and this thread for the writer
+            task.fail(new SQLException("write submitted while holding the lock of " + this.mDb.getDBName()));
+            return task;
+        }
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.fail(new SQLException("interrupted while waiting for the db writer"));
+            return task;
+        }
+        if (isStop && queue.remove(task)) {
+            // queued after the thread ran its last group
+            task.fail(new SQLException("db writer is stopped"));
+        }
+        return task;
+    }
+
+    /**
+     * Submits the operation and waits for its commit.
+     */
+    public <T> T execute(Operation<T> operation) throws SQLException {
+        Future<T> future = submit(operation);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the db writer");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            SQLException sqlException = new SQLException(String.valueOf(cause));
+            sqlException.initCause(cause);
+            throw sqlException;
+        }
+    }
+
+    /**
+     * Runs what is queued and stops the thread, to be called before the connection is closed.
+     */
+    void stop() {
+        isStop = true;
+        thread.interrupt();
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    boolean isWriterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public synchronized long getGroupCount() {
+        return groupCount;
+    }
+
+    public synchronized long getOperationCount() {
+        return operationCount;
+    }
+
+    private void loop() {
+        List<Task<?>> group = new ArrayList<Task<?>>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                if (isStop) {
+                    Task<?> task = queue.poll();
+                    if (task == null) {
+                        return;
+                    }
+                    group.add(task);
+                } else {
+                    group.add(queue.take());
+                }
+            } catch (InterruptedException e) {
+                // stop() wakes the thread up, what is still queued is run below
+                continue;
+            }
+            queue.drainTo(group, MAX_GROUP_SIZE - group.size());
+            try {
+                runGroup(group);
+            } catch (Throwable e) {
+                // whatever went wrong, no submitter is left waiting
+                e.printStackTrace();
+                for (Task<?> task : group) {
+                    if (!task.isDone()) {
+                        task.fail(e);
+                    }
+                }
+            }
+            group.clear();
+        }
+    }
+
+    private void runGroup(List<Task<?>> group) {
+        this.mDb.getLock().lock();
+        try {
+            Connection conn = this.mDb.getConn();
+            try {
+                conn.setAutoCommit(false);
+                Statement stmt = conn.createStatement();
+                try {
+                    for (Task<?> task : group) {
+                        run(stmt, conn, task);
+                    }
+                } finally {
+                    stmt.close();
+                }
+                conn.commit();
+            } catch (Throwable e) {
+                // the commit itself failed, nothing of the group is written
+                e.printStackTrace();
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackException) {
+                    rollbackException.printStackTrace();
+                }
+                SQLException failure;
+                if (e instanceof SQLException) {
+                    failure = (SQLException) e;
+                } else {
+                    failure = new SQLException(String.valueOf(e));
+                    failure.initCause(e);
+                }
+                for (Task<?> task : group) {
+                    task.failure = failure;
+                }
+            }
+        } finally {
+            this.mDb.getLock().unlock();
+        }
+        synchronized (this) {
+            groupCount++;
+            operationCount += group.size();
+        }
+        if (group.size() > 1) {
+            LogUtil.printlnOut(this.mDb.getDBName() + " group commit of " + group.size() + " writes");
+        }
+        for (Task<?> task : group) {
+            if (task.failure != null) {
+                task.fail(task.failure);
+            } else {
+                task.succeed();
+            }
+        }
+    }
+
+    private <T> void run(Statement stmt, Connection conn, Task<T> task) throws SQLException {
+        stmt.execute(SAVEPOINT_SQL);
+        try {
+            task.result = task.operation.run(conn);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            task.failure = e;
+            stmt.execute(ROLLBACK_TO_SQL);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            SQLException failure = new SQLException(String.valueOf(e));
+            failure.initCause(e);
+            task.failure = failure;
+            stmt.execute(ROLLBACK_TO_SQL);
+        }
+        stmt.execute(RELEASE_SQL);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Every address of the HD account, to tell whether an address belongs to it
+ * without a query. Most addresses seen while syncing are not ours, so a bloom
+ * filter answers those before the hash set is probed. Addresses are never
+ * removed from hd_account_addresses, so the set only grows.
+ */
+public class HDAccountAddressIndex {
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final int BITS_PER_ADDRESS = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final HashSet<String> addresses = new HashSet<String>();
+    private long[] bloom;
+    private int bloomBitCount;
+    private int bloomCapacity;
+
+    private final long createTime = System.currentTimeMillis();
+    private long lookupCount = 0;
+    private long bloomRejectCount = 0;
+    private long hitCount = 0;
+
+    public HDAccountAddressIndex() {
+        resizeBloom(MIN_CAPACITY);
+    }
+
+    public synchronized void add(String address) {
+        if (address == null || !addresses.add(address)) {
+            return;
+        }
+        if (addresses.size() > bloomCapacity) {
+            resizeBloom(bloomCapacity * 2);
+        } else {
+            addToBloom(address);
+        }
+    }
+
+    public synchronized void addAll(Collection<String> addressList) {
+        for (String address : addressList) {
+            add(address);
+        }
+    }
+
+    public synchronized boolean contains(String address) {
+        lookupCount++;
+        if (address == null || !mightContain(address)) {
+            bloomRejectCount++;
+            return false;
+        }
+        if (addresses.contains(address)) {
+            hitCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the addresses of the list that belong to the HD account, in list order
+     */
+    public synchronized List<String> filter(Collection<String> addressList) {
+        List<String> result = new ArrayList<String>();
+        if (addressList == null) {
+            return result;
+        }
+        for (String address : addressList) {
+            if (contains(address)) {
+                result.add(address);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return addresses.size();
+    }
+
+    public synchronized long getLookupCount() {
+        return lookupCount;
+    }
+
+    public synchronized long getBloomRejectCount() {
+        return bloomRejectCount;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return lookups per second since the index was loaded
+     */
+    public synchronized double getLookupsPerSecond() {
+        long millis = Math.max(1, System.currentTimeMillis() - createTime);
+        return lookupCount * 1000.0 / millis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HDAccountAddressIndex{addresses=" + addresses.size() + ", lookup=" + lookupCount
+                + ", bloomReject=" + bloomRejectCount + ", hit=" + hitCount
+                + ", lookupsPerSecond=" + String.format("%.1f", getLookupsPerSecond()) + "}";
+    }
+
+    private void resizeBloom(int capacity) {
+        bloomCapacity = Math.max(MIN_CAPACITY, capacity);
+        bloomBitCount = bloomCapacity * BITS_PER_ADDRESS;
+        bloom = new long[(bloomBitCount + 63) / 64];
+        for (String address : addresses) {
+            addToBloom(address);
+        }
+    }
+
+    private void addToBloom(String address) {
+        int h1 = address.hashCode();
+        int h2 = secondHash(address);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = bitOf(h1 + i * h2);
+            bloom[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    private boolean mightContain(String address) {
+        int h1 = address.hashCode();
+        int h2 = secondHash(address);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = bitOf(h1 + i * h2);
+            if ((bloom[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int bitOf(int hash) {
+        return (hash & Integer.MAX_VALUE) % bloomBitCount;
+    }
+
+    private static int secondHash(String address) {
+        // FNV-1a, independent enough from String.hashCode for double hashing
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < address.length(); i++) {
+            hash ^= address.charAt(i);
+            hash *= 0x01000193;
+        }
+        // a zero step would put every probe on the same bit
+        return hash | 1;
+    }
+}
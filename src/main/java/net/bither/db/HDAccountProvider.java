@@ -27,8 +27,8 @@ import net.bither.bitherj.exception.AddressFormatException;
 import net.bither.bitherj.utils.Base58;
 import net.bither.bitherj.utils.Sha256Hash;
 import net.bither.bitherj.utils.Utils;
+import net.bither.utils.LogUtil;
 import net.bither.utils.StringUtil;
-import net.bither.utils.SystemUtil;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -43,7 +43,14 @@ public class HDAccountProvider implements IHDAccountProvider {
 
     private final static String queryTxHashOfHDAccount = " select  distinct txs.tx_hash from addresses_txs txs ,hd_account_addresses hd where txs.address=hd.address";
     private final static String inQueryTxHashOfHDAccount = " (" + queryTxHashOfHDAccount + ")";
+    final static String issuedIndexSql = "select ifnull(max(address_index),-1) address_index from "
+            + AbstractDb.Tables.HD_ACCOUNT_ADDRESS + " where path_type=? and is_issued=?  ";
+    final static String unSyncedAddressCountSql = "select count(address) cnt from hd_account_addresses where is_synced=? ";
+    final static String utxoByHDAccountSql = "select a.*,b.tx_ver,b.tx_locktime,b.tx_time,b.block_no,b.source " +
+            "from outs a,txs b where a.tx_hash=b.tx_hash and a.out_status=? and a.hd_account_id=?";
 
+    // below the 999 host parameters sqlite allows in one statement
+    private static final int BELONG_ACCOUNT_CHUNK_SIZE = 500;
 
     private static HDAccountProvider txProvider = new HDAccountProvider(ApplicationInstanceManager.txDBHelper);
 
@@ -52,20 +59,64 @@ public class HDAccountProvider implements IHDAccountProvider {
     }
 
     private TxDBHelper mDb;
+    private HDAccountAddressIndex addressIndex;
+    private PrevOutResolver prevOutResolver;
 
     public HDAccountProvider(TxDBHelper db) {
         this.mDb = db;
+        this.prevOutResolver = new PrevOutResolver(db);
+    }
+
+    /**
+     * Loads the address index on first use. Returns null when it can not be loaded,
+     * callers then query the db.
+     */
+    public synchronized HDAccountAddressIndex getAddressIndex() {
+        if (addressIndex != null) {
+            return addressIndex;
+        }
+        HDAccountAddressIndex index = new HDAccountAddressIndex();
+        ReadSession session = null;
+        try {
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select address from hd_account_addresses", null);
+            ResultSet c = statement.executeQuery();
+            while (c.next()) {
+                index.add(c.getString(1));
+            }
+            c.close();
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        LogUtil.printlnOut("hd account address index loaded: " + index.size());
+        addressIndex = index;
+        return addressIndex;
     }
 
     @Override
-    public void addAddress(List<HDAccount.HDAccountAddress> hdAccountAddresses) {
+    public void addAddress(final List<HDAccount.HDAccountAddress> hdAccountAddresses) {
         try {
-            this.mDb.getConn().setAutoCommit(false);
-            Connection conn = this.mDb.getConn();
-            for (HDAccount.HDAccountAddress hdAccountAddress : hdAccountAddresses) {
-                addAddress(conn, hdAccountAddress);
+            this.mDb.getWriter().execute(new DbWriter.Operation<Void>() {
+                @Override
+                public Void run(Connection conn) throws SQLException {
+                    for (HDAccount.HDAccountAddress hdAccountAddress : hdAccountAddresses) {
+                        addAddress(conn, hdAccountAddress);
+                    }
+                    return null;
+                }
+            });
+            HDAccountAddressIndex index = getAddressIndex();
+            if (index != null) {
+                for (HDAccount.HDAccountAddress hdAccountAddress : hdAccountAddresses) {
+                    index.add(hdAccountAddress.getAddress());
+                }
             }
-            conn.commit();
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -77,8 +128,10 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public int issuedIndex(AbstractHD.PathType pathType) {
         int issuedIndex = -1;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement("select ifnull(max(address_index),-1) address_index from " + AbstractDb.Tables.HD_ACCOUNT_ADDRESS + " where path_type=? and is_issued=?  ",
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(issuedIndexSql,
                     new String[]{Integer.toString(pathType.getValue()), "1"});
             ResultSet cursor = statement.executeQuery();
             if (cursor.next()) {
@@ -91,6 +144,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return issuedIndex;
     }
@@ -98,8 +155,10 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public int allGeneratedAddressCount(AbstractHD.PathType pathType) {
         int count = 0;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement("select ifnull(count(address),0) count from "
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select ifnull(count(address),0) count from "
                             + AbstractDb.Tables.HD_ACCOUNT_ADDRESS + " where path_type=? ",
                     new String[]{Integer.toString(pathType.getValue())});
             ResultSet cursor = statement.executeQuery();
@@ -113,6 +172,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return count;
     }
@@ -120,30 +183,19 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public void updateIssuedIndex(AbstractHD.PathType pathType, int index) {
         String sql = "update hd_account_addresses set is_issued=? where path_type=? and address_index<=? ";
-        Connection conn = this.mDb.getConn();
-        try {
-            String[] params = new String[]{
-                    "1", Integer.toString(pathType.getValue()), Integer.toString(index)
-            };
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            if (params != null) {
-                for (int i = 0; i < params.length; i++) {
-                    stmt.setString(i + 1, params[i]);
-                }
-            }
-            stmt.executeUpdate();
-            conn.commit();
-            stmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String[] params = new String[]{
+                "1", Integer.toString(pathType.getValue()), Integer.toString(index)
+        };
+        this.mDb.executeUpdate(sql, params);
     }
 
     @Override
     public String externalAddress() {
         String address = null;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement("select address from " + AbstractDb.Tables.HD_ACCOUNT_ADDRESS
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select address from " + AbstractDb.Tables.HD_ACCOUNT_ADDRESS
                             + " where path_type=? and is_issued=? order by address_index asc limit 1 ",
                     new String[]{Integer.toString(AbstractHD.PathType.EXTERNAL_ROOT_PATH.getValue()), "0"});
             ResultSet cursor = statement.executeQuery();
@@ -157,12 +209,20 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return address;
     }
 
     @Override
     public HashSet<String> getBelongAccountAddresses(List<String> addressList) {
+        HDAccountAddressIndex index = getAddressIndex();
+        if (index != null) {
+            return new HashSet<String>(index.filter(addressList));
+        }
         HashSet<String> addressSet = new HashSet<String>();
 
         List<String> temp = new ArrayList<String>();
@@ -171,10 +231,12 @@ public class HDAccountProvider implements IHDAccountProvider {
                 temp.add(Utils.format("'%s'", str));
             }
         }
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = Utils.format("select address from hd_account_addresses where address in (%s) "
                     , Utils.joinString(temp, ","));
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql,
+            PreparedStatement statement = session.getPreparedStatement(sql,
                     null);
             ResultSet cursor = statement.executeQuery();
             while (cursor.next()) {
@@ -187,16 +249,21 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        SystemUtil.maxUsedSize();
         return addressSet;
     }
 
     @Override
     public HDAccount.HDAccountAddress addressForPath(AbstractHD.PathType type, int index) {
         HDAccount.HDAccountAddress accountAddress = null;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement("select address,pub,path_type,address_index,is_issued,is_synced from " +
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select address,pub,path_type,address_index,is_issued,is_synced from " +
                             AbstractDb.Tables.HD_ACCOUNT_ADDRESS + " where path_type=? and address_index=? ",
                     new String[]{Integer.toString(type.getValue()), Integer.toString(index)});
             ResultSet cursor = statement.executeQuery();
@@ -208,6 +275,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return accountAddress;
     }
@@ -215,8 +286,10 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public List<byte[]> getPubs(AbstractHD.PathType pathType) {
         List<byte[]> adressPubList = new ArrayList<byte[]>();
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement("select pub from hd_account_addresses where path_type=? ",
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select pub from hd_account_addresses where path_type=? ",
                     new String[]{Integer.toString(pathType.getValue())});
             ResultSet cursor = statement.executeQuery();
             while (cursor.next()) {
@@ -233,6 +306,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return adressPubList;
     }
@@ -240,14 +317,55 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public List<HDAccount.HDAccountAddress> belongAccount(List<String> addresses) {
         List<HDAccount.HDAccountAddress> hdAccountAddressList = new ArrayList<HDAccount.HDAccountAddress>();
+        HDAccountAddressIndex index = getAddressIndex();
+        if (index != null) {
+            // membership comes from the index, the rows of the members are read
+            // for their current flags in one query per chunk of addresses
+            List<String> belongAddresses = index.filter(addresses);
+            if (belongAddresses.size() == 0) {
+                return hdAccountAddressList;
+            }
+            ReadSession session = null;
+            try {
+                session = this.mDb.beginRead();
+                for (int start = 0; start < belongAddresses.size(); start += BELONG_ACCOUNT_CHUNK_SIZE) {
+                    List<String> chunk = belongAddresses.subList(start,
+                            Math.min(start + BELONG_ACCOUNT_CHUNK_SIZE, belongAddresses.size()));
+                    List<String> placeholders = new ArrayList<String>();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        placeholders.add("?");
+                    }
+                    String sql = "select address,pub,path_type,address_index,is_issued,is_synced from "
+                            + AbstractDb.Tables.HD_ACCOUNT_ADDRESS + " where address in ("
+                            + Utils.joinString(placeholders, ",") + ")";
+                    PreparedStatement statement = session.getPreparedStatement(sql,
+                            chunk.toArray(new String[chunk.size()]));
+                    ResultSet cursor = statement.executeQuery();
+                    while (cursor.next()) {
+                        hdAccountAddressList.add(formatAddress(cursor));
+                    }
+                    cursor.close();
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                if (session != null) {
+                    session.close();
+                }
+            }
+            return hdAccountAddressList;
+        }
         List<String> temp = new ArrayList<String>();
         for (String str : addresses) {
             temp.add(Utils.format("'%s'", str));
         }
         String sql = "select address,pub,path_type,address_index,is_issued,is_synced from " + AbstractDb.Tables.HD_ACCOUNT_ADDRESS
                 + " where address in (" + Utils.joinString(temp, ",") + ")";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet cursor = statement.executeQuery();
             while (cursor.next()) {
                 hdAccountAddressList.add(formatAddress(cursor));
@@ -257,6 +375,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return hdAccountAddressList;
     }
@@ -264,23 +386,10 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public void updateSyncdComplete(HDAccount.HDAccountAddress address) {
         String sql = "update hd_account_addresses set is_synced=? where address=? ";
-        Connection conn = this.mDb.getConn();
-        try {
-            String[] params = new String[]{
-                    Integer.toString(address.isSyncedComplete() ? 1 : 0), address.getAddress()
-            };
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            if (params != null) {
-                for (int i = 0; i < params.length; i++) {
-                    stmt.setString(i + 1, params[i]);
-                }
-            }
-            stmt.executeUpdate();
-            conn.commit();
-            stmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String[] params = new String[]{
+                Integer.toString(address.isSyncedComplete() ? 1 : 0), address.getAddress()
+        };
+        this.mDb.executeUpdate(sql, params);
     }
 
     @Override
@@ -291,9 +400,11 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public int unSyncedAddressCount() {
         int cnt = 0;
+        ReadSession session = null;
         try {
-            String sql = "select count(address) cnt from hd_account_addresses where is_synced=? ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{"0"});
+            session = this.mDb.beginRead();
+            String sql = unSyncedAddressCountSql;
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{"0"});
             ResultSet cursor = statement.executeQuery();
             if (cursor.next()) {
                 int idColumn = cursor.findColumn("cnt");
@@ -305,6 +416,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return cnt;
     }
@@ -318,27 +433,19 @@ public class HDAccountProvider implements IHDAccountProvider {
 
     @Override
     public List<HDAccount.HDAccountAddress> getSigningAddressesForInputs(List<In> inList) {
-
-        List<HDAccount.HDAccountAddress> hdAccountAddressList =
+        final List<HDAccount.HDAccountAddress> hdAccountAddressList =
                 new ArrayList<HDAccount.HDAccountAddress>();
-        ResultSet c;
+        // one row per in whose prev out pays to one of our addresses
+        String sql = "select a.* from prev_outs p, outs b, hd_account_addresses a" +
+                " where b.tx_hash=p.prev_tx_hash and b.out_sn=p.prev_out_sn and a.address=b.out_address" +
+                " group by p.seq order by p.seq";
         try {
-            for (In in : inList) {
-                String sql = "select a.*" +
-                        " from hd_account_addresses a ,outs b" +
-                        " where a.address=b.out_address" +
-                        " and b.tx_hash=? and b.out_sn=?  ";
-                OutPoint outPoint = in.getOutpoint();
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql,
-                        new String[]{Base58.encode(in.getPrevTxHash()),
-                                Integer.toString(outPoint.getOutSn())});
-                c = statement.executeQuery();
-                if (c.next()) {
+            prevOutResolver.query(inList, sql, new PrevOutResolver.RowHandler() {
+                @Override
+                public void handle(ResultSet c) throws SQLException {
                     hdAccountAddressList.add(formatAddress(c));
                 }
-                c.close();
-                statement.close();
-            }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -348,9 +455,11 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public int hdAccountTxCount() {
         int result = 0;
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select count( distinct a.tx_hash) cnt from addresses_txs a ,hd_account_addresses b where a.address=b.address  ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
@@ -362,6 +471,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
@@ -369,22 +482,10 @@ public class HDAccountProvider implements IHDAccountProvider {
     @Override
     public long getHDAccountConfirmedBanlance(int hdAccountId) {
         long sum = 0;
-        String unspendOutSql = "select ifnull(sum(a.out_value),0) sum from outs a,txs b where a.tx_hash=b.tx_hash " +
-                "  and a.out_status=? and a.hd_account_id=? and b.block_no is not null";
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(unspendOutSql,
-                    new String[]{Integer.toString(Out.OutStatus.unspent.getValue()), Integer.toString(hdAccountId)});
-            ResultSet c = statement.executeQuery();
-            if (c.next()) {
-                int idColumn = c.findColumn("sum");
-                if (idColumn != -1) {
-                    sum = c.getLong(idColumn);
-                }
+        for (UtxoCache.Utxo utxo : getUtxosByHDAccount(hdAccountId)) {
+            if (utxo.isConfirmed()) {
+                sum += utxo.getOutValue();
             }
-            c.close();
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return sum;
     }
@@ -395,12 +496,14 @@ public class HDAccountProvider implements IHDAccountProvider {
 
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
 
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select * from txs where tx_hash in" +
                     inQueryTxHashOfHDAccount +
                     " and  block_no is null " +
                     " order by block_no desc";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 Tx txItem = TxHelper.applyCursor(c);
@@ -417,7 +520,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                     inQueryTxHashOfHDAccount +
                     " and b.tx_hash=c.tx_hash and c.block_no is null  " +
                     " order by b.tx_hash ,b.in_sn";
-            statement = this.mDb.getPreparedStatement(sql, null);
+            statement = session.getPreparedStatement(sql, null);
             c = statement.executeQuery();
             while (c.next()) {
                 In inItem = TxHelper.applyCursorIn(c);
@@ -435,7 +538,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                     inQueryTxHashOfHDAccount +
                     " and b.tx_hash=c.tx_hash and c.block_no is null  " +
                     " order by b.tx_hash,b.out_sn";
-            statement = this.mDb.getPreparedStatement(sql, null);
+            statement = session.getPreparedStatement(sql, null);
             c = statement.executeQuery();
             while (c.next()) {
                 Out out = TxHelper.applyCursorOut(c);
@@ -451,6 +554,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txList;
     }
@@ -463,8 +570,10 @@ public class HDAccountProvider implements IHDAccountProvider {
 
         ResultSet cursor;
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(txHash),
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txHash,
                     Integer.toString(hdAccountId)});
             cursor = statement.executeQuery();
             if (cursor.next()) {
@@ -477,6 +586,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
 
         return sum;
@@ -488,12 +601,14 @@ public class HDAccountProvider implements IHDAccountProvider {
 
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
 
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select * from txs where tx_hash in " +
                     inQueryTxHashOfHDAccount +
                     " order by" +
                     " ifnull(block_no,4294967295) desc ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             StringBuilder txsStrBuilder = new StringBuilder();
             while (c.next()) {
@@ -502,7 +617,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
                 txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-                txsStrBuilder.append("'").append(Base58.encode(txItem.getTxHash())).append("'").append(",");
+                txsStrBuilder.append("X'").append(Utils.bytesToHexString(txItem.getTxHash())).append("'").append(",");
             }
             c.close();
             statement.close();
@@ -511,7 +626,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                 String txs = txsStrBuilder.substring(0, txsStrBuilder.length() - 1);
                 sql = Utils.format("select b.* from ins b where b.tx_hash in (%s)" +
                         " order by b.tx_hash ,b.in_sn", txs);
-                statement = this.mDb.getPreparedStatement(sql, null);
+                statement = session.getPreparedStatement(sql, null);
                 c = statement.executeQuery();
                 while (c.next()) {
                     In inItem = TxHelper.applyCursorIn(c);
@@ -525,7 +640,7 @@ public class HDAccountProvider implements IHDAccountProvider {
 
                 sql = Utils.format("select b.* from outs b where b.tx_hash in (%s)" +
                         " order by b.tx_hash,b.out_sn", txs);
-                statement = this.mDb.getPreparedStatement(sql, null);
+                statement = session.getPreparedStatement(sql, null);
                 c = statement.executeQuery();
                 while (c.next()) {
                     Out out = TxHelper.applyCursorOut(c);
@@ -541,6 +656,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
@@ -552,12 +671,14 @@ public class HDAccountProvider implements IHDAccountProvider {
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
 
 
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select * from txs where tx_hash in " +
                     inQueryTxHashOfHDAccount +
                     " order by" +
                     " ifnull(block_no,4294967295) desc limit ?,? ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{
                     Integer.toString((page - 1) * BitherjSettings.TX_PAGE_SIZE), Integer.toString(BitherjSettings.TX_PAGE_SIZE)
             });
             ResultSet c = statement.executeQuery();
@@ -568,7 +689,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
                 txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-                txsStrBuilder.append("'").append(Base58.encode(txItem.getTxHash())).append("'").append(",");
+                txsStrBuilder.append("X'").append(Utils.bytesToHexString(txItem.getTxHash())).append("'").append(",");
             }
             c.close();
             statement.close();
@@ -577,7 +698,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                 String txs = txsStrBuilder.substring(0, txsStrBuilder.length() - 1);
                 sql = Utils.format("select b.* from ins b where b.tx_hash in (%s)" +
                         " order by b.tx_hash ,b.in_sn", txs);
-                statement = this.mDb.getPreparedStatement(sql, null);
+                statement = session.getPreparedStatement(sql, null);
                 c = statement.executeQuery();
                 while (c.next()) {
                     In inItem = TxHelper.applyCursorIn(c);
@@ -591,7 +712,7 @@ public class HDAccountProvider implements IHDAccountProvider {
 
                 sql = Utils.format("select b.* from outs b where b.tx_hash in (%s)" +
                         " order by b.tx_hash,b.out_sn", txs);
-                statement = this.mDb.getPreparedStatement(sql, null);
+                statement = session.getPreparedStatement(sql, null);
                 c = statement.executeQuery();
                 while (c.next()) {
                     Out out = TxHelper.applyCursorOut(c);
@@ -608,31 +729,66 @@ public class HDAccountProvider implements IHDAccountProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
 
+    /**
+     * A cursor over the txs of the HD account, newest first, one page of
+     * BitherjSettings.TX_PAGE_SIZE txs at a time.
+     */
+    public TxHistoryCursor getTxHistory() {
+        return getTxHistory(BitherjSettings.TX_PAGE_SIZE);
+    }
+
+    public TxHistoryCursor getTxHistory(int pageSize) {
+        return new TxHistoryCursor(this.mDb, "from txs b where b.tx_hash in " + inQueryTxHashOfHDAccount, null, pageSize);
+    }
+
     @Override
     public List<Out> getUnspendOutByHDAccount(int hdAccountId) {
         List<Out> outItems = new ArrayList<Out>();
-        String unspendOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash " +
-                " and a.out_status=? and a.hd_account_id=?";
+        for (UtxoCache.Utxo utxo : getUtxosByHDAccount(hdAccountId)) {
+            outItems.add(utxo.toOut());
+        }
+        return outItems;
+    }
+
+    private List<UtxoCache.Utxo> getUtxosByHDAccount(int hdAccountId) {
+        UtxoCache cache = UtxoCache.getInstance();
+        List<UtxoCache.Utxo> utxos = cache.getByHDAccount(hdAccountId);
+        if (utxos != null) {
+            return utxos;
+        }
+        long generation = cache.getGeneration();
+        utxos = new ArrayList<UtxoCache.Utxo>();
+        String sql = utxoByHDAccountSql;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(unspendOutSql,
-                    new String[]{Integer.toString(Out.OutStatus.unspent.getValue()), Integer.toString(hdAccountId)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql,
+                    new Object[]{Out.OutStatus.unspent.getValue(), hdAccountId});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
-                outItems.add(TxHelper.applyCursorOut(c));
+                utxos.add(new UtxoCache.Utxo(c));
             }
-
             c.close();
             statement.close();
+            cache.putByHDAccount(hdAccountId, utxos, generation);
         } catch (AddressFormatException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        return outItems;
+        return utxos;
     }
 
     @Override
@@ -644,8 +800,10 @@ public class HDAccountProvider implements IHDAccountProvider {
                 " and ((block_no is null) or (block_no is not null and block_no>?)) " +
                 " order by ifnull(block_no,4294967295) desc, tx_time desc " +
                 " limit ? ";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql,
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql,
                     new String[]{Integer.toString(greateThanBlockNo), Integer.toString(limit)});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
@@ -654,7 +812,7 @@ public class HDAccountProvider implements IHDAccountProvider {
             }
 
             for (Tx item : txItemList) {
-                TxHelper.addInsAndOuts(mDb, item);
+                TxHelper.addInsAndOuts(session, item);
             }
             c.close();
             statement.close();
@@ -662,6 +820,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
@@ -673,8 +835,10 @@ public class HDAccountProvider implements IHDAccountProvider {
         String sql = "select count(tx_hash) cnt from outs where out_address in " +
                 "(select address from hd_account_addresses where path_type =? and out_status=?) " +
                 "and hd_account_id=?";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(pathType.getValue())
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{Integer.toString(pathType.getValue())
                     , Integer.toString(Out.OutStatus.unspent.getValue())
                     , Integer.toString(hdAccountId)
             });
@@ -689,6 +853,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
@@ -700,8 +868,10 @@ public class HDAccountProvider implements IHDAccountProvider {
         String sql = "select * from outs where out_address in " +
                 "(select address from hd_account_addresses where path_type =? and out_status=?) " +
                 "and hd_account_id=?";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(pathType.getValue())
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{Integer.toString(pathType.getValue())
                     , Integer.toString(Out.OutStatus.unspent.getValue())
                     , Integer.toString(hdAccountId)
             });
@@ -715,6 +885,10 @@ public class HDAccountProvider implements IHDAccountProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
 
         return outList;
@@ -774,12 +948,7 @@ public class HDAccountProvider implements IHDAccountProvider {
                 , Base58.encode(accountAddress.getPub())
                 , Integer.toString(accountAddress.isSyncedComplete() ? 1 : 0)
         };
-        PreparedStatement stmt = conn.prepareStatement(sql);
-        if (params != null) {
-            for (int i = 0; i < params.length; i++) {
-                stmt.setString(i + 1, params[i]);
-            }
-        }
+        PreparedStatement stmt = this.mDb.getPreparedStatement(sql, params);
         stmt.executeUpdate();
         stmt.close();
     }
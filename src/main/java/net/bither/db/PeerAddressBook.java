@@ -0,0 +1,362 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.Peer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory copy of the peers table with a score per peer. Peers sit in one
+ * bucket per score, so an update moves a peer between two hash sets and the
+ * best k peers are read from the top buckets down. A peer ages while nothing
+ * happens to it, so every peer is rescored at most RESCORE_INTERVAL_MILLIS
+ * before the ranking is read. Changed and removed peers are remembered until
+ * PeerProvider writes them in its next flush.
+ *
+ * peer_connected_cnt keeps the meaning it has in the table: 0 for a peer never
+ * tried, 1 after a successful connection and 2 or more after failures.
+ */
+public class PeerAddressBook {
+
+    public static final int BUCKET_COUNT = 64;
+
+    private static final int BASE_SCORE = 32;
+    private static final int CONNECTED_BONUS = 16;
+    private static final int FAILURE_PENALTY = 6;
+    private static final int MAX_LATENCY_PENALTY = 15;
+    private static final long LATENCY_STEP_MILLIS = 100;
+    private static final int MAX_AGE_PENALTY = 10;
+    private static final long AGE_STEP_SECONDS = 24 * 60 * 60;
+    // a small part of an age step, the ranking never lags behind by more
+    public static final long RESCORE_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The last known state of one peer.
+     */
+    public static final class Entry {
+        private final long address;
+        private final InetAddress inetAddress;
+        private int port;
+        private long services;
+        private long timestamp;
+        private int connectedCnt;
+        private long pingMillis = -1;
+        private int bucket = -1;
+
+        private Entry(long address, InetAddress inetAddress) {
+            this.address = address;
+            this.inetAddress = inetAddress;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public long getServices() {
+            return services;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getConnectedCnt() {
+            return connectedCnt;
+        }
+
+        private Entry copy() {
+            Entry entry = new Entry(address, inetAddress);
+            entry.port = port;
+            entry.services = services;
+            entry.timestamp = timestamp;
+            entry.connectedCnt = connectedCnt;
+            entry.pingMillis = pingMillis;
+            return entry;
+        }
+
+        private Peer toPeer() {
+            Peer peer = new Peer(inetAddress);
+            peer.setPeerPort(port);
+            peer.setPeerServices(services);
+            peer.setPeerTimestamp((int) timestamp);
+            peer.setPeerConnectedCnt(connectedCnt);
+            return peer;
+        }
+    }
+
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final List<LinkedHashSet<Entry>> buckets = new ArrayList<LinkedHashSet<Entry>>(BUCKET_COUNT);
+    private final LinkedHashSet<Long> dirty = new LinkedHashSet<Long>();
+    private final HashSet<Long> removed = new HashSet<Long>();
+    private long lastRescoreTime = System.currentTimeMillis();
+
+    public PeerAddressBook() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.add(new LinkedHashSet<Entry>());
+        }
+    }
+
+    /**
+     * Fills the book from the table without marking anything to write.
+     */
+    synchronized void load(long address, InetAddress inetAddress, int port, long services, long timestamp,
+                           int connectedCnt) {
+        Entry entry = new Entry(address, inetAddress);
+        entry.port = port;
+        entry.services = services;
+        entry.timestamp = timestamp;
+        entry.connectedCnt = connectedCnt;
+        entries.put(address, entry);
+        rescore(entry);
+    }
+
+    /**
+     * @return false when the peer is already in the book
+     */
+    public synchronized boolean add(long address, Peer peer) {
+        if (entries.containsKey(address)) {
+            return false;
+        }
+        Entry entry = new Entry(address, peer.getPeerAddress());
+        entry.port = (int) peer.getPeerPort();
+        entry.services = peer.getPeerServices();
+        entry.timestamp = peer.getPeerTimestamp();
+        entry.connectedCnt = (int) peer.getPeerConnectedCnt();
+        entries.put(address, entry);
+        removed.remove(address);
+        rescore(entry);
+        dirty.add(address);
+        return true;
+    }
+
+    public synchronized boolean contains(long address) {
+        return entries.containsKey(address);
+    }
+
+    public synchronized void remove(long address) {
+        Entry entry = entries.remove(address);
+        if (entry != null) {
+            buckets.get(entry.bucket).remove(entry);
+            dirty.remove(address);
+            removed.add(address);
+        }
+    }
+
+    /**
+     * Removes every peer not in the given addresses.
+     */
+    public synchronized void retainOnly(Set<Long> addresses) {
+        List<Long> toRemove = new ArrayList<Long>();
+        for (Long address : entries.keySet()) {
+            if (!addresses.contains(address)) {
+                toRemove.add(address);
+            }
+        }
+        for (Long address : toRemove) {
+            remove(address);
+        }
+    }
+
+    public synchronized void connectFailed(long address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            return;
+        }
+        entry.connectedCnt = entry.connectedCnt == 0 ? 2 : entry.connectedCnt + 1;
+        rescore(entry);
+        dirty.add(address);
+    }
+
+    /**
+     * @param timestamp seconds since the epoch
+     */
+    public synchronized void connectSucceeded(long address, long timestamp) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            return;
+        }
+        entry.connectedCnt = 1;
+        entry.timestamp = timestamp;
+        rescore(entry);
+        dirty.add(address);
+    }
+
+    /**
+     * Latency only changes the ranking, it is not stored in the table.
+     */
+    public synchronized void setPingMillis(long address, long pingMillis) {
+        Entry entry = entries.get(address);
+        if (entry == null || entry.pingMillis == pingMillis) {
+            return;
+        }
+        entry.pingMillis = pingMillis;
+        rescore(entry);
+    }
+
+    /**
+     * @return the best limit peers, the best first
+     */
+    public synchronized List<Peer> top(int limit) {
+        rescoreAged();
+        List<Peer> peers = new ArrayList<Peer>(Math.min(limit, entries.size()));
+        for (int i = BUCKET_COUNT - 1; i >= 0 && peers.size() < limit; i--) {
+            for (Entry entry : buckets.get(i)) {
+                peers.add(entry.toPeer());
+                if (peers.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return peers;
+    }
+
+    public synchronized List<Peer> all() {
+        List<Peer> peers = new ArrayList<Peer>(entries.size());
+        for (Entry entry : entries.values()) {
+            peers.add(entry.toPeer());
+        }
+        return peers;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops the worst peers we are not connected to until at most max of them are left.
+     *
+     * @return the number of peers dropped
+     */
+    public synchronized int prune(int max) {
+        rescoreAged();
+        int notConnected = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.connectedCnt != 1) {
+                notConnected++;
+            }
+        }
+        int dropped = 0;
+        for (int i = 0; i < BUCKET_COUNT && notConnected > max; i++) {
+            Iterator<Entry> iterator = buckets.get(i).iterator();
+            while (iterator.hasNext() && notConnected > max) {
+                Entry entry = iterator.next();
+                if (entry.connectedCnt == 1) {
+                    continue;
+                }
+                iterator.remove();
+                entries.remove(entry.address);
+                dirty.remove(entry.address);
+                removed.add(entry.address);
+                notConnected--;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    public synchronized int getDirtyCount() {
+        return dirty.size() + removed.size();
+    }
+
+    /**
+     * Hands the pending changes to the caller, copied so the book can change while they are written.
+     */
+    synchronized List<Entry> takeChanged() {
+        List<Entry> changed = new ArrayList<Entry>(dirty.size());
+        for (Long address : dirty) {
+            changed.add(entries.get(address).copy());
+        }
+        dirty.clear();
+        return changed;
+    }
+
+    synchronized List<Long> takeRemoved() {
+        List<Long> result = new ArrayList<Long>(removed);
+        removed.clear();
+        return result;
+    }
+
+    /**
+     * Puts back changes a failed flush could not write.
+     */
+    synchronized void restore(List<Entry> changed, List<Long> removedAddresses) {
+        for (Entry entry : changed) {
+            if (entries.containsKey(entry.address)) {
+                dirty.add(entry.address);
+            }
+        }
+        for (Long address : removedAddresses) {
+            if (!entries.containsKey(address)) {
+                removed.add(address);
+            }
+        }
+    }
+
+    private void rescoreAged() {
+        long now = System.currentTimeMillis();
+        if (now - lastRescoreTime < RESCORE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastRescoreTime = now;
+        for (Entry entry : entries.values()) {
+            rescore(entry);
+        }
+    }
+
+    private void rescore(Entry entry) {
+        int bucket = score(entry);
+        if (bucket == entry.bucket) {
+            return;
+        }
+        if (entry.bucket >= 0) {
+            buckets.get(entry.bucket).remove(entry);
+        }
+        entry.bucket = bucket;
+        buckets.get(bucket).add(entry);
+    }
+
+    private static int score(Entry entry) {
+        int score = BASE_SCORE;
+        if (entry.connectedCnt == 1) {
+            score += CONNECTED_BONUS;
+        } else if (entry.connectedCnt > 1) {
+            score -= FAILURE_PENALTY * (entry.connectedCnt - 1);
+        }
+        if (entry.pingMillis >= 0) {
+            score -= (int) Math.min(MAX_LATENCY_PENALTY, entry.pingMillis / LATENCY_STEP_MILLIS);
+        }
+        long age = System.currentTimeMillis() / 1000 - entry.timestamp;
+        if (age > 0) {
+            score -= (int) Math.min(MAX_AGE_PENALTY, age / AGE_STEP_SECONDS);
+        }
+        return Math.max(0, Math.min(BUCKET_COUNT - 1, score));
+    }
+}
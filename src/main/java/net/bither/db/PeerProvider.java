@@ -18,6 +18,7 @@ package net.bither.db;
 
 import net.bither.ApplicationInstanceManager;
 import net.bither.bitherj.core.Peer;
+import net.bither.bitherj.core.PeerManager;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.IPeerProvider;
 import net.bither.bitherj.utils.Utils;
@@ -26,13 +27,29 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
+/**
+ * Peers live in a PeerAddressBook, so connection results and peer selection
+ * never wait for the db. A background thread writes the changes to the peers
+ * table every FLUSH_INTERVAL_MILLIS, or sooner once FLUSH_BATCH_SIZE peers
+ * changed, in one transaction. Callers only ever touch the flush signal, never
+ * the lock a flush holds while it writes.
+ */
 public class PeerProvider implements IPeerProvider {
     private static final String insertPeerSql = "insert into peers " +
             "(peer_address,peer_port,peer_services,peer_timestamp,peer_connected_cnt)" +
             " values (?,?,?,?,?) ";
+    private static final String updatePeerSql = "update peers set " +
+            "peer_port=?,peer_services=?,peer_timestamp=?,peer_connected_cnt=? where peer_address=?";
+    private static final String deletePeerSql = "delete from peers where peer_address=?";
+
+    public static final long FLUSH_INTERVAL_MILLIS = 30 * 1000;
+    public static final int FLUSH_BATCH_SIZE = 500;
+    public static final int MAX_NOT_CONNECTED_PEERS = 1000;
+
+    private static final long MILLIS_TIMESTAMP_THRESHOLD = 100000000000L;
 
     private static PeerProvider peerProvider = new PeerProvider(ApplicationInstanceManager.txDBHelper);
 
@@ -41,289 +58,280 @@ public class PeerProvider implements IPeerProvider {
     }
 
     private TxDBHelper mDb;
+    private PeerAddressBook book;
+    private Thread flusher;
+    // held while the peers table is written, by one flush or recreate at a time
+    private final Object flushLock = new Object();
+    // wakes the flush thread up early
+    private final Object flushSignal = new Object();
 
     public PeerProvider(TxDBHelper db) {
         this.mDb = db;
     }
 
-    public List<Peer> getAllPeers() {
-        List<Peer> peers = new ArrayList<Peer>();
-        String sql = "select * from peers";
+    /**
+     * Loads the book from the peers table on first use.
+     */
+    public synchronized PeerAddressBook getBook() {
+        if (book != null) {
+            return book;
+        }
+        PeerAddressBook addressBook = new PeerAddressBook();
+        List<Long> unknownHosts = new ArrayList<Long>();
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement("select * from peers", null);
             ResultSet c = statement.executeQuery();
             while (c.next()) {
-                Peer peer = applyCursor(c);
-                if (peer != null) {
-                    peers.add(peer);
+                long addressLong = c.getLong(c.findColumn(AbstractDb.PeersColumns.PEER_ADDRESS));
+                InetAddress address;
+                try {
+                    address = Utils.parseAddressFromLong(addressLong);
+                } catch (UnknownHostException e) {
+                    e.printStackTrace();
+                    unknownHosts.add(addressLong);
+                    continue;
                 }
+                long timestamp = c.getLong(c.findColumn(AbstractDb.PeersColumns.PEER_TIMESTAMP));
+                if (timestamp > MILLIS_TIMESTAMP_THRESHOLD) {
+                    // connectSucceed used to store milliseconds
+                    timestamp /= 1000;
+                }
+                addressBook.load(addressLong, address, c.getInt(c.findColumn(AbstractDb.PeersColumns.PEER_PORT)),
+                        c.getLong(c.findColumn(AbstractDb.PeersColumns.PEER_SERVICES)), timestamp,
+                        c.getInt(c.findColumn(AbstractDb.PeersColumns.PEER_CONNECTED_CNT)));
             }
             c.close();
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        return peers;
+        for (Long address : unknownHosts) {
+            deleteUnknowHost(address);
+        }
+        book = addressBook;
+        startFlusher();
+        return book;
+    }
 
+    public List<Peer> getAllPeers() {
+        return getBook().all();
     }
 
     public void deletePeersNotInAddresses(List<InetAddress> peerAddrsses) {
-        final List<Long> needDeletePeers = new ArrayList<Long>();
-        String sql = "select peer_address from peers";
-
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                int idColumn = c.findColumn(AbstractDb.PeersColumns.PEER_ADDRESS);
-                if (idColumn != -1) {
-                    long peerAddress = c.getLong(idColumn);
-                    boolean in = false;
-                    for (InetAddress a : peerAddrsses) {
-                        if (Utils.parseLongFromAddress(a) == peerAddress) {
-                            in = true;
-                            break;
-                        }
-                    }
-                    if (!in) {
-                        needDeletePeers.add(peerAddress);
-                    }
-                }
-
-            }
-            c.close();
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            this.mDb.getConn().setAutoCommit(false);
-            for (long i : needDeletePeers) {
-                PreparedStatement preparedStatement = this.mDb.getConn().prepareStatement("delete peers where peer_address=?");
-                preparedStatement.setLong(1, i);
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-
-            }
-
-            this.mDb.getConn().commit();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        HashSet<Long> addresses = new HashSet<Long>();
+        for (InetAddress address : peerAddrsses) {
+            addresses.add(Utils.parseLongFromAddress(address));
         }
-
-
+        getBook().retainOnly(addresses);
+        requestFlush();
     }
 
     public ArrayList<InetAddress> exists(ArrayList<InetAddress> peerAddresses) {
         ArrayList<InetAddress> exists = new ArrayList<InetAddress>();
-        List<Peer> peerItemList = getAllPeers();
-        for (Peer item : peerItemList) {
-            if (peerAddresses.contains(item.getPeerAddress())) {
-                exists.add(item.getPeerAddress());
+        PeerAddressBook addressBook = getBook();
+        for (InetAddress address : peerAddresses) {
+            if (addressBook.contains(Utils.parseLongFromAddress(address))) {
+                exists.add(address);
             }
         }
-        peerItemList.clear();
         return exists;
     }
 
-
-    public synchronized void addPeers(List<Peer> items) {
-        final List<Peer> addItems = new ArrayList<Peer>();
-        List<Peer> allItems = getAllPeers();
+    public void addPeers(List<Peer> items) {
+        PeerAddressBook addressBook = getBook();
         for (Peer peerItem : items) {
-            if (!allItems.contains(peerItem) && !addItems.contains(peerItem)) {
-                addItems.add(peerItem);
-            }
-        }
-        allItems.clear();
-        if (addItems.size() > 0) {
-            try {
-                this.mDb.getConn().setAutoCommit(false);
-                for (Peer item : addItems) {
-                    PreparedStatement preparedStatement = this.mDb.getConn().prepareStatement(insertPeerSql);
-                    preparedStatement.setLong(1, Utils.parseLongFromAddress(item
-                            .getPeerAddress()));
-                    preparedStatement.setLong(2, item.getPeerPort());
-                    preparedStatement.setLong(3, item.getPeerServices());
-                    preparedStatement.setLong(4, item.getPeerTimestamp());
-                    preparedStatement.setLong(5, item.getPeerConnectedCnt());
-                    preparedStatement.executeUpdate();
-                    preparedStatement.close();
-                }
-                this.mDb.getConn().commit();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-
+            addressBook.add(Utils.parseLongFromAddress(peerItem.getPeerAddress()), peerItem);
         }
+        requestFlush();
     }
 
-
     public void removePeer(InetAddress address) {
-        try {
-            if (this.mDb.getConn() != null && !this.mDb.getConn().isClosed()) {
-                this.mDb.executeUpdate("delete from peers where peer_address = ?", new String[]{Long.toString(Utils.parseLongFromAddress
-                        (address))});
-
-//TODO Database synchronization is wrong
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        getBook().remove(Utils.parseLongFromAddress(address));
+        requestFlush();
     }
 
     public void conncetFail(InetAddress address) {
-        try {
-            long addressLong = Utils.parseLongFromAddress(address);
-            String sql = "select count(0) cnt from peers where peer_address=? and peer_connected_cnt=0";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Long.toString(addressLong)});
-            ResultSet c = statement.executeQuery();
-            int cnt = 0;
-            if (c.next()) {
-                int idColumn = c.findColumn("cnt");
-                if (idColumn != -1) {
-                    cnt = c.getInt(idColumn);
-                }
-
-            }
-            c.close();
-            statement.close();
-            if (cnt == 0) {
-                sql = "update peers set peer_connected_cnt=peer_connected_cnt+1 where peer_address="
-                        + Long.toString(addressLong);
-                this.mDb.executeUpdate(sql, null);
-            } else {
-                sql = "update peers set peer_connected_cnt=2 where peer_address=" + Long.toString
-                        (addressLong);
-                this.mDb.executeUpdate(sql, null);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        getBook().connectFailed(Utils.parseLongFromAddress(address));
+        requestFlush();
     }
 
     public void connectSucceed(InetAddress address) {
-        long addressLong = Utils.parseLongFromAddress(address);
-        this.mDb.executeUpdate("update peers  set peer_connected_cnt=1 , peer_timestamp=? where peer_address=?",
-                new String[]{Long.toString(new Date().getTime()), Long.toString(addressLong)});
+        getBook().connectSucceeded(Utils.parseLongFromAddress(address), System.currentTimeMillis() / 1000);
+        requestFlush();
     }
 
+    /**
+     * @return the best scored peers, the best first
+     */
     public List<Peer> getPeersWithLimit(int limit) {
-        List<Peer> peerItemList = new ArrayList<Peer>();
-        String sql = "select * from peers order by peer_address limit ?";
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(limit)});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                Peer peer = applyCursor(c);
-                if (peer != null) {
-                    peerItemList.add(peer);
-                }
+        return getBook().top(limit);
+    }
 
-            }
-            c.close();
-            statement.close();
+    /**
+     * Leaves the pruning to the maintenance thread, which runs it when the db is idle.
+     */
+    public void cleanPeers() {
+        DbMaintenance.getInstance().requestPrune();
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Keeps the best MAX_NOT_CONNECTED_PEERS peers we are not connected to.
+     */
+    public void prunePeers() {
+        if (getBook().prune(MAX_NOT_CONNECTED_PEERS) > 0) {
+            flush();
         }
-        return peerItemList;
     }
 
-    public void cleanPeers() {
-        try {
-            int maxPeerSaveCnt = 1000;
-            String disconnectingPeerCntSql = "select count(0) cnt from peers where " +
-                    "peer_connected_cnt<>1";
-            int disconnectingPeerCnt = 0;
-            PreparedStatement statement = this.mDb.getPreparedStatement(disconnectingPeerCntSql, null);
-            ResultSet c = statement.executeQuery();
-            if (c.next()) {
-                int idColumn = c.findColumn("cnt");
-                if (idColumn != -1) {
-                    disconnectingPeerCnt = c.getInt(idColumn);
-                }
+    /**
+     * Writes every pending change of the book in one transaction. Runs on the
+     * flush thread, and on exit before the db is closed.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            final PeerAddressBook addressBook;
+            // read under the flush lock, a book dropped by recreate is never written
+            synchronized (this) {
+                addressBook = book;
             }
-            c.close();
-            statement.close();
-            if (disconnectingPeerCnt > maxPeerSaveCnt) {
-                String sql = "select peer_timestamp from peers where peer_connected_cnt<>1 " +
-                        "order by peer_timestamp desc limit 1 offset ? ";
-                statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(maxPeerSaveCnt)});
-                c = statement.executeQuery();
-                long timestamp = 0;
-                if (c.next()) {
-                    int idColumn = c.findColumn(AbstractDb.PeersColumns.PEER_TIMESTAMP);
-                    if (idColumn != -1) {
-                        timestamp = c.getLong(idColumn);
+            if (addressBook == null) {
+                return;
+            }
+            final List<PeerAddressBook.Entry> changed = addressBook.takeChanged();
+            final List<Long> removed = addressBook.takeRemoved();
+            if (changed.size() == 0 && removed.size() == 0) {
+                return;
+            }
+            try {
+                this.mDb.getWriter().execute(new DbWriter.Operation<Void>() {
+                    @Override
+                    public Void run(Connection conn) throws SQLException {
+                        PreparedStatement deleteStatement = mDb.getPreparedStatement(deletePeerSql, null);
+                        for (Long address : removed) {
+                            deleteStatement.setLong(1, address);
+                            deleteStatement.addBatch();
+                        }
+                        deleteStatement.executeBatch();
+                        deleteStatement.close();
+
+                        PreparedStatement updateStatement = mDb.getPreparedStatement(updatePeerSql, null);
+                        for (PeerAddressBook.Entry entry : changed) {
+                            updateStatement.setInt(1, entry.getPort());
+                            updateStatement.setLong(2, entry.getServices());
+                            updateStatement.setLong(3, entry.getTimestamp());
+                            updateStatement.setInt(4, entry.getConnectedCnt());
+                            updateStatement.setLong(5, entry.getAddress());
+                            updateStatement.addBatch();
+                        }
+                        int[] counts = updateStatement.executeBatch();
+                        updateStatement.close();
+
+                        PreparedStatement insertStatement = mDb.getPreparedStatement(insertPeerSql, null);
+                        for (int i = 0; i < counts.length; i++) {
+                            if (counts[i] > 0) {
+                                continue;
+                            }
+                            PeerAddressBook.Entry entry = changed.get(i);
+                            insertStatement.setLong(1, entry.getAddress());
+                            insertStatement.setInt(2, entry.getPort());
+                            insertStatement.setLong(3, entry.getServices());
+                            insertStatement.setLong(4, entry.getTimestamp());
+                            insertStatement.setInt(5, entry.getConnectedCnt());
+                            insertStatement.addBatch();
+                        }
+                        insertStatement.executeBatch();
+                        insertStatement.close();
+                        return null;
                     }
-                }
-                c.close();
-                statement.close();
-                if (timestamp > 0) {
-                    mDb.executeUpdate("delete peers where peer_connected_cnt<>1 and peer_timestamp<=?"
-                            , new String[]{Long.toString(timestamp)});
-                }
+                });
+            } catch (SQLException e) {
+                e.printStackTrace();
+                addressBook.restore(changed, removed);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    private void deleteUnknowHost(long address) {
-        this.mDb.executeUpdate("delete peers where peer_address=?"
-                , new String[]{Long.toString(address)});
-
-    }
-
-    private Peer applyCursor(ResultSet rs) throws SQLException {
-        InetAddress address = null;
-        int idColumn = rs.findColumn(AbstractDb.PeersColumns.PEER_ADDRESS);
-        if (idColumn != -1) {
-            long addressLong = rs.getLong(idColumn);
-            try {
-                address = Utils.parseAddressFromLong(addressLong);
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-                deleteUnknowHost(addressLong);
+    private void requestFlush() {
+        if (getBook().getDirtyCount() >= FLUSH_BATCH_SIZE) {
+            synchronized (flushSignal) {
+                flushSignal.notifyAll();
             }
         }
-        if (address == null) {
-            return null;
-        }
-        Peer peerItem = new Peer(address);
-        idColumn = rs.findColumn(AbstractDb.PeersColumns.PEER_CONNECTED_CNT);
-        if (idColumn != -1) {
-            peerItem.setPeerConnectedCnt(rs.getInt(idColumn));
-        }
-        idColumn = rs.findColumn(AbstractDb.PeersColumns.PEER_PORT);
-        if (idColumn != -1) {
-            peerItem.setPeerPort(rs.getInt(idColumn));
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher != null) {
+            return;
         }
-        idColumn = rs.findColumn(AbstractDb.PeersColumns.PEER_SERVICES);
-        if (idColumn != -1) {
-            peerItem.setPeerServices(rs.getLong(idColumn));
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (flushSignal) {
+                        try {
+                            flushSignal.wait(FLUSH_INTERVAL_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    sampleLatency();
+                    flush();
+                }
+            }
+        }, "PeerFlush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Ranks the connected peers by their last ping, the db does not keep it.
+     */
+    private void sampleLatency() {
+        List<Peer> connectedPeers = PeerManager.instance().getConnectedPeers();
+        if (connectedPeers == null) {
+            return;
         }
-        idColumn = rs.findColumn(AbstractDb.PeersColumns.PEER_TIMESTAMP);
-        if (idColumn != -1) {
-            peerItem.setPeerTimestamp(rs.getInt(idColumn));
+        PeerAddressBook addressBook = getBook();
+        for (Peer peer : connectedPeers) {
+            if (peer.pingTime < Long.MAX_VALUE) {
+                addressBook.setPingMillis(Utils.parseLongFromAddress(peer.getPeerAddress()), peer.pingTime);
+            }
         }
-        return peerItem;
+    }
+
+    private void deleteUnknowHost(long address) {
+        this.mDb.executeUpdate("delete from peers where peer_address=?"
+                , new String[]{Long.toString(address)});
 
     }
 
     public void recreate() {
-        try {
-            Connection connection = this.mDb.getConn();
-            Statement stmt = connection.createStatement();
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.PEERS + ";");
-            stmt.executeUpdate(AbstractDb.CREATE_PEER_SQL);
-            connection.commit();
-            stmt.close();
+        // a flush must not write the old peers into the new table
+        synchronized (flushLock) {
+            try {
+                this.mDb.getWriter().execute(new DbWriter.Operation<Void>() {
+                    @Override
+                    public Void run(Connection conn) throws SQLException {
+                        Statement stmt = conn.createStatement();
+                        stmt.executeUpdate("drop table " + AbstractDb.Tables.PEERS + ";");
+                        stmt.executeUpdate(AbstractDb.CREATE_PEER_SQL);
+                        stmt.close();
+                        return null;
+                    }
+                });
+                synchronized (this) {
+                    book = null;
+                }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -0,0 +1,174 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.In;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks up the outs spent by a list of ins, of one tx or of a whole batch of
+ * txs, with one join instead of a query per in. The (prev_tx_hash, prev_out_sn)
+ * pairs are staged in a temp table, numbered by their position in the list, so
+ * results can be matched back to the ins. Temp tables belong to a connection,
+ * the stage lives on the connection of a ReadSession and never joins a
+ * transaction of the writer.
+ */
+public class PrevOutResolver {
+
+    /**
+     * What the db knows about the out one in spends.
+     */
+    public static final class PrevOut {
+        private final In in;
+        private final String outAddress;
+        private final boolean spentByConfirmedTx;
+
+        private PrevOut(In in, String outAddress, boolean spentByConfirmedTx) {
+            this.in = in;
+            this.outAddress = outAddress;
+            this.spentByConfirmedTx = spentByConfirmedTx;
+        }
+
+        public In getIn() {
+            return in;
+        }
+
+        /**
+         * @return null when the out is not stored
+         */
+        public String getOutAddress() {
+            return outAddress;
+        }
+
+        public boolean isFound() {
+            return outAddress != null;
+        }
+
+        /**
+         * @return true when a confirmed tx spends the same out
+         */
+        public boolean isSpentByConfirmedTx() {
+            return spentByConfirmedTx;
+        }
+    }
+
+    public interface RowHandler {
+        void handle(ResultSet c) throws SQLException;
+    }
+
+    static final String CREATE_STAGE_SQL = "create temp table if not exists prev_outs " +
+            "(seq integer primary key, prev_tx_hash blob, prev_out_sn integer)";
+    private static final String CLEAR_STAGE_SQL = "delete from prev_outs";
+    private static final String STAGE_SQL = "insert into prev_outs(seq,prev_tx_hash,prev_out_sn) values(?,?,?)";
+    static final String RESOLVE_SQL = "select p.seq, o.out_address, " +
+            "exists (select 1 from ins a, txs b where a.tx_hash=b.tx_hash and b.block_no is not null " +
+            "and a.prev_tx_hash=p.prev_tx_hash and a.prev_out_sn=p.prev_out_sn) confirmed_spent " +
+            "from prev_outs p left join outs o on o.tx_hash=p.prev_tx_hash and o.out_sn=p.prev_out_sn " +
+            "order by p.seq";
+
+    private final AbstractDBHelper mDb;
+
+    public PrevOutResolver(AbstractDBHelper db) {
+        this.mDb = db;
+    }
+
+    /**
+     * @return one entry per in, in the order of the list
+     */
+    public List<PrevOut> resolve(final List<In> ins) throws SQLException {
+        final List<PrevOut> result = new ArrayList<PrevOut>(ins.size());
+        query(ins, RESOLVE_SQL, new RowHandler() {
+            @Override
+            public void handle(ResultSet c) throws SQLException {
+                int seq = c.getInt(1);
+                result.add(new PrevOut(ins.get(seq), c.getString(2), c.getInt(3) > 0));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stages the ins and runs sql, which joins the temp table prev_outs
+     * (seq, prev_tx_hash, prev_out_sn) with whatever it needs. seq is the
+     * index of the in in the list.
+     */
+    public void query(List<In> ins, String sql, RowHandler handler) throws SQLException {
+        if (ins == null || ins.size() == 0) {
+            return;
+        }
+        ReadSession session = this.mDb.beginRead();
+        try {
+            query(session, ins, sql, handler);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Like query(ins, sql, handler), inside a read the caller already holds.
+     */
+    public void query(ReadSession session, List<In> ins, String sql, RowHandler handler) throws SQLException {
+        if (ins == null || ins.size() == 0) {
+            return;
+        }
+        Statement stmt = session.getConn().createStatement();
+        PreparedStatement statement = null;
+        ResultSet c = null;
+        try {
+            stmt.executeUpdate(CREATE_STAGE_SQL);
+            stmt.executeUpdate(CLEAR_STAGE_SQL);
+
+            statement = session.getPreparedStatement(STAGE_SQL, null);
+            for (int i = 0; i < ins.size(); i++) {
+                In in = ins.get(i);
+                statement.setInt(1, i);
+                statement.setBytes(2, in.getPrevTxHash());
+                statement.setInt(3, in.getPrevOutSn());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            statement.close();
+            statement = null;
+
+            statement = session.getPreparedStatement(sql, null);
+            c = statement.executeQuery();
+            while (c.next()) {
+                handler.handle(c);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            if (statement != null) {
+                statement.close();
+            }
+            try {
+                stmt.executeUpdate(CLEAR_STAGE_SQL);
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size pool of read-only connections to a database in WAL journal mode.
+ * Readers on these connections never wait for the writer connection and the
+ * writer never waits for them. A thread holds at most one connection, a read
+ * begun inside another one shares it, so nested provider calls never wait
+ * for a connection of their own.
+ */
+public class ReadConnectionPool {
+
+    public static final int DEFAULT_SIZE = 3;
+    // a read waiting this long for a connection fails instead of hanging its caller
+    public static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+    private final List<ReadSession> allSessions = new ArrayList<ReadSession>();
+    private final BlockingQueue<ReadSession> idleSessions;
+    private final ThreadLocal<ReadSession> heldSession = new ThreadLocal<ReadSession>();
+    private volatile boolean closed = false;
+
+    public ReadConnectionPool(AbstractDBHelper db, String connectionString, int size) throws SQLException {
+        idleSessions = new ArrayBlockingQueue<ReadSession>(size);
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection conn = DriverManager.getConnection(connectionString, config.toProperties());
+                conn.setAutoCommit(false);
+                ReadSession session = new ReadSession(this, conn, new StatementCache(conn, db));
+                allSessions.add(session);
+                idleSessions.add(session);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public ReadSession acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("read connection pool is closed");
+        }
+        ReadSession session = heldSession.get();
+        if (session != null) {
+            session.open();
+            return session;
+        }
+        try {
+            session = idleSessions.poll(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a read connection");
+        }
+        if (session == null) {
+            throw new SQLException("no read connection free after " + ACQUIRE_TIMEOUT_SECONDS + "s");
+        }
+        session.open();
+        heldSession.set(session);
+        return session;
+    }
+
+    void release(ReadSession session) {
+        // sessions are closed by the thread that began them
+        heldSession.remove();
+        if (closed) {
+            session.destroy();
+        } else {
+            idleSessions.offer(session);
+        }
+    }
+
+    public int size() {
+        return allSessions.size();
+    }
+
+    public int idleCount() {
+        return idleSessions.size();
+    }
+
+    public void close() {
+        closed = true;
+        List<ReadSession> idle = new ArrayList<ReadSession>();
+        idleSessions.drainTo(idle);
+        for (ReadSession session : idle) {
+            session.destroy();
+        }
+    }
+}
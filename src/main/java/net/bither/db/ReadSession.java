@@ -0,0 +1,120 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A read transaction on one pooled read-only connection. Every query prepared
+ * through the session sees the same snapshot of the database, taken at the
+ * first query, until close() is called. Always close the session in a finally block.
+ * A session over the writer connection holds the lock of the db helper until
+ * closed. Writes submitted to the DbWriter while it is open fail on the same
+ * thread and wait for the close on any other.
+ *
+ * A thread that begins a read while it holds a pooled session gets the same
+ * session back, it is handed back to the pool when the outermost close() runs.
+ */
+public class ReadSession {
+
+    private final ReadConnectionPool pool;
+    private final Connection conn;
+    private final StatementCache statementCache;
+    private final Lock lock;
+    // opens not yet closed, nested reads of one thread share the session
+    private int depth = 0;
+
+    ReadSession(ReadConnectionPool pool, Connection conn, StatementCache statementCache) {
+        this(pool, conn, statementCache, null);
+    }
+
+    ReadSession(ReadConnectionPool pool, Connection conn, StatementCache statementCache, Lock lock) {
+        this.pool = pool;
+        this.conn = conn;
+        this.statementCache = statementCache;
+        this.lock = lock;
+    }
+
+    public PreparedStatement getPreparedStatement(String sql, String[] arg) throws SQLException {
+        return getPreparedStatement(sql, (Object[]) arg);
+    }
+
+    public PreparedStatement getPreparedStatement(String sql, Object[] arg) throws SQLException {
+        PreparedStatement stmt = statementCache.acquire(sql);
+        AbstractDBHelper.bindArgs(stmt, arg);
+        return stmt;
+    }
+
+    public Connection getConn() {
+        return conn;
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    void open() {
+        if (lock != null) {
+            lock.lock();
+        }
+        synchronized (this) {
+            depth++;
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (depth == 0) {
+                return;
+            }
+            depth--;
+        }
+        if (lock != null) {
+            lock.unlock();
+        }
+        synchronized (this) {
+            if (depth > 0) {
+                return;
+            }
+        }
+        if (pool == null) {
+            // session over the writer connection, nothing to end
+            return;
+        }
+        try {
+            // ends the read transaction so the next session starts from a fresh snapshot
+            conn.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        pool.release(this);
+    }
+
+    void destroy() {
+        statementCache.clear();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.utils.LogUtil;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * Execution statistics of every statement that goes through a StatementCache,
+ * keyed by the sql with its literals replaced by ?. Latencies are kept in
+ * power of two histograms, so recording is a few additions. The first time a
+ * statement runs slower than the threshold its query plan is captured on a
+ * background thread, over a read session of the db it ran on. Off unless
+ * started with -Dbither.sqlstats=true or enabled over JMX.
+ */
+public class SqlStats implements SqlStatsMBean {
+
+    public static final long DEFAULT_SLOW_QUERY_MILLIS = 100;
+    public static final String OBJECT_NAME = "net.bither.db:type=SqlStats";
+    public static final String ENABLED_PROPERTY = "bither.sqlstats";
+
+    // bucket i counts executions below 2^i microseconds, the last one everything slower
+    private static final int BUCKET_COUNT = 24;
+    private static final int MAX_NORMALIZED_CACHE_SIZE = 4096;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("[xX]?'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static SqlStats sqlStats = new SqlStats();
+
+    public static SqlStats getInstance() {
+        return sqlStats;
+    }
+
+    /**
+     * Totals of one normalized statement.
+     */
+    public static final class Entry {
+        private final String sql;
+        private long count;
+        private long rows;
+        private long totalNanos;
+        private long maxNanos;
+        private long slowCount;
+        private final long[] buckets = new long[BUCKET_COUNT];
+        private String plan;
+
+        private Entry(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public synchronized long getSlowCount() {
+            return slowCount;
+        }
+
+        public synchronized String getPlan() {
+            return plan;
+        }
+
+        /**
+         * @return the upper bound in microseconds of the bucket holding the percentile
+         */
+        public synchronized long getPercentileMicros(double percentile) {
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return maxNanos / 1000;
+        }
+
+        private synchronized void add(long rowCount, long nanos) {
+            count++;
+            rows += rowCount;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+        }
+
+        /**
+         * @return true for the first slow execution, which should capture the plan
+         */
+        private synchronized boolean markSlow() {
+            slowCount++;
+            if (plan == null) {
+                plan = "";
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, String> normalizedSql = new ConcurrentHashMap<String, String>();
+    private volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+    private volatile long slowQueryNanos = DEFAULT_SLOW_QUERY_MILLIS * 1000000;
+    private ExecutorService explainExecutor;
+
+    private SqlStats() {
+    }
+
+    /**
+     * Makes the statistics visible to JMX clients such as jconsole.
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param db the db the statement ran on, a read session of it explains slow queries
+     */
+    public void record(String sql, long rows, long nanos, AbstractDBHelper db) {
+        if (!enabled) {
+            return;
+        }
+        String key = normalize(sql);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry(key);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        entry.add(rows, nanos);
+        if (nanos >= slowQueryNanos && entry.markSlow()) {
+            explainLater(entry, sql, nanos, db);
+        }
+    }
+
+    public String normalize(String sql) {
+        String key = normalizedSql.get(sql);
+        if (key != null) {
+            return key;
+        }
+        key = STRING_LITERAL.matcher(sql).replaceAll("?");
+        key = NUMBER_LITERAL.matcher(key).replaceAll("?");
+        key = IN_LIST.matcher(key).replaceAll("(?...)");
+        key = WHITESPACE.matcher(key).replaceAll(" ").trim();
+        // sql with quoted literals is different on every call, remembering it would only grow the map
+        if (sql.indexOf('\'') < 0 && normalizedSql.size() < MAX_NORMALIZED_CACHE_SIZE) {
+            normalizedSql.put(sql, key);
+        }
+        return key;
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<Entry>(entries.values());
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                long l = lhs.getTotalNanos();
+                long r = rhs.getTotalNanos();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getSlowQueryMillis() {
+        return slowQueryNanos / 1000000;
+    }
+
+    @Override
+    public void setSlowQueryMillis(long slowQueryMillis) {
+        this.slowQueryNanos = slowQueryMillis * 1000000;
+    }
+
+    @Override
+    public int getStatementCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getExecutionCount() {
+        long count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        long count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.getSlowCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return one block per statement, the most expensive in total first
+     */
+    @Override
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : getEntries()) {
+            synchronized (entry) {
+                builder.append(entry.sql).append('\n');
+                builder.append("  count=").append(entry.count)
+                        .append(" rows=").append(entry.rows)
+                        .append(" totalMs=").append(entry.totalNanos / 1000000)
+                        .append(" avgUs=").append(entry.count == 0 ? 0 : entry.totalNanos / entry.count / 1000)
+                        .append(" p50Us<").append(entry.getPercentileMicros(0.5))
+                        .append(" p95Us<").append(entry.getPercentileMicros(0.95))
+                        .append(" p99Us<").append(entry.getPercentileMicros(0.99))
+                        .append(" maxUs=").append(entry.maxNanos / 1000)
+                        .append(" slow=").append(entry.slowCount).append('\n');
+                if (entry.plan != null && entry.plan.length() > 0) {
+                    builder.append("  plan:\n").append(entry.plan).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void dumpToFile(String path) {
+        dump(new File(path));
+    }
+
+    public void dump(File file) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(getReport());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        entries.clear();
+    }
+
+    private void explainLater(final Entry entry, final String sql, final long nanos, final AbstractDBHelper db) {
+        if (db == null) {
+            return;
+        }
+        getExplainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                String plan = explain(sql, db);
+                synchronized (entry) {
+                    entry.plan = plan;
+                }
+                LogUtil.printlnOut("slow sql " + nanos / 1000000 + "ms: " + entry.sql + "\n" + plan);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExplainExecutor() {
+        if (explainExecutor == null) {
+            explainExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SqlStatsExplain");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return explainExecutor;
+    }
+
+    private static String explain(String sql, AbstractDBHelper db) {
+        StringBuilder plan = new StringBuilder();
+        ReadSession session = null;
+        try {
+            session = db.beginRead();
+            // not through the statement cache, explaining is not worth a cached statement or a record
+            // unbound parameters are null, which does not change the plan
+            PreparedStatement stmt = session.getConn().prepareStatement("explain query plan " + sql);
+            ResultSet c = stmt.executeQuery();
+            while (c.next()) {
+                plan.append("    ").append(c.getString(c.findColumn("detail"))).append('\n');
+            }
+            c.close();
+            stmt.close();
+        } catch (SQLException e) {
+            plan.append("    explain failed: ").append(e.getMessage()).append('\n');
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        return plan.toString();
+    }
+}
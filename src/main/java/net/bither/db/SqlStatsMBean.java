@@ -0,0 +1,45 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+/**
+ * JMX view of SqlStats, registered as net.bither.db:type=SqlStats.
+ */
+public interface SqlStatsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getSlowQueryMillis();
+
+    void setSlowQueryMillis(long slowQueryMillis);
+
+    int getStatementCount();
+
+    long getExecutionCount();
+
+    long getSlowQueryCount();
+
+    String getReport();
+
+    void dumpToFile(String path);
+
+    void reset();
+}
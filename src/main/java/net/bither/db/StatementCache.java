@@ -0,0 +1,228 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of prepared statements for one connection, keyed by sql text.
+ * A statement is checked out while in use; calling close() on it clears the
+ * parameters and returns it to the cache instead of finalizing it. While
+ * SqlStats is enabled the execute calls are timed and recorded there, rows
+ * read from a result set afterwards are not.
+ */
+public class StatementCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // IN-lists built with literals are unique per call, keeping them would only evict useful statements
+    private static final int MAX_CACHEABLE_SQL_LENGTH = 1024;
+
+    // any connection, the maintenance thread waits for a quiet moment
+    private static volatile long lastUseTime = 0;
+
+    private final Connection conn;
+    // explains the slow statements of conn on one of its read sessions
+    private final AbstractDBHelper db;
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> idleStatements;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public StatementCache(Connection conn, AbstractDBHelper db) {
+        this(conn, db, DEFAULT_CAPACITY);
+    }
+
+    public StatementCache(Connection conn, AbstractDBHelper db, int capacity) {
+        this.conn = conn;
+        this.db = db;
+        this.capacity = capacity;
+        this.idleStatements = new LinkedHashMap<String, PreparedStatement>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > StatementCache.this.capacity) {
+                    evictionCount++;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return when a statement of any cache was last checked out or handed back
+     */
+    public static long getLastUseTime() {
+        return lastUseTime;
+    }
+
+    public synchronized PreparedStatement acquire(String sql) throws SQLException {
+        lastUseTime = System.currentTimeMillis();
+        if (sql.length() > MAX_CACHEABLE_SQL_LENGTH) {
+            missCount++;
+            return wrap(sql, conn.prepareStatement(sql), false);
+        }
+        PreparedStatement stmt = idleStatements.remove(sql);
+        if (stmt != null) {
+            hitCount++;
+        } else {
+            missCount++;
+            stmt = conn.prepareStatement(sql);
+        }
+        return wrap(sql, stmt, true);
+    }
+
+    private synchronized void release(String sql, PreparedStatement stmt, boolean cacheable) {
+        lastUseTime = System.currentTimeMillis();
+        if (!cacheable) {
+            closeQuietly(stmt);
+            return;
+        }
+        try {
+            stmt.clearParameters();
+            stmt.clearBatch();
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            return;
+        }
+        if (idleStatements.containsKey(sql)) {
+            // the same sql was checked out twice, keep only one copy
+            closeQuietly(stmt);
+        } else {
+            idleStatements.put(sql, stmt);
+        }
+    }
+
+    public synchronized void clear() {
+        List<PreparedStatement> statements = new ArrayList<PreparedStatement>(idleStatements.values());
+        idleStatements.clear();
+        for (PreparedStatement stmt : statements) {
+            closeQuietly(stmt);
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized int size() {
+        return idleStatements.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StatementCache{size=" + idleStatements.size() + ", capacity=" + capacity
+                + ", hit=" + hitCount + ", miss=" + missCount + ", eviction=" + evictionCount + "}";
+    }
+
+    private PreparedStatement wrap(final String sql, final PreparedStatement stmt, final boolean cacheable) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class[]{PreparedStatement.class}, new InvocationHandler() {
+                    private boolean released = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(stmt, args);
+                        }
+                        if ("close".equals(name)) {
+                            if (!released) {
+                                released = true;
+                                release(sql, stmt, cacheable);
+                            }
+                            return null;
+                        }
+                        if ("isClosed".equals(name)) {
+                            return released || stmt.isClosed();
+                        }
+                        if (released) {
+                            throw new SQLException("statement has been returned to the cache");
+                        }
+                        boolean isExecute = name.startsWith("execute") && SqlStats.getInstance().isEnabled();
+                        long begin = isExecute ? System.nanoTime() : 0;
+                        Object result;
+                        try {
+                            result = method.invoke(stmt, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (!isExecute) {
+                            return result;
+                        }
+                        SqlStats.getInstance().record(sql, updatedRows(result), System.nanoTime() - begin, db);
+                        return result;
+                    }
+                });
+    }
+
+    private static long updatedRows(Object result) {
+        if (result instanceof Integer) {
+            return Math.max(0, (Integer) result);
+        }
+        if (result instanceof int[]) {
+            long rows = 0;
+            for (int count : (int[]) result) {
+                if (count > 0) {
+                    rows += count;
+                }
+            }
+            return rows;
+        }
+        return 0;
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
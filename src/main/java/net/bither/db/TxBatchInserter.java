@@ -0,0 +1,262 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.AddressManager;
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Utils;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Writes a batch of txs with one batched statement per kind of row instead of
+ * a lookup plus an insert per tx, in and out. Rows already in the db are kept
+ * by insert or ignore, so the caller only has to commit once.
+ */
+public class TxBatchInserter {
+
+    private static final String INSERT_TX_SQL = "insert or ignore into txs " +
+            "(tx_hash,tx_ver,tx_locktime,tx_time,block_no,source)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_IN_SQL = "insert or ignore into ins " +
+            "(tx_hash,in_sn,prev_tx_hash,prev_out_sn,in_signature,in_sequence)" +
+            " values (?,?,?,?,?,?) ";
+    private static final String INSERT_OUT_SQL = "insert or ignore into outs " +
+            "(tx_hash,out_sn,out_script,out_value,out_status,out_address,hd_account_id)" +
+            " values (?,?,?,?,?,?,?) ";
+    private static final String UPDATE_OUT_HD_ACCOUNT_SQL = "update outs set hd_account_id=? " +
+            "where tx_hash=? and out_sn=?";
+    private static final String INSERT_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
+    // the owner of the spent out is related to the spending tx
+    private static final String INSERT_IN_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) " +
+            "select out_address,? from outs where tx_hash=? and out_sn=? and out_address is not null";
+    private static final String UPDATE_SPENT_BY_IN_SQL = "update outs set out_status=? where tx_hash=? and out_sn=?";
+    // a tx already in the db may spend an out that only arrives now
+    private static final String INSERT_SPENDER_ADDRESS_TX_SQL = "insert or ignore into addresses_txs(address, tx_hash) " +
+            "select ?,tx_hash from ins where prev_tx_hash=? and prev_out_sn=?";
+    private static final String UPDATE_SPENT_BY_EXIST_IN_SQL = "update outs set out_status=? where tx_hash=? and out_sn=? " +
+            "and exists (select 1 from ins where prev_tx_hash=? and prev_out_sn=?)";
+
+    private final AbstractDBHelper mDb;
+
+    public TxBatchInserter(AbstractDBHelper db) {
+        this.mDb = db;
+    }
+
+    /**
+     * Inserts the txs on the writer connection without committing.
+     *
+     * @return the number of distinct txs in the batch
+     */
+    public int insert(List<Tx> txItems) throws SQLException {
+        Collection<Tx> txs = dedupe(txItems);
+        if (txs.size() == 0) {
+            return 0;
+        }
+        markHDAccountOuts(txs);
+
+        PreparedStatement txStatement = this.mDb.getPreparedStatement(INSERT_TX_SQL, null);
+        PreparedStatement inStatement = this.mDb.getPreparedStatement(INSERT_IN_SQL, null);
+        PreparedStatement outStatement = this.mDb.getPreparedStatement(INSERT_OUT_SQL, null);
+        PreparedStatement hdAccountStatement = this.mDb.getPreparedStatement(UPDATE_OUT_HD_ACCOUNT_SQL, null);
+        try {
+            for (Tx txItem : txs) {
+                addTx(txStatement, txItem);
+                for (In inItem : txItem.getIns()) {
+                    addIn(inStatement, inItem);
+                }
+                for (Out outItem : txItem.getOuts()) {
+                    addOut(outStatement, outItem);
+                    if (outItem.getHDAccountId() > -1) {
+                        // the out may have been stored before the account knew the address
+                        hdAccountStatement.setInt(1, outItem.getHDAccountId());
+                        hdAccountStatement.setBytes(2, txItem.getTxHash());
+                        hdAccountStatement.setInt(3, outItem.getOutSn());
+                        hdAccountStatement.addBatch();
+                    }
+                }
+            }
+            txStatement.executeBatch();
+            inStatement.executeBatch();
+            outStatement.executeBatch();
+            hdAccountStatement.executeBatch();
+        } finally {
+            txStatement.close();
+            inStatement.close();
+            outStatement.close();
+            hdAccountStatement.close();
+        }
+        // every row of the batch is stored now, so spends between txs of the same batch resolve too
+        linkIns(txs);
+        linkOuts(txs);
+        return txs.size();
+    }
+
+    private Collection<Tx> dedupe(List<Tx> txItems) {
+        LinkedHashMap<Sha256Hash, Tx> txs = new LinkedHashMap<Sha256Hash, Tx>();
+        for (Tx txItem : txItems) {
+            Sha256Hash hash = new Sha256Hash(txItem.getTxHash());
+            if (!txs.containsKey(hash)) {
+                txs.put(hash, txItem);
+            }
+        }
+        return txs.values();
+    }
+
+    private void markHDAccountOuts(Collection<Tx> txs) {
+        HashSet<String> outAddresses = new HashSet<String>();
+        for (Tx txItem : txs) {
+            for (Out out : txItem.getOuts()) {
+                if (!Utils.isEmpty(out.getOutAddress())) {
+                    outAddresses.add(out.getOutAddress());
+                }
+            }
+        }
+        if (outAddresses.size() == 0) {
+            return;
+        }
+        HashSet<String> addressSet = AbstractDb.hdAccountProvider.getBelongAccountAddresses(
+                new ArrayList<String>(outAddresses));
+        if (addressSet.size() == 0) {
+            return;
+        }
+        int hdSeedId = AddressManager.getInstance().getHdAccount().getHdSeedId();
+        for (Tx txItem : txs) {
+            for (Out out : txItem.getOuts()) {
+                if (addressSet.contains(out.getOutAddress())) {
+                    out.setHDAccountId(hdSeedId);
+                }
+            }
+        }
+    }
+
+    private void addTx(PreparedStatement statement, Tx txItem) throws SQLException {
+        String blockNoString = null;
+        if (txItem.getBlockNo() != Tx.TX_UNCONFIRMED) {
+            blockNoString = Integer.toString(txItem.getBlockNo());
+        }
+        statement.setBytes(1, txItem.getTxHash());
+        statement.setLong(2, txItem.getTxVer());
+        statement.setLong(3, txItem.getTxLockTime());
+        statement.setLong(4, txItem.getTxTime());
+        statement.setString(5, blockNoString);
+        statement.setInt(6, txItem.getSource());
+        statement.addBatch();
+    }
+
+    private void addIn(PreparedStatement statement, In inItem) throws SQLException {
+        String signatureString = null;
+        if (inItem.getInSignature() != null) {
+            signatureString = Base58.encode(inItem.getInSignature());
+        }
+        statement.setBytes(1, inItem.getTxHash());
+        statement.setInt(2, inItem.getInSn());
+        statement.setBytes(3, inItem.getPrevTxHash());
+        statement.setInt(4, inItem.getPrevOutSn());
+        statement.setString(5, signatureString);
+        statement.setLong(6, inItem.getInSequence());
+        statement.addBatch();
+    }
+
+    private void addOut(PreparedStatement statement, Out outItem) throws SQLException {
+        String outAddress = null;
+        if (!Utils.isEmpty(outItem.getOutAddress())) {
+            outAddress = outItem.getOutAddress();
+        }
+        statement.setBytes(1, outItem.getTxHash());
+        statement.setInt(2, outItem.getOutSn());
+        statement.setString(3, Base58.encode(outItem.getOutScript()));
+        statement.setLong(4, outItem.getOutValue());
+        statement.setInt(5, outItem.getOutStatus().getValue());
+        statement.setString(6, outAddress);
+        statement.setInt(7, outItem.getHDAccountId());
+        statement.addBatch();
+    }
+
+    private void linkIns(Collection<Tx> txs) throws SQLException {
+        PreparedStatement addressTxStatement = this.mDb.getPreparedStatement(INSERT_IN_ADDRESS_TX_SQL, null);
+        PreparedStatement spentStatement = this.mDb.getPreparedStatement(UPDATE_SPENT_BY_IN_SQL, null);
+        try {
+            for (Tx txItem : txs) {
+                for (In inItem : txItem.getIns()) {
+                    addressTxStatement.setBytes(1, txItem.getTxHash());
+                    addressTxStatement.setBytes(2, inItem.getPrevTxHash());
+                    addressTxStatement.setInt(3, inItem.getPrevOutSn());
+                    addressTxStatement.addBatch();
+
+                    spentStatement.setInt(1, Out.OutStatus.spent.getValue());
+                    spentStatement.setBytes(2, inItem.getPrevTxHash());
+                    spentStatement.setInt(3, inItem.getPrevOutSn());
+                    spentStatement.addBatch();
+                }
+            }
+            addressTxStatement.executeBatch();
+            spentStatement.executeBatch();
+        } finally {
+            addressTxStatement.close();
+            spentStatement.close();
+        }
+    }
+
+    private void linkOuts(Collection<Tx> txs) throws SQLException {
+        PreparedStatement addressTxStatement = this.mDb.getPreparedStatement(INSERT_ADDRESS_TX_SQL, null);
+        PreparedStatement spenderStatement = this.mDb.getPreparedStatement(INSERT_SPENDER_ADDRESS_TX_SQL, null);
+        PreparedStatement spentStatement = this.mDb.getPreparedStatement(UPDATE_SPENT_BY_EXIST_IN_SQL, null);
+        try {
+            for (Tx txItem : txs) {
+                for (Out outItem : txItem.getOuts()) {
+                    if (!Utils.isEmpty(outItem.getOutAddress())) {
+                        addressTxStatement.setString(1, outItem.getOutAddress());
+                        addressTxStatement.setBytes(2, txItem.getTxHash());
+                        addressTxStatement.addBatch();
+
+                        spenderStatement.setString(1, outItem.getOutAddress());
+                        spenderStatement.setBytes(2, txItem.getTxHash());
+                        spenderStatement.setInt(3, outItem.getOutSn());
+                        spenderStatement.addBatch();
+                    }
+                    spentStatement.setInt(1, Out.OutStatus.spent.getValue());
+                    spentStatement.setBytes(2, txItem.getTxHash());
+                    spentStatement.setInt(3, outItem.getOutSn());
+                    spentStatement.setBytes(4, txItem.getTxHash());
+                    spentStatement.setInt(5, outItem.getOutSn());
+                    spentStatement.addBatch();
+                }
+            }
+            addressTxStatement.executeBatch();
+            spenderStatement.executeBatch();
+            spentStatement.executeBatch();
+        } finally {
+            addressTxStatement.close();
+            spenderStatement.close();
+            spentStatement.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.Out;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes txs together with every tx that spends their outs, directly or
+ * further down, using set operations over temp tables of the writer
+ * connection. Outs the removed txs had spent become unspent again unless a
+ * remaining tx still spends them.
+ */
+public class TxCascadeRemover {
+
+    public interface TxRemovedListener {
+        /**
+         * Called once per removal with the whole removed set, after it is committed.
+         */
+        void onTxsRemoved(List<byte[]> txHashes);
+    }
+
+    static final String[] CREATE_STAGE_SQL = new String[]{
+            "create temp table if not exists remove_roots (tx_hash blob primary key)",
+            "create temp table if not exists remove_txs (tx_hash blob primary key)"
+    };
+    private static final String[] CLEAR_STAGE_SQL = new String[]{
+            "delete from remove_roots",
+            "delete from remove_txs"
+    };
+    private static final String STAGE_ROOT_SQL = "insert or ignore into remove_roots(tx_hash) values(?)";
+    static final String STAGE_DESCENDANTS_SQL = "with recursive descendant(tx_hash) as (" +
+            "select tx_hash from remove_roots " +
+            "union select i.tx_hash from ins i, descendant d where i.prev_tx_hash=d.tx_hash) " +
+            "insert or ignore into remove_txs(tx_hash) select d.tx_hash from descendant d, txs t " +
+            "where t.tx_hash=d.tx_hash";
+    private static final String SELECT_REMOVED_SQL = "select tx_hash from remove_txs";
+    // outs spent by a removed tx that no remaining tx spends
+    static final String RESTORE_PREV_OUTS_SQL = "update outs set out_status=? where rowid in (" +
+            "select o.rowid from remove_txs r cross join ins i cross join outs o where i.tx_hash=r.tx_hash " +
+            "and o.tx_hash=i.prev_tx_hash and o.out_sn=i.prev_out_sn " +
+            "and o.tx_hash not in (select tx_hash from remove_txs) " +
+            "and not exists (select 1 from ins j where j.prev_tx_hash=o.tx_hash and j.prev_out_sn=o.out_sn " +
+            "and j.tx_hash not in (select tx_hash from remove_txs)))";
+    static final String[] DELETE_SQL = new String[]{
+            "delete from addresses_txs where tx_hash in (select tx_hash from remove_txs)",
+            "delete from outs where tx_hash in (select tx_hash from remove_txs)",
+            "delete from ins where tx_hash in (select tx_hash from remove_txs)",
+            "delete from txs where tx_hash in (select tx_hash from remove_txs)"
+    };
+
+    private final AbstractDBHelper mDb;
+
+    public TxCascadeRemover(AbstractDBHelper db) {
+        this.mDb = db;
+    }
+
+    /**
+     * Removes the roots and all their descendants on the writer connection without
+     * committing.
+     *
+     * @return hashes of the txs that were removed
+     */
+    public List<byte[]> remove(List<byte[]> rootTxHashes) throws SQLException {
+        List<byte[]> removed = new ArrayList<byte[]>();
+        if (rootTxHashes == null || rootTxHashes.size() == 0) {
+            return removed;
+        }
+        Connection conn = this.mDb.getConn();
+        Statement stmt = conn.createStatement();
+        for (String sql : CREATE_STAGE_SQL) {
+            stmt.executeUpdate(sql);
+        }
+        for (String sql : CLEAR_STAGE_SQL) {
+            stmt.executeUpdate(sql);
+        }
+
+        PreparedStatement statement = this.mDb.getPreparedStatement(STAGE_ROOT_SQL, null);
+        for (byte[] txHash : rootTxHashes) {
+            statement.setBytes(1, txHash);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+        statement.close();
+        stmt.executeUpdate(STAGE_DESCENDANTS_SQL);
+
+        ResultSet c = stmt.executeQuery(SELECT_REMOVED_SQL);
+        while (c.next()) {
+            removed.add(c.getBytes(1));
+        }
+        c.close();
+
+        if (removed.size() > 0) {
+            statement = this.mDb.getPreparedStatement(RESTORE_PREV_OUTS_SQL,
+                    new Object[]{Out.OutStatus.unspent.getValue()});
+            statement.executeUpdate();
+            statement.close();
+            for (String sql : DELETE_SQL) {
+                stmt.executeUpdate(sql);
+            }
+        }
+        for (String sql : CLEAR_STAGE_SQL) {
+            stmt.executeUpdate(sql);
+        }
+        stmt.close();
+        return removed;
+    }
+}
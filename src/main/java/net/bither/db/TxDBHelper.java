@@ -19,22 +19,73 @@
 package net.bither.db;
 
 import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Base58;
 import net.bither.preference.UserPreference;
+import net.bither.utils.LogUtil;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 public class TxDBHelper extends AbstractDBHelper {
 
-    private static final String DB_NAME = "bither.db";
-    private static final int CURRENT_VERSION = 2;
+    static final String DB_NAME = "bither.db";
+    private static final int CURRENT_VERSION = 4;
+
+    // rows rewritten per transaction by v2ToV3, an interrupted upgrade resumes after the last committed chunk
+    private static final int UPGRADE_CHUNK_SIZE = 1000;
+
+    // indexes behind the hot queries of the providers, QueryPlanCheck fails when one of them scans a table
+    static final String[] QUERY_INDEXES = new String[]{
+            "create index if not exists idx_addresses_txs_tx_hash on addresses_txs (tx_hash, address)",
+            "create index if not exists idx_outs_address_status on outs (out_address, out_status)",
+            "create index if not exists idx_outs_hd_account_status on outs (hd_account_id, out_status)",
+            "create index if not exists idx_ins_prev_out on ins (prev_tx_hash, prev_out_sn, tx_hash)",
+            "create index if not exists idx_hd_account_addresses_synced on hd_account_addresses (is_synced, address)",
+            "create index if not exists idx_hd_account_addresses_issued on hd_account_addresses " +
+                    "(path_type, is_issued, address_index)",
+            "create index if not exists idx_blocks_main_no on blocks (is_main, block_no)"
+    };
+
+    // table name followed by its hash columns, stored as base58 text up to v2 and as 32 byte blobs since v3
+    private static final String[][] HASH_COLUMNS = new String[][]{
+            {AbstractDb.Tables.TXS, "tx_hash"},
+            {AbstractDb.Tables.INS, "tx_hash", "prev_tx_hash"},
+            {AbstractDb.Tables.OUTS, "tx_hash"},
+            {AbstractDb.Tables.ADDRESSES_TXS, "tx_hash"},
+            {AbstractDb.Tables.BLOCKS, "block_hash", "block_root", "block_prev"}
+    };
+
+    public interface UpgradeListener {
+        void onProgress(long done, long total);
+    }
+
+    private UpgradeListener upgradeListener;
 
     public TxDBHelper(String dbDir) {
         super(dbDir);
     }
 
+    public void setUpgradeListener(UpgradeListener upgradeListener) {
+        this.upgradeListener = upgradeListener;
+    }
+
+    /**
+     * true when initDb() will have to run a data migration, callers can show a progress dialog.
+     */
+    public boolean needUpgrade() {
+        int dbVersion = UserPreference.getInstance().getTxDbVersion();
+        return dbVersion > 0 && dbVersion < CURRENT_VERSION;
+    }
+
+    @Override
+    protected boolean useWriterThread() {
+        return true;
+    }
+
     @Override
     protected String getDBName() {
         return DB_NAME;
@@ -69,6 +120,10 @@ public class TxDBHelper extends AbstractDBHelper {
         switch (oldVerion) {
             case 1:
                 v1ToV2(stmt);
+            case 2:
+                v2ToV3(conn);
+            case 3:
+                v3ToV4(stmt);
         }
         conn.commit();
         stmt.close();
@@ -93,6 +148,8 @@ public class TxDBHelper extends AbstractDBHelper {
 
         createHDAccountAddress(stmt);
 
+        createQueryIndexes(stmt);
+
         conn.commit();
         stmt.close();
         UserPreference.getInstance().setTxDbVersion(CURRENT_VERSION);
@@ -134,6 +191,12 @@ public class TxDBHelper extends AbstractDBHelper {
     }
 
 
+    private void createQueryIndexes(Statement stmt) throws SQLException {
+        for (String sql : QUERY_INDEXES) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
     private void v1ToV2(Statement stmt) throws SQLException {
         stmt.executeUpdate(AbstractDb.ADD_HD_ACCOUNT_ID_FOR_OUTS);
 
@@ -141,32 +204,129 @@ public class TxDBHelper extends AbstractDBHelper {
 
     }
 
-    public void rebuildTx() {
-        try {
-            getConn().setAutoCommit(false);
-            Statement stmt = getConn().createStatement();
+    private void v2ToV3(Connection conn) throws SQLException {
+        long total = 0;
+        for (String[] tableColumns : HASH_COLUMNS) {
+            total += countRows(conn, tableColumns[0]);
+        }
+        long done = 0;
+        for (String[] tableColumns : HASH_COLUMNS) {
+            done = hashColumnsToBlob(conn, tableColumns, done, total);
+        }
+    }
+
+    private void v3ToV4(Statement stmt) throws SQLException {
+        createQueryIndexes(stmt);
+    }
+
+    /**
+     * Rewrites base58 text hashes as blobs in place, walking the table by rowid in chunks.
+     * Values already stored as blobs are skipped, so running it again after a crash is safe.
+     * A value that is no valid base58 is logged and left as text, one bad row must not stop the upgrade.
+     */
+    private long hashColumnsToBlob(Connection conn, String[] tableColumns, long done, long total) throws SQLException {
+        String table = tableColumns[0];
+        int columnCount = tableColumns.length - 1;
+        StringBuilder selectSql = new StringBuilder("select rowid");
+        StringBuilder updateSql = new StringBuilder("update " + table + " set ");
+        for (int i = 1; i <= columnCount; i++) {
+            selectSql.append(",").append(tableColumns[i]);
+            updateSql.append(i > 1 ? "," : "").append(tableColumns[i]).append("=?");
+        }
+        selectSql.append(" from ").append(table).append(" where rowid>? order by rowid limit ?");
+        updateSql.append(" where rowid=?");
 
+        PreparedStatement select = conn.prepareStatement(selectSql.toString());
+        PreparedStatement update = conn.prepareStatement(updateSql.toString());
+        try {
+            long lastRowId = Long.MIN_VALUE;
+            int rowCount;
+            do {
+                select.setLong(1, lastRowId);
+                select.setInt(2, UPGRADE_CHUNK_SIZE);
+                ResultSet rs = select.executeQuery();
+                rowCount = 0;
+                while (rs.next()) {
+                    rowCount++;
+                    lastRowId = rs.getLong(1);
+                    boolean changed = false;
+                    for (int i = 1; i <= columnCount; i++) {
+                        Object value = rs.getObject(i + 1);
+                        byte[] hash = null;
+                        if (value instanceof String) {
+                            hash = base58ToBytes(table, tableColumns[i], (String) value);
+                        }
+                        if (hash != null) {
+                            update.setBytes(i, hash);
+                            changed = true;
+                        } else {
+                            update.setObject(i, value);
+                        }
+                    }
+                    if (changed) {
+                        update.setLong(columnCount + 1, lastRowId);
+                        update.addBatch();
+                    }
+                }
+                rs.close();
+                update.executeBatch();
+                conn.commit();
+                done += rowCount;
+                if (upgradeListener != null) {
+                    upgradeListener.onProgress(done, total);
+                }
+            } while (rowCount == UPGRADE_CHUNK_SIZE);
+        } finally {
+            select.close();
+            update.close();
+        }
+        return done;
+    }
 
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.TXS + ";");
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.OUTS + ";");
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.INS + ";");
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.ADDRESSES_TXS + ";");
-            stmt.executeUpdate("drop table " + AbstractDb.Tables.PEERS + ";");
+    private long countRows(Connection conn, String table) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("select count(0) cnt from " + table);
+        long count = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        stmt.close();
+        return count;
+    }
 
-            stmt.executeUpdate(AbstractDb.CREATE_TXS_SQL);
-            stmt.executeUpdate(AbstractDb.CREATE_OUTS_SQL);
-            stmt.executeUpdate(AbstractDb.CREATE_INS_SQL);
-            stmt.executeUpdate(AbstractDb.CREATE_ADDRESSTXS_SQL);
-            stmt.executeUpdate(AbstractDb.CREATE_PEER_SQL);
+    /**
+     * @return null when the text is no base58 hash, the row keeps it as it is
+     */
+    private static byte[] base58ToBytes(String table, String column, String hash) {
+        try {
+            return Base58.decode(hash);
+        } catch (AddressFormatException e) {
+            LogUtil.printlnOut("upgrade: " + table + "." + column + " keeps invalid hash " + hash);
+            return null;
+        }
+    }
 
-            getConn().commit();
-            stmt.close();
+    public void rebuildTx() {
+        try {
+            getWriter().execute(new DbWriter.Operation<Void>() {
+                @Override
+                public Void run(Connection conn) throws SQLException {
+                    Statement stmt = conn.createStatement();
+
+                    stmt.executeUpdate("drop table " + AbstractDb.Tables.TXS + ";");
+                    stmt.executeUpdate("drop table " + AbstractDb.Tables.OUTS + ";");
+                    stmt.executeUpdate("drop table " + AbstractDb.Tables.INS + ";");
+                    stmt.executeUpdate("drop table " + AbstractDb.Tables.ADDRESSES_TXS + ";");
+
+                    createTxsTable(stmt);
+                    createOutsTable(stmt);
+                    createInsTable(stmt);
+                    createAddressTxsTable(stmt);
+                    // the dropped tables took their indexes with them
+                    createQueryIndexes(stmt);
+                    stmt.close();
+                    return null;
+                }
+            });
         } catch (SQLException e) {
-            try {
-                getConn().rollback();
-            } catch (SQLException e1) {
-                e1.printStackTrace();
-            }
             e.printStackTrace();
         }
 
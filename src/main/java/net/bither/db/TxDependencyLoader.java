@@ -0,0 +1,314 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Utils;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the txs whose outs a tx spends, with their ins and outs, in three
+ * queries per MAX_PARAMS parents instead of three per in. Recently loaded
+ * parents are kept in an LRU cache, so the fee estimates the send panels
+ * repeat while the user types are served from memory. The cache holds the
+ * rows, every call gets txs of its own. TxProvider invalidates parents it
+ * writes to, and a removal clears the cache, since the outs it unspends are
+ * not known by tx.
+ */
+public class TxDependencyLoader implements TxCascadeRemover.TxRemovedListener {
+
+    public static final int CACHE_SIZE = 256;
+
+    // stays below the 999 host parameters sqlite allows in one statement
+    private static final int MAX_PARAMS = 500;
+
+    /**
+     * The stored rows of one tx.
+     */
+    private static final class TxRows {
+        private final byte[] txHash;
+        private final int blockNo;
+        private final int source;
+        private final int txTime;
+        private final int txVer;
+        private final int txLockTime;
+        private final List<InRow> ins = new ArrayList<InRow>();
+        private final List<OutRow> outs = new ArrayList<OutRow>();
+
+        private TxRows(ResultSet c) throws SQLException {
+            txHash = c.getBytes(c.findColumn("tx_hash"));
+            int idColumn = c.findColumn("block_no");
+            blockNo = c.getObject(idColumn) == null ? Tx.TX_UNCONFIRMED : c.getInt(idColumn);
+            source = c.getInt(c.findColumn("source"));
+            txTime = c.getInt(c.findColumn("tx_time"));
+            txVer = c.getInt(c.findColumn("tx_ver"));
+            txLockTime = c.getInt(c.findColumn("tx_locktime"));
+        }
+
+        private Tx toTx() {
+            Tx txItem = new Tx();
+            txItem.setBlockNo(blockNo);
+            txItem.setTxHash(txHash);
+            if (source >= 1) {
+                txItem.setSawByPeerCnt(source - 1);
+                txItem.setSource(1);
+            } else {
+                txItem.setSawByPeerCnt(0);
+                txItem.setSource(0);
+            }
+            txItem.setTxTime(txTime);
+            txItem.setTxVer(txVer);
+            txItem.setTxLockTime(txLockTime);
+            txItem.setIns(new ArrayList<In>(ins.size()));
+            for (InRow row : ins) {
+                In inItem = row.toIn();
+                inItem.setTx(txItem);
+                txItem.getIns().add(inItem);
+            }
+            txItem.setOuts(new ArrayList<Out>(outs.size()));
+            for (OutRow row : outs) {
+                Out outItem = row.toOut();
+                outItem.setTx(txItem);
+                txItem.getOuts().add(outItem);
+            }
+            return txItem;
+        }
+    }
+
+    private static final class InRow {
+        private final byte[] txHash;
+        private final int inSn;
+        private final byte[] prevTxHash;
+        private final int prevOutSn;
+        private final byte[] inSignature;
+        private final int inSequence;
+
+        private InRow(ResultSet c) throws SQLException, AddressFormatException {
+            txHash = c.getBytes(c.findColumn("tx_hash"));
+            inSn = c.getInt(c.findColumn("in_sn"));
+            prevTxHash = c.getBytes(c.findColumn("prev_tx_hash"));
+            prevOutSn = c.getInt(c.findColumn("prev_out_sn"));
+            String signature = c.getString(c.findColumn("in_signature"));
+            inSignature = Utils.isEmpty(signature) ? null : Base58.decode(signature);
+            inSequence = c.getInt(c.findColumn("in_sequence"));
+        }
+
+        private In toIn() {
+            In inItem = new In();
+            inItem.setTxHash(txHash);
+            inItem.setInSn(inSn);
+            inItem.setPrevTxHash(prevTxHash);
+            inItem.setPrevOutSn(prevOutSn);
+            if (inSignature != null) {
+                inItem.setInSignature(inSignature);
+            }
+            inItem.setInSequence(inSequence);
+            return inItem;
+        }
+    }
+
+    private static final class OutRow {
+        private final byte[] txHash;
+        private final int outSn;
+        private final byte[] outScript;
+        private final long outValue;
+        private final int outStatus;
+        private final String outAddress;
+
+        private OutRow(ResultSet c) throws SQLException, AddressFormatException {
+            txHash = c.getBytes(c.findColumn("tx_hash"));
+            outSn = c.getInt(c.findColumn("out_sn"));
+            outScript = Base58.decode(c.getString(c.findColumn("out_script")));
+            outValue = c.getLong(c.findColumn("out_value"));
+            outStatus = c.getInt(c.findColumn("out_status"));
+            outAddress = c.getString(c.findColumn("out_address"));
+        }
+
+        private Out toOut() {
+            Out outItem = new Out();
+            outItem.setTxHash(txHash);
+            outItem.setOutSn(outSn);
+            outItem.setOutScript(outScript);
+            outItem.setOutValue(outValue);
+            outItem.setOutStatus(Out.getOutStatus(outStatus));
+            outItem.setOutAddress(outAddress);
+            return outItem;
+        }
+    }
+
+    private final AbstractDBHelper mDb;
+    private final LinkedHashMap<Sha256Hash, TxRows> cache =
+            new LinkedHashMap<Sha256Hash, TxRows>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, TxRows> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    // bumped by every invalidation, a load that raced with one is not cached
+    private long generation;
+    private long hitCount;
+    private long missCount;
+
+    public TxDependencyLoader(AbstractDBHelper db) {
+        this.mDb = db;
+    }
+
+    /**
+     * @return the stored txs spent by the ins of txItem, by tx hash
+     */
+    public HashMap<Sha256Hash, Tx> load(Tx txItem) throws SQLException, AddressFormatException {
+        HashMap<Sha256Hash, Tx> result = new HashMap<Sha256Hash, Tx>();
+        LinkedHashSet<Sha256Hash> missing = new LinkedHashSet<Sha256Hash>();
+        long loadGeneration;
+        synchronized (this) {
+            for (In inItem : txItem.getIns()) {
+                Sha256Hash prevTxHash = new Sha256Hash(inItem.getPrevTxHash());
+                if (result.containsKey(prevTxHash) || missing.contains(prevTxHash)) {
+                    continue;
+                }
+                TxRows rows = cache.get(prevTxHash);
+                if (rows != null) {
+                    result.put(prevTxHash, rows.toTx());
+                    hitCount++;
+                } else {
+                    missing.add(prevTxHash);
+                    missCount++;
+                }
+            }
+            loadGeneration = generation;
+        }
+        if (missing.size() == 0) {
+            return result;
+        }
+
+        List<TxRows> loaded = new ArrayList<TxRows>(missing.size());
+        ReadSession session = this.mDb.beginRead();
+        try {
+            List<Sha256Hash> chunk = new ArrayList<Sha256Hash>(MAX_PARAMS);
+            for (Sha256Hash txHash : missing) {
+                chunk.add(txHash);
+                if (chunk.size() == MAX_PARAMS) {
+                    loadChunk(session, chunk, loaded);
+                    chunk.clear();
+                }
+            }
+            if (chunk.size() > 0) {
+                loadChunk(session, chunk, loaded);
+            }
+        } finally {
+            session.close();
+        }
+
+        synchronized (this) {
+            for (TxRows rows : loaded) {
+                Sha256Hash txHash = new Sha256Hash(rows.txHash);
+                result.put(txHash, rows.toTx());
+                if (generation == loadGeneration) {
+                    cache.put(txHash, rows);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void invalidate(Collection<byte[]> txHashes) {
+        generation++;
+        for (byte[] txHash : txHashes) {
+            cache.remove(new Sha256Hash(txHash));
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        cache.clear();
+    }
+
+    @Override
+    public void onTxsRemoved(List<byte[]> txHashes) {
+        clear();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private void loadChunk(ReadSession session, List<Sha256Hash> txHashes, List<TxRows> loaded)
+            throws SQLException, AddressFormatException {
+        Object[] params = new Object[txHashes.size()];
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < params.length; i++) {
+            params[i] = txHashes.get(i).getBytes();
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        String in = " in (" + placeholders + ")";
+
+        HashMap<Sha256Hash, TxRows> txs = new HashMap<Sha256Hash, TxRows>();
+        PreparedStatement statement = session.getPreparedStatement("select * from txs where tx_hash" + in, params);
+        ResultSet c = statement.executeQuery();
+        while (c.next()) {
+            TxRows rows = new TxRows(c);
+            txs.put(new Sha256Hash(rows.txHash), rows);
+            loaded.add(rows);
+        }
+        c.close();
+        statement.close();
+        if (txs.size() == 0) {
+            return;
+        }
+
+        statement = session.getPreparedStatement("select * from ins where tx_hash" + in
+                + " order by tx_hash, in_sn", params);
+        c = statement.executeQuery();
+        while (c.next()) {
+            InRow row = new InRow(c);
+            txs.get(new Sha256Hash(row.txHash)).ins.add(row);
+        }
+        c.close();
+        statement.close();
+
+        statement = session.getPreparedStatement("select * from outs where tx_hash" + in
+                + " order by tx_hash, out_sn", params);
+        c = statement.executeQuery();
+        while (c.next()) {
+            OutRow row = new OutRow(c);
+            txs.get(new Sha256Hash(row.txHash)).outs.add(row);
+        }
+        c.close();
+        statement.close();
+    }
+}
@@ -43,7 +43,7 @@ public class TxHelper {
         }
         idColumn = c.findColumn(AbstractDb.TxsColumns.TX_HASH);
         if (idColumn != -1) {
-            txItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            txItem.setTxHash(c.getBytes(idColumn));
         }
         idColumn = c.findColumn(AbstractDb.TxsColumns.SOURCE);
         if (idColumn != -1) {
@@ -76,7 +76,7 @@ public class TxHelper {
         In inItem = new In();
         int idColumn = c.findColumn(AbstractDb.InsColumns.TX_HASH);
         if (idColumn != -1) {
-            inItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            inItem.setTxHash(c.getBytes(idColumn));
         }
         idColumn = c.findColumn(AbstractDb.InsColumns.IN_SN);
         if (idColumn != -1) {
@@ -84,7 +84,7 @@ public class TxHelper {
         }
         idColumn = c.findColumn(AbstractDb.InsColumns.PREV_TX_HASH);
         if (idColumn != -1) {
-            inItem.setPrevTxHash(Base58.decode(c.getString(idColumn)));
+            inItem.setPrevTxHash(c.getBytes(idColumn));
         }
         idColumn = c.findColumn(AbstractDb.InsColumns.PREV_OUT_SN);
         if (idColumn != -1) {
@@ -108,7 +108,7 @@ public class TxHelper {
         Out outItem = new Out();
         int idColumn = c.findColumn(AbstractDb.OutsColumns.TX_HASH);
         if (idColumn != -1) {
-            outItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            outItem.setTxHash(c.getBytes(idColumn));
         }
         idColumn = c.findColumn(AbstractDb.OutsColumns.OUT_SN);
         if (idColumn != -1) {
@@ -133,12 +133,11 @@ public class TxHelper {
         return outItem;
     }
 
-    public static void addInsAndOuts(TxDBHelper mDb, Tx txItem) throws AddressFormatException, SQLException {
-        String txHashStr = Base58.encode(txItem.getTxHash());
+    public static void addInsAndOuts(ReadSession session, Tx txItem) throws AddressFormatException, SQLException {
         txItem.setOuts(new ArrayList<Out>());
         txItem.setIns(new ArrayList<In>());
         String sql = "select * from ins where tx_hash=? order by in_sn";
-        PreparedStatement statement = mDb.getPreparedStatement(sql, new String[]{txHashStr});
+        PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txItem.getTxHash()});
         ResultSet c = statement.executeQuery();
         while (c.next()) {
             In inItem = TxHelper.applyCursorIn(c);
@@ -149,7 +148,7 @@ public class TxHelper {
         statement.close();
 
         sql = "select * from outs where tx_hash=? order by out_sn";
-        statement = mDb.getPreparedStatement(sql, new String[]{txHashStr});
+        statement = session.getPreparedStatement(sql, new Object[]{txItem.getTxHash()});
         c = statement.executeQuery();
         while (c.next()) {
             Out outItem = TxHelper.applyCursorOut(c);
@@ -0,0 +1,179 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.core.In;
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Walks the tx history of an address or HD account page by page, newest first.
+ * Pages are found by keyset on (block_no, tx_hash) instead of an offset, so a
+ * page costs the same wherever it is, and ins and outs are only loaded for the
+ * txs of the page.
+ */
+public class TxHistoryCursor {
+
+    // unconfirmed txs sort above every block, as in the other history queries
+    private static final String BLOCK_ORDER = "ifnull(b.block_no,4294967295)";
+    private static final long FIRST_BLOCK_ORDER = 4294967296L;
+
+    private final AbstractDBHelper mDb;
+    private final String pageSql;
+    private final String insSql;
+    private final String outsSql;
+    private final Object[] sourceArgs;
+    private final int pageSize;
+
+    private long lastBlockOrder = FIRST_BLOCK_ORDER;
+    private byte[] lastTxHash = new byte[0];
+    private boolean hasNext = true;
+
+    /**
+     * @param txSource   from and where clauses selecting the txs as alias b, like
+     *                   "from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address=?"
+     * @param sourceArgs arguments of txSource
+     */
+    TxHistoryCursor(AbstractDBHelper db, String txSource, Object[] sourceArgs, int pageSize) {
+        this.mDb = db;
+        this.sourceArgs = sourceArgs;
+        this.pageSize = pageSize;
+        String page = txSource + " and (" + BLOCK_ORDER + "<? or (" + BLOCK_ORDER + "=? and b.tx_hash<?))"
+                + " order by " + BLOCK_ORDER + " desc, b.tx_hash desc limit ?";
+        this.pageSql = "select b.* " + page;
+        this.insSql = "select i.* from ins i where i.tx_hash in (select b.tx_hash " + page + ")"
+                + " order by i.tx_hash, i.in_sn";
+        this.outsSql = "select o.* from outs o where o.tx_hash in (select b.tx_hash " + page + ")"
+                + " order by o.tx_hash, o.out_sn";
+    }
+
+    TxHistoryCursor(AbstractDBHelper db, String txSource, Object[] sourceArgs) {
+        this(db, txSource, sourceArgs, BitherjSettings.TX_PAGE_SIZE);
+    }
+
+    public synchronized boolean hasNext() {
+        return hasNext;
+    }
+
+    /**
+     * Starts again from the newest tx, for example after new txs arrived.
+     */
+    public synchronized void reset() {
+        lastBlockOrder = FIRST_BLOCK_ORDER;
+        lastTxHash = new byte[0];
+        hasNext = true;
+    }
+
+    /**
+     * @return the next page with ins and outs, empty at the end of the history
+     */
+    public synchronized List<Tx> nextPage() {
+        List<Tx> txItemList = new ArrayList<Tx>();
+        if (!hasNext) {
+            return txItemList;
+        }
+        HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
+        Object[] args = pageArgs();
+        ReadSession session = null;
+        try {
+            // one snapshot for the three queries, so they see the same page
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(pageSql, args);
+            ResultSet c = statement.executeQuery();
+            while (c.next()) {
+                Tx txItem = TxHelper.applyCursor(c);
+                txItem.setIns(new ArrayList<In>());
+                txItem.setOuts(new ArrayList<Out>());
+                txItemList.add(txItem);
+                txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
+            }
+            c.close();
+            statement.close();
+            if (txItemList.size() > 0) {
+                statement = session.getPreparedStatement(insSql, args);
+                c = statement.executeQuery();
+                while (c.next()) {
+                    In inItem = TxHelper.applyCursorIn(c);
+                    Tx tx = txDict.get(new Sha256Hash(inItem.getTxHash()));
+                    if (tx != null) {
+                        inItem.setTx(tx);
+                        tx.getIns().add(inItem);
+                    }
+                }
+                c.close();
+                statement.close();
+
+                statement = session.getPreparedStatement(outsSql, args);
+                c = statement.executeQuery();
+                while (c.next()) {
+                    Out outItem = TxHelper.applyCursorOut(c);
+                    Tx tx = txDict.get(new Sha256Hash(outItem.getTxHash()));
+                    if (tx != null) {
+                        outItem.setTx(tx);
+                        tx.getOuts().add(outItem);
+                    }
+                }
+                c.close();
+                statement.close();
+            }
+        } catch (AddressFormatException e) {
+            e.printStackTrace();
+            return txItemList;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return txItemList;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        if (txItemList.size() < pageSize) {
+            hasNext = false;
+        }
+        if (txItemList.size() > 0) {
+            Tx last = txItemList.get(txItemList.size() - 1);
+            lastBlockOrder = last.getBlockNo() == Tx.TX_UNCONFIRMED ? FIRST_BLOCK_ORDER - 1 : last.getBlockNo();
+            lastTxHash = last.getTxHash();
+        }
+        return txItemList;
+    }
+
+    private Object[] pageArgs() {
+        int count = sourceArgs == null ? 0 : sourceArgs.length;
+        Object[] args = new Object[count + 4];
+        for (int i = 0; i < count; i++) {
+            args[i] = sourceArgs[i];
+        }
+        args[count] = lastBlockOrder;
+        args[count + 1] = lastBlockOrder;
+        args[count + 2] = lastTxHash;
+        args[count + 3] = pageSize;
+        return args;
+    }
+}
@@ -18,7 +18,6 @@ package net.bither.db;
 
 import net.bither.ApplicationInstanceManager;
 import net.bither.bitherj.BitherjSettings;
-import net.bither.bitherj.core.AddressManager;
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
 import net.bither.bitherj.core.Tx;
@@ -28,46 +27,66 @@ import net.bither.bitherj.exception.AddressFormatException;
 import net.bither.bitherj.utils.Base58;
 import net.bither.bitherj.utils.Sha256Hash;
 import net.bither.bitherj.utils.Utils;
+import net.bither.utils.HeapTelemetry;
 import net.bither.utils.LogUtil;
 import net.bither.utils.StringUtil;
-import net.bither.utils.SystemUtil;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class TxProvider implements ITxProvider {
 
-    String txInsertSql = "insert into txs " +
-            "(tx_hash,tx_ver,tx_locktime,tx_time,block_no,source)" +
-            " values (?,?,?,?,?,?) ";
-    String inInsertSql = "insert into ins " +
-            "(tx_hash,in_sn,prev_tx_hash,prev_out_sn,in_signature,in_sequence)" +
-            " values (?,?,?,?,?,?) ";
-
-    String outInsertSql = "insert into outs " +
-            "(tx_hash,out_sn,out_script,out_value,out_status,out_address,hd_account_id)" +
-            " values (?,?,?,?,?,?,?) ";
-
     private static TxProvider txProvider = new TxProvider(ApplicationInstanceManager.txDBHelper);
 
     public static TxProvider getInstance() {
         return txProvider;
     }
 
+    // hot queries, QueryPlanCheck verifies they are answered from an index
+    static final String TX_BY_ADDRESS_SQL = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address=? order by b.block_no ";
+    static final String TX_COUNT_BY_ADDRESS_SQL = "select count(*) cnt from addresses_txs  where address=?";
+    static final String SENT_FROM_ADDRESS_SQL = "select  sum(o.out_value) out_value from ins i,outs o where" +
+            " i.tx_hash=? and o.tx_hash=i.prev_tx_hash and i.prev_out_sn=o.out_sn and o.out_address=?";
+    static final String UTXO_BY_ADDRESS_SQL = "select a.*,b.tx_ver,b.tx_locktime,b.tx_time,b.block_no,b.source " +
+            "from outs a,txs b where a.tx_hash=b.tx_hash and a.out_address=? and a.out_status=?";
+    static final String CONFIRM_STAGE_SQL = "create temp table if not exists confirm_txs (tx_hash blob primary key)";
+    // cross join keeps the stage as the outer loop, sqlite would rather scan ins a otherwise
+    static final String CONFIRM_DOUBLE_SPEND_SQL = "select distinct a.tx_hash from confirm_txs t cross join ins b cross join ins a " +
+            "where b.tx_hash=t.tx_hash and a.prev_tx_hash=b.prev_tx_hash and a.prev_out_sn=b.prev_out_sn " +
+            "and a.tx_hash<>b.tx_hash and a.tx_hash not in (select tx_hash from confirm_txs)";
+    static final String REORG_STAGE_SQL = "create temp table if not exists reorg_txs (tx_hash blob primary key)";
+    // orphaned txs spending an out that a tx still in the main chain spends too
+    static final String REORG_DOUBLE_SPEND_SQL = "select distinct r.tx_hash from reorg_txs r cross join ins a cross join ins b " +
+            "cross join txs t where a.tx_hash=r.tx_hash and b.prev_tx_hash=a.prev_tx_hash and b.prev_out_sn=a.prev_out_sn " +
+            "and b.tx_hash<>a.tx_hash and t.tx_hash=b.tx_hash and t.block_no is not null";
+
     private TxDBHelper mDb;
+    private TxBatchInserter txInserter;
+    private TxCascadeRemover txRemover;
+    private PrevOutResolver prevOutResolver;
+    private TxDependencyLoader dependencyLoader;
+    private final List<TxCascadeRemover.TxRemovedListener> txRemovedListeners =
+            new CopyOnWriteArrayList<TxCascadeRemover.TxRemovedListener>();
 
     public TxProvider(TxDBHelper db) {
         this.mDb = db;
+        this.txInserter = new TxBatchInserter(db);
+        this.txRemover = new TxCascadeRemover(db);
+        this.prevOutResolver = new PrevOutResolver(db);
+        this.dependencyLoader = new TxDependencyLoader(db);
+        addTxRemovedListener(dependencyLoader);
     }
 
 
     public List<Tx> getTxAndDetailByAddress(String address) {
         List<Tx> txItemList = new ArrayList<Tx>();
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
-
+        ReadSession session = null;
         try {
-            String sql = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address=? order by b.block_no ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            session = this.mDb.beginRead();
+            String sql = TX_BY_ADDRESS_SQL;
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 Tx txItem = TxHelper.applyCursor(c);
@@ -80,7 +99,7 @@ public class TxProvider implements ITxProvider {
             statement.close();
 
             sql = "select b.* from addresses_txs a, ins b where a.tx_hash=b.tx_hash and a.address=? order by b.tx_hash ,b.in_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            statement = session.getPreparedStatement(sql, new String[]{address});
             c = statement.executeQuery();
             while (c.next()) {
                 In inItem = TxHelper.applyCursorIn(c);
@@ -92,7 +111,7 @@ public class TxProvider implements ITxProvider {
             statement.close();
 
             sql = "select b.* from addresses_txs a, outs b where a.tx_hash=b.tx_hash and a.address=? order by b.tx_hash,b.out_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            statement = session.getPreparedStatement(sql, new String[]{address});
             c = statement.executeQuery();
             while (c.next()) {
                 Out out = TxHelper.applyCursorOut(c);
@@ -107,6 +126,10 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
@@ -115,10 +138,12 @@ public class TxProvider implements ITxProvider {
     public List<Tx> getTxAndDetailByAddress(String address, int page) {
         List<Tx> txItemList = new ArrayList<Tx>();
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select b.* from addresses_txs a, txs b" +
                     " where a.tx_hash=b.tx_hash and a.address=? order by ifnull(b.block_no,4294967295) desc limit ?,? ";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{
                     address, Integer.toString((page - 1) * BitherjSettings.TX_PAGE_SIZE), Integer.toString(BitherjSettings.TX_PAGE_SIZE)
             });
             ResultSet c = statement.executeQuery();
@@ -131,21 +156,38 @@ public class TxProvider implements ITxProvider {
             }
             c.close();
             statement.close();
-            addInForTxDetail(address, txDict);
-            addOutForTxDetail(address, txDict);
+            addInForTxDetail(session, address, txDict);
+            addOutForTxDetail(session, address, txDict);
 
         } catch (SQLException e) {
             e.printStackTrace();
         } catch (AddressFormatException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
 
-    private void addInForTxDetail(String address, HashMap<Sha256Hash, Tx> txDict) throws AddressFormatException, SQLException {
+    /**
+     * A cursor over the txs of the address, newest first, one page of
+     * BitherjSettings.TX_PAGE_SIZE txs at a time.
+     */
+    public TxHistoryCursor getTxHistory(String address) {
+        return getTxHistory(address, BitherjSettings.TX_PAGE_SIZE);
+    }
+
+    public TxHistoryCursor getTxHistory(String address, int pageSize) {
+        return new TxHistoryCursor(this.mDb, "from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address=?",
+                new Object[]{address}, pageSize);
+    }
+
+    private void addInForTxDetail(ReadSession session, String address, HashMap<Sha256Hash, Tx> txDict) throws AddressFormatException, SQLException {
         String sql = "select b.* from addresses_txs a, ins b where a.tx_hash=b.tx_hash and a.address=? "
                 + "order by b.tx_hash ,b.in_sn";
-        PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+        PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
         ResultSet c = statement.executeQuery();
         while (c.next()) {
             In inItem = TxHelper.applyCursorIn(c);
@@ -158,10 +200,10 @@ public class TxProvider implements ITxProvider {
         statement.close();
     }
 
-    private void addOutForTxDetail(String address, HashMap<Sha256Hash, Tx> txDict) throws AddressFormatException, SQLException {
+    private void addOutForTxDetail(ReadSession session, String address, HashMap<Sha256Hash, Tx> txDict) throws AddressFormatException, SQLException {
         String sql = "select b.* from addresses_txs a, outs b where a.tx_hash=b.tx_hash and a.address=? "
                 + "order by b.tx_hash,b.out_sn";
-        PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+        PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
         ResultSet c = statement.executeQuery();
         while (c.next()) {
             Out out = TxHelper.applyCursorOut(c);
@@ -180,8 +222,10 @@ public class TxProvider implements ITxProvider {
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
 
         String sql = "select * from txs where block_no is null or block_no =?";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 Tx txItem = TxHelper.applyCursor(c);
@@ -194,7 +238,7 @@ public class TxProvider implements ITxProvider {
             statement.close();
 
             sql = "select b.* from txs a, ins b  where a.tx_hash=b.tx_hash  and ( a.block_no is null or a.block_no =?) order by b.tx_hash ,b.in_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
+            statement = session.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
             c = statement.executeQuery();
             while (c.next()) {
                 In inItem = TxHelper.applyCursorIn(c);
@@ -205,7 +249,7 @@ public class TxProvider implements ITxProvider {
             statement.close();
 
             sql = "select b.* from txs a, outs b where a.tx_hash=b.tx_hash and ( a.block_no is null or a.block_no = ? )order by b.tx_hash,b.out_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
+            statement = session.getPreparedStatement(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
             c = statement.executeQuery();
             while (c.next()) {
                 Out out = TxHelper.applyCursorOut(c);
@@ -219,6 +263,10 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
@@ -227,8 +275,10 @@ public class TxProvider implements ITxProvider {
         List<In> list = new ArrayList<In>();
         String sql = "select ins.* from ins,addresses_txs " +
                 "where ins.tx_hash=addresses_txs.tx_hash and addresses_txs.address=?";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
             ResultSet rs = statement.executeQuery();
             while (rs.next()) {
                 list.add(TxHelper.applyCursorIn(rs));
@@ -239,44 +289,51 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return list;
     }
 
     public Tx getTxDetailByTxHash(byte[] txHash) {
         Tx txItem = null;
-        String txHashStr = Base58.encode(txHash);
-
         String sql = "select * from txs where tx_hash=?";
-
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{txHashStr});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txHash});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 txItem = TxHelper.applyCursor(c);
             }
-
+            c.close();
+            statement.close();
             if (txItem != null) {
-                TxHelper.addInsAndOuts(this.mDb, txItem);
+                TxHelper.addInsAndOuts(session, txItem);
 
             }
-            c.close();
-            statement.close();
         } catch (AddressFormatException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItem;
     }
 
     @Override
     public long sentFromAddress(byte[] txHash, String address) {
-        String sql = "select  sum(o.out_value) out_value from ins i,outs o where" +
-                " i.tx_hash=? and o.tx_hash=i.prev_tx_hash and i.prev_out_sn=o.out_sn and o.out_address=?";
+        String sql = SENT_FROM_ADDRESS_SQL;
         long sum = 0;
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(txHash),
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txHash,
                     address});
             ResultSet cursor = statement.executeQuery();
             if (cursor.next()) {
@@ -289,6 +346,10 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
 
         return sum;
@@ -297,9 +358,11 @@ public class TxProvider implements ITxProvider {
 
     public boolean isExist(byte[] txHash) {
         boolean result = false;
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select count(0) cnt from txs where tx_hash=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(txHash)});
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txHash});
             ResultSet c = statement.executeQuery();
 
             if (c.next()) {
@@ -312,531 +375,263 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
 
     public void add(final Tx txItem) {
-        try {
-            this.mDb.getConn().setAutoCommit(false);
-            addTxToDb(this.mDb.getConn(), txItem);
-            this.mDb.getConn().commit();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        addTxs(Collections.singletonList(txItem));
     }
 
-    public void addTxs(List<Tx> txItems) {
+    public void addTxs(final List<Tx> txItems) {
         try {
-            Connection connection = this.mDb.getConn();
-            connection.setAutoCommit(false);
-            for (Tx txItem : txItems) {
-                addTxToDb(connection, txItem);
+            long begin = System.currentTimeMillis();
+            int count = this.mDb.getWriter().execute(new DbWriter.Operation<Integer>() {
+                @Override
+                public Integer run(Connection conn) throws SQLException {
+                    // only marks the writer thread as ingesting, the telemetry thread samples it
+                    long token = HeapTelemetry.getInstance().begin(HeapTelemetry.Phase.TxIngest);
+                    try {
+                        return txInserter.insert(txItems);
+                    } finally {
+                        HeapTelemetry.getInstance().end(HeapTelemetry.Phase.TxIngest, token);
+                    }
+                }
+            });
+            updateUtxoCache(txItems);
+            long cost = System.currentTimeMillis() - begin;
+            if (count > 1) {
+                LogUtil.printlnOut("add txs: " + count + " in " + cost + "ms, "
+                        + (count * 1000 / Math.max(cost, 1)) + " txs/s");
             }
-            connection.commit();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    private void addTxToDb(Connection conn, Tx txItem) throws SQLException {
-        HashSet<String> addressSet = AbstractDb.hdAccountProvider.
-                getBelongAccountAddresses(txItem.getOutAddressList());
-        for (Out out : txItem.getOuts()) {
-            if (addressSet.contains(out.getOutAddress())) {
-                out.setHDAccountId(AddressManager.getInstance().getHdAccount().getHdSeedId());
-            }
-        }
-        insertTx(conn, txItem);
-        List<AddressTx> addressesTxsRels = new ArrayList<AddressTx>();
-        List<AddressTx> temp = insertIn(conn, txItem);
-        if (temp != null && temp.size() > 0) {
-            addressesTxsRels.addAll(temp);
-        }
-        temp = insertOut(conn, txItem);
-        if (temp != null && temp.size() > 0) {
-            addressesTxsRels.addAll(temp);
-        }
-        PreparedStatement statement;
-        for (AddressTx addressTx : addressesTxsRels) {
-            String sql = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
-            statement = conn.prepareStatement(sql);
-            statement.setString(1, addressTx.getAddress());
-            statement.setString(2, addressTx.getTxHash());
-            statement.executeUpdate();
-            statement.close();
-
-        }
-
-    }
 
-    private void insertTx(Connection conn, Tx txItem) throws SQLException {
-        String existSql = "select count(0) cnt from txs where tx_hash=?";
-        PreparedStatement preparedStatement = conn.prepareStatement(existSql);
-        preparedStatement.setString(1, Base58.encode(txItem.getTxHash()));
-        ResultSet c = preparedStatement.executeQuery();
-        int cnt = 0;
-        if (c.next()) {
-            int idColumn = c.findColumn("cnt");
-            if (idColumn != -1) {
-                cnt = c.getInt(idColumn);
-            }
-        }
-        c.close();
-        preparedStatement.close();
-        if (cnt == 0) {
-            String blockNoString = null;
-            if (txItem.getBlockNo() != Tx.TX_UNCONFIRMED) {
-                blockNoString = Integer.toString(txItem.getBlockNo());
+    public void remove(final byte[] txHash) {
+        try {
+            List<byte[]> removed = this.mDb.getWriter().execute(new DbWriter.Operation<List<byte[]>>() {
+                @Override
+                public List<byte[]> run(Connection conn) throws SQLException {
+                    return txRemover.remove(Collections.singletonList(txHash));
+                }
+            });
+            if (removed.size() > 0) {
+                // outs the removed txs had spent are unspent again, their owners are unknown here
+                UtxoCache.getInstance().clear();
             }
-            preparedStatement = conn.prepareStatement(txInsertSql);
-            preparedStatement.setString(1, Base58.encode(txItem.getTxHash()));
-            preparedStatement.setLong(2, txItem.getTxVer());
-            preparedStatement.setLong(3, txItem.getTxLockTime());
-            preparedStatement.setLong(4, txItem.getTxTime());
-            preparedStatement.setString(5, blockNoString);
-            preparedStatement.setInt(6, txItem.getSource());
-            preparedStatement.executeUpdate();
-            preparedStatement.close();
+            notifyTxsRemoved(removed);
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
 
     }
 
-    private List<AddressTx> insertOut(Connection conn, Tx txItem) throws SQLException {
-        ResultSet c;
-        String sql;
-
-        PreparedStatement preparedStatement;
-        List<AddressTx> addressTxes = new ArrayList<AddressTx>();
-        for (Out outItem : txItem.getOuts()) {
-            String existSql = "select count(0) cnt from outs where tx_hash=? and out_sn=?";
-            preparedStatement = conn.prepareStatement(existSql);
-            preparedStatement.setString(1, Base58.encode(outItem.getTxHash()));
-            preparedStatement.setString(2, Integer.toString(outItem.getOutSn()));
-            c = preparedStatement.executeQuery();
-            int cnt = 0;
-            if (c.next()) {
-                int idColumn = c.findColumn("cnt");
-                if (idColumn != -1) {
-                    cnt = c.getInt(idColumn);
-                }
+    private void updateUtxoCache(List<Tx> txItems) {
+        UtxoCache cache = UtxoCache.getInstance();
+        HashSet<String> addresses = new HashSet<String>();
+        HashSet<Integer> hdAccountIds = new HashSet<Integer>();
+        List<byte[]> spentTxHashes = new ArrayList<byte[]>();
+        for (Tx txItem : txItems) {
+            for (In inItem : txItem.getIns()) {
+                cache.spend(inItem.getPrevTxHash(), inItem.getPrevOutSn());
+                spentTxHashes.add(inItem.getPrevTxHash());
             }
-            c.close();
-            preparedStatement.close();
-            if (cnt == 0) {
-                String outAddress = null;
+            for (Out outItem : txItem.getOuts()) {
                 if (!Utils.isEmpty(outItem.getOutAddress())) {
-                    outAddress = outItem.getOutAddress();
+                    addresses.add(outItem.getOutAddress());
                 }
-                preparedStatement = conn.prepareStatement(outInsertSql);
-                preparedStatement.setString(1, Base58.encode(outItem.getTxHash()));
-                preparedStatement.setInt(2, outItem.getOutSn());
-                preparedStatement.setString(3, Base58.encode(outItem.getOutScript()));
-                preparedStatement.setLong(4, outItem.getOutValue());
-                preparedStatement.setInt(5, outItem.getOutStatus().getValue());
-                preparedStatement.setString(6, outAddress);
-                preparedStatement.setInt(7, outItem.getHDAccountId());
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-            } else {
                 if (outItem.getHDAccountId() > -1) {
-                    preparedStatement = conn.prepareStatement("update outs set hd_account_id=? where tx_hash=? and out_sn=?");
-                    preparedStatement.setString(1, Integer.toString(outItem.getHDAccountId()));
-                    preparedStatement.setString(2, Base58.encode(txItem.getTxHash()));
-                    preparedStatement.setString(3, Integer.toString(outItem.getOutSn()));
-                    preparedStatement.executeUpdate();
-                    preparedStatement.close();
-                }
-            }
-            if (!Utils.isEmpty(outItem.getOutAddress())) {
-                addressTxes.add(new AddressTx(outItem.getOutAddress(), Base58.encode(txItem.getTxHash())));
-            }
-            sql = "select tx_hash from ins where prev_tx_hash=? and prev_out_sn=?";
-            preparedStatement = conn.prepareStatement(sql);
-            preparedStatement.setString(1, Base58.encode(txItem.getTxHash()));
-            preparedStatement.setString(2, Integer.toString(outItem.getOutSn()));
-            c = preparedStatement.executeQuery();
-
-            boolean isSpentByExistTx = false;
-            if (c.next()) {
-                int idColumn = c.findColumn("tx_hash");
-                if (idColumn != -1) {
-                    addressTxes.add(new AddressTx(outItem.getOutAddress(), c.getString(idColumn)));
+                    hdAccountIds.add(outItem.getHDAccountId());
                 }
-                isSpentByExistTx = true;
             }
-            c.close();
-            preparedStatement.close();
-            if (isSpentByExistTx) {
-                sql = "update outs set out_status=? where tx_hash=? and out_sn=?";
-                preparedStatement = conn.prepareStatement(sql);
-                preparedStatement.setString(1, Integer.toString(Out.OutStatus.spent.getValue()));
-                preparedStatement.setString(2, Base58.encode(txItem.getTxHash()));
-                preparedStatement.setString(3, Integer.toString(outItem.getOutSn()));
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-
-            }
-
         }
-        return addressTxes;
+        cache.invalidateAddresses(addresses);
+        cache.invalidateHDAccounts(hdAccountIds);
+        dependencyLoader.invalidate(spentTxHashes);
     }
 
-    private List<AddressTx> insertIn(Connection conn, Tx txItem) throws SQLException {
-        ResultSet c;
-        String sql;
-        PreparedStatement preparedStatement;
-        List<AddressTx> addressTxes = new ArrayList<AddressTx>();
-        for (In inItem : txItem.getIns()) {
-            String existSql = "select count(0) cnt from ins where tx_hash=? and in_sn=?";
-            preparedStatement = conn.prepareStatement(existSql);
-            preparedStatement.setString(1, Base58.encode(inItem.getTxHash()));
-            preparedStatement.setString(2, Integer.toString(inItem.getInSn()));
-            c = preparedStatement.executeQuery();
-            int cnt = 0;
-            if (c.next()) {
-                int idColumn = c.findColumn("cnt");
-                if (idColumn != -1) {
-                    cnt = c.getInt(idColumn);
-                }
-            }
-            c.close();
-            preparedStatement.close();
-
-            if (cnt == 0) {
-                String signatureString = null;
-                if (inItem.getInSignature() != null) {
-                    signatureString = Base58.encode(inItem.getInSignature());
-                }
-                preparedStatement = conn.prepareStatement(inInsertSql);
-                preparedStatement.setString(1, Base58.encode(inItem.getTxHash()));
-                preparedStatement.setInt(2, inItem.getInSn());
-                preparedStatement.setString(3, Base58.encode(inItem.getPrevTxHash()));
-                preparedStatement.setInt(4, inItem.getPrevOutSn());
-                preparedStatement.setString(5, signatureString);
-                preparedStatement.setLong(6, inItem.getInSequence());
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-
-
-            }
-
-            sql = "select out_address from outs where tx_hash=? and out_sn=?";
-            preparedStatement = conn.prepareStatement(sql);
-            preparedStatement.setString(1, Base58.encode(inItem.getPrevTxHash()));
-            preparedStatement.setString(2, Integer.toString(inItem.getPrevOutSn()));
-            c = preparedStatement.executeQuery();
-            while (c.next()) {
-                int idColumn = c.findColumn("out_address");
-                if (idColumn != -1) {
-                    addressTxes.add(new AddressTx(c.getString(idColumn), Base58.encode(txItem.getTxHash())));
-                }
-            }
-            c.close();
-            preparedStatement.close();
-
-            sql = "update outs set out_status=? where tx_hash=? and out_sn=?";
-            preparedStatement = conn.prepareStatement(sql);
-            preparedStatement.setString(1, Integer.toString(Out.OutStatus.spent.getValue()));
-            preparedStatement.setString(2, Base58.encode(inItem.getPrevTxHash()));
-            preparedStatement.setString(3, Integer.toString(inItem.getPrevOutSn()));
-            preparedStatement.executeUpdate();
-            preparedStatement.close();
-
-        }
-        return addressTxes;
-
+    public void addTxRemovedListener(TxCascadeRemover.TxRemovedListener listener) {
+        txRemovedListeners.add(listener);
     }
 
-
-    public void remove(byte[] txHash) {
-        String txHashStr = Base58.encode(txHash);
-        List<String> txHashes = new ArrayList<String>();
-        final List<String> needRemoveTxHashes = new ArrayList<String>();
-        txHashes.add(txHashStr);
-        while (txHashes.size() > 0) {
-            String thisHash = txHashes.get(0);
-            txHashes.remove(0);
-            needRemoveTxHashes.add(thisHash);
-            List<String> temp = getRelayTx(thisHash);
-            txHashes.addAll(temp);
-        }
-        try {
-            this.mDb.getConn().setAutoCommit(false);
-            for (String str : needRemoveTxHashes) {
-                removeSingleTx(this.mDb.getConn(), str);
-            }
-            this.mDb.getConn().commit();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-
+    public void removeTxRemovedListener(TxCascadeRemover.TxRemovedListener listener) {
+        txRemovedListeners.remove(listener);
     }
 
-    private void removeSingleTx(Connection conn, String tx) throws SQLException {
-        Statement stmt = conn.createStatement();
-        String deleteTx = "delete from txs where tx_hash='" + tx + "'";
-        String deleteIn = "delete from ins where tx_hash='" + tx + "'";
-        String deleteOut = "delete from outs where tx_hash='" + tx + "'";
-        String deleteAddressesTx = "delete from addresses_txs where tx_hash='" + tx + "'";
-        String inSql = "select prev_tx_hash,prev_out_sn from ins where tx_hash='" + tx + "'";
-        String existOtherIn = "select count(0) cnt from ins where prev_tx_hash=? and prev_out_sn=?";
-        String updatePrevOut = "update outs set out_status=? where tx_hash=? and out_sn=?";
-        ResultSet c = stmt.executeQuery(inSql);
-        List<Object[]> needUpdateOuts = new ArrayList<Object[]>();
-        while (c.next()) {
-            int idColumn = c.findColumn(AbstractDb.InsColumns.PREV_TX_HASH);
-            String prevTxHash = null;
-            int prevOutSn = 0;
-            if (idColumn != -1) {
-                prevTxHash = c.getString(idColumn);
-            }
-            idColumn = c.findColumn(AbstractDb.InsColumns.PREV_OUT_SN);
-            if (idColumn != -1) {
-                prevOutSn = c.getInt(idColumn);
-            }
-            needUpdateOuts.add(new Object[]{prevTxHash, prevOutSn});
-
-        }
-        c.close();
-
-
-        stmt.executeUpdate(deleteAddressesTx);
-        stmt.executeUpdate(deleteOut);
-        stmt.executeUpdate(deleteIn);
-        stmt.executeUpdate(deleteTx);
-        for (Object[] array : needUpdateOuts) {
-            PreparedStatement statement = this.mDb.getPreparedStatement(existOtherIn, new String[]{array[0].toString(), array[1].toString()});
-            c = statement.executeQuery();
-            while (c.next()) {
-                int columnIndex = c.findColumn("cnt");
-                if (columnIndex != -1 && c.getInt(columnIndex) == 0) {
-
-                    stmt.executeUpdate(updatePrevOut, new String[]{
-                            Integer.toString(Out.OutStatus.unspent.getValue()), array[0].toString(), array[1].toString()});
-                }
-
-            }
-            c.close();
-            statement.close();
-
+    private void notifyTxsRemoved(List<byte[]> txHashes) {
+        if (txHashes.size() == 0) {
+            return;
         }
-        stmt.close();
-    }
-
-    private List<String> getRelayTx(String txHash) {
-        List<String> relayTxHashes = new ArrayList<String>();
-        try {
-            String relayTx = "select distinct tx_hash from ins where prev_tx_hash=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(relayTx, new String[]{txHash});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                relayTxHashes.add(c.getString(0));
-            }
-            c.close();
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (TxCascadeRemover.TxRemovedListener listener : txRemovedListeners) {
+            listener.onTxsRemoved(txHashes);
         }
-        return relayTxHashes;
     }
 
     public boolean isAddress(String address, Tx txItem) {
-        boolean result = false;
-        String sql = "select count(0) cnt from ins a, txs b where a.tx_hash=b.tx_hash and" +
-                " b.block_no is not null and a.prev_tx_hash=? and a.prev_out_sn=?";
-
-        ResultSet c;
-        try {
-            for (In inItem : txItem.getIns()) {
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
-                c = statement.executeQuery();
-                if (c.next()) {
-                    int columnIndex = c.findColumn("cnt");
-                    if (columnIndex != -1 && c.getInt(columnIndex) > 0) {
-                        c.close();
-                        return false;
-                    }
-                }
-                c.close();
-                statement.close();
-
-            }
-            String addressSql = "select count(0) cnt from addresses_txs where tx_hash=? and address=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(addressSql, new String[]{Base58.encode(txItem.getTxHash()), address});
-            c = statement.executeQuery();
-            int count = 0;
-            if (c.next()) {
-                int columnIndex = c.findColumn("cnt");
-                if (columnIndex != -1) {
-                    count = c.getInt(columnIndex);
-                }
-            }
-            c.close();
-            statement.close();
-
-            if (count > 0) {
-                return true;
-            }
-            String outsCountSql = "select count(0) cnt from outs where tx_hash=? and out_sn=? and out_address=?";
-            for (In inItem : txItem.getIns()) {
-                statement = this.mDb.getPreparedStatement(outsCountSql, new String[]{Base58.encode(inItem.getPrevTxHash())
-                        , Integer.toString(inItem.getPrevOutSn()), address});
-                c = statement.executeQuery();
-                count = 0;
-                int columnIndex = c.findColumn("cnt");
-                if (c.next()) {
-                    if (columnIndex != -1) {
-                        count = c.getInt(columnIndex);
-                    }
-                }
-                c.close();
-                statement.close();
-                if (count > 0) {
-                    return true;
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return result;
+        return isAddressContainsTx(address, txItem);
     }
 
     public void confirmTx(final int blockNo, final List<byte[]> txHashes) {
         if (blockNo == Tx.TX_UNCONFIRMED || txHashes == null) {
             return;
         }
-
-        final String sql = "update txs set block_no=%d where tx_hash='%s'";
-        final String existSql = "select count(0) cnt from txs where block_no=" + Integer.toString(blockNo) + " and tx_hash='%s'";
-        final String doubleSpendSql = "select a.tx_hash from ins a, ins b where a.prev_tx_hash=b.prev_tx_hash " +
-                "and a.prev_out_sn=b.prev_out_sn and a.tx_hash<>b.tx_hash and b.tx_hash='%s'";
-        final String blockTimeSql = "select block_time from blocks where block_no=%d";
-        final String updateTxTimeThatMoreThanBlockTime = "update txs set tx_time=%d where block_no=%d and tx_time>%d";
+        // the block's tx hashes are staged in a temp table of the writer connection
+        final String createStageSql = CONFIRM_STAGE_SQL;
+        final String clearStageSql = "delete from confirm_txs";
+        final String stageSql = "insert or ignore into confirm_txs(tx_hash) values(?)";
+        final String skipConfirmedSql = "delete from confirm_txs where tx_hash in " +
+                "(select tx_hash from txs where block_no=?)";
+        final String sql = "update txs set block_no=? where tx_hash in (select tx_hash from confirm_txs)";
+        // a plain join finds the txs spending the same outs as a newly confirmed tx,
+        // the recursive query of TxCascadeRemover then takes their descendants with them
+        final String doubleSpendSql = CONFIRM_DOUBLE_SPEND_SQL;
+        final String blockTimeSql = "select block_time from blocks where block_no=?";
+        final String updateTxTimeThatMoreThanBlockTime = "update txs set tx_time=? where block_no=? and tx_time>?";
         try {
+            List<byte[]> removed = this.mDb.getWriter().execute(new DbWriter.Operation<List<byte[]>>() {
+                @Override
+                public List<byte[]> run(Connection conn) throws SQLException {
+                    Statement stmt = conn.createStatement();
+                    stmt.executeUpdate(createStageSql);
+                    stmt.executeUpdate(clearStageSql);
+                    stmt.close();
+
+                    PreparedStatement statement = mDb.getPreparedStatement(stageSql, null);
+                    for (byte[] txHash : txHashes) {
+                        statement.setBytes(1, txHash);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    statement.close();
 
+                    statement = mDb.getPreparedStatement(skipConfirmedSql, new Object[]{blockNo});
+                    statement.executeUpdate();
+                    statement.close();
 
-            ResultSet c;
-            Statement stmt = this.mDb.getConn().createStatement();
-            for (byte[] txHash : txHashes) {
-                c = stmt.executeQuery(String.format(Locale.US, existSql, Base58.encode(txHash)));
-                if (c.next()) {
-                    int columnIndex = c.findColumn("cnt");
-                    int cnt = 0;
-                    if (columnIndex != -1) {
-                        cnt = c.getInt(columnIndex);
+                    statement = mDb.getPreparedStatement(sql, new Object[]{blockNo});
+                    statement.executeUpdate();
+                    statement.close();
+
+                    statement = mDb.getPreparedStatement(doubleSpendSql, null);
+                    ResultSet c = statement.executeQuery();
+                    List<byte[]> doubleSpendTxHashes = new ArrayList<byte[]>();
+                    while (c.next()) {
+                        doubleSpendTxHashes.add(c.getBytes(1));
                     }
                     c.close();
-                    if (cnt > 0) {
-                        continue;
+                    statement.close();
+                    List<byte[]> removed = txRemover.remove(doubleSpendTxHashes);
+
+                    statement = mDb.getPreparedStatement(blockTimeSql, new Object[]{blockNo});
+                    c = statement.executeQuery();
+                    Integer blockTime = null;
+                    if (c.next()) {
+                        int idColumn = c.findColumn("block_time");
+                        if (idColumn != -1) {
+                            blockTime = c.getInt(idColumn);
+                        }
                     }
-                } else {
                     c.close();
-                }
-                String updateSql = Utils.format(sql, blockNo, Base58.encode(txHash));
-                stmt.execute(updateSql);
-                c = stmt.executeQuery(Utils.format(doubleSpendSql, Base58.encode(txHash)));
-                List<String> txHashes1 = new ArrayList<String>();
-                while (c.next()) {
-                    int idColumn = c.findColumn("tx_hash");
-                    if (idColumn != -1) {
-                        txHashes1.add(c.getString(idColumn));
+                    statement.close();
+                    if (blockTime != null) {
+                        statement = mDb.getPreparedStatement(updateTxTimeThatMoreThanBlockTime,
+                                new Object[]{blockTime, blockNo, blockTime});
+                        statement.executeUpdate();
+                        statement.close();
                     }
-                }
-                c.close();
-                List<String> needRemoveTxHashes = new ArrayList<String>();
-                while (txHashes1.size() > 0) {
-                    String thisHash = txHashes1.get(0);
-                    txHashes1.remove(0);
-                    needRemoveTxHashes.add(thisHash);
-                    List<String> temp = getRelayTx(thisHash);
-                    txHashes1.addAll(temp);
-                }
-                this.mDb.getConn().setAutoCommit(false);
-                for (String each : needRemoveTxHashes) {
-                    removeSingleTx(this.mDb.getConn(), each);
-                }
-                this.mDb.getConn().commit();
-
-            }
 
-            c = stmt.executeQuery(Utils.format(blockTimeSql, blockNo));
-            if (c.next())
-
-            {
-                int idColumn = c.findColumn("block_time");
-                if (idColumn != -1) {
-                    int blockTime = c.getInt(idColumn);
-                    c.close();
-                    String sqlTemp = Utils.format(updateTxTimeThatMoreThanBlockTime, blockTime, blockNo, blockTime);
-                    stmt.executeUpdate(sqlTemp);
+                    stmt = conn.createStatement();
+                    stmt.executeUpdate(clearStageSql);
+                    stmt.close();
+                    return removed;
                 }
-            } else {
-                c.close();
+            });
+            UtxoCache.getInstance().invalidateTxs(txHashes);
+            dependencyLoader.invalidate(txHashes);
+            if (removed.size() > 0) {
+                UtxoCache.getInstance().clear();
             }
-            this.mDb.getConn().commit();
-            stmt.close();
+            notifyTxsRemoved(removed);
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
     }
 
-    public void unConfirmTxByBlockNo(int blockNo) {
-        String sql = "update txs set block_no=null where block_no>=" + blockNo;
-        mDb.executeUpdate(sql, null);
-    }
+    public void unConfirmTxByBlockNo(final int blockNo) {
+        // txs of orphaned blocks go back to the unconfirmed pool, those double spending a tx
+        // that stays confirmed can never confirm again and go with their descendants
+        final String clearStageSql = "delete from reorg_txs";
+        final String stageSql = "insert or ignore into reorg_txs(tx_hash) select tx_hash from txs where block_no>=?";
+        final String sql = "update txs set block_no=null where tx_hash in (select tx_hash from reorg_txs)";
+        try {
+            List<byte[]> removed = this.mDb.getWriter().execute(new DbWriter.Operation<List<byte[]>>() {
+                @Override
+                public List<byte[]> run(Connection conn) throws SQLException {
+                    Statement stmt = conn.createStatement();
+                    stmt.executeUpdate(REORG_STAGE_SQL);
+                    stmt.executeUpdate(clearStageSql);
+                    stmt.close();
+
+                    PreparedStatement statement = mDb.getPreparedStatement(stageSql, new Object[]{blockNo});
+                    statement.executeUpdate();
+                    statement.close();
 
-    public List<Tx> getUnspendTxWithAddress(String address) {
-        String unspendOutSql = "select a.*,b.tx_ver,b.tx_locktime,b.tx_time,b.block_no,b.source,ifnull(b.block_no,0)*a.out_value coin_depth " +
-                "from outs a,txs b where a.tx_hash=b.tx_hash" +
-                " and a.out_address=? and a.out_status=?";
-        List<Tx> txItemList = new ArrayList<Tx>();
+                    statement = mDb.getPreparedStatement(sql, null);
+                    statement.executeUpdate();
+                    statement.close();
 
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(unspendOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                int idColumn = c.findColumn("coin_depth");
+                    statement = mDb.getPreparedStatement(REORG_DOUBLE_SPEND_SQL, null);
+                    ResultSet c = statement.executeQuery();
+                    List<byte[]> doubleSpendTxHashes = new ArrayList<byte[]>();
+                    while (c.next()) {
+                        doubleSpendTxHashes.add(c.getBytes(1));
+                    }
+                    c.close();
+                    statement.close();
+                    List<byte[]> removed = txRemover.remove(doubleSpendTxHashes);
 
-                Tx txItem = TxHelper.applyCursor(c);
-                Out outItem = TxHelper.applyCursorOut(c);
-                if (idColumn != -1) {
-                    outItem.setCoinDepth(c.getLong(idColumn));
+                    stmt = conn.createStatement();
+                    stmt.executeUpdate(clearStageSql);
+                    stmt.close();
+                    return removed;
                 }
-                outItem.setTx(txItem);
-                txItem.setOuts(new ArrayList<Out>());
-                txItem.getOuts().add(outItem);
-                txItemList.add(txItem);
-
-            }
-            c.close();
-            statement.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
+            });
+            UtxoCache.getInstance().clear();
+            dependencyLoader.clear();
+            notifyTxsRemoved(removed);
         } catch (SQLException e) {
             e.printStackTrace();
         }
+    }
+
+    public List<Tx> getUnspendTxWithAddress(String address) {
+        List<Tx> txItemList = new ArrayList<Tx>();
+        for (UtxoCache.Utxo utxo : getUtxosWithAddress(address)) {
+            Tx txItem = utxo.toTx();
+            Out outItem = utxo.toOut();
+            outItem.setCoinDepth(utxo.getCoinDepth());
+            outItem.setTx(txItem);
+            txItem.setOuts(new ArrayList<Out>());
+            txItem.getOuts().add(outItem);
+            txItemList.add(txItem);
+        }
         return txItemList;
     }
 
     public List<Out> getUnspendOutWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String unspendOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash " +
-                "and b.block_no is null and a.out_address=? and a.out_status=?";
-
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(unspendOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                outItems.add(TxHelper.applyCursorOut(c));
+        for (UtxoCache.Utxo utxo : getUtxosWithAddress(address)) {
+            if (!utxo.isConfirmed()) {
+                outItems.add(utxo.toOut());
             }
-            c.close();
-            statement.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return outItems;
     }
@@ -844,25 +639,49 @@ public class TxProvider implements ITxProvider {
     @Override
     public long getConfirmedBalanceWithAddress(String address) {
         long sum = 0;
-        try {
+        for (UtxoCache.Utxo utxo : getUtxosWithAddress(address)) {
+            if (utxo.isConfirmed()) {
+                sum += utxo.getOutValue();
+            }
+        }
+        return sum;
+    }
 
-            String unspendOutSql = "select ifnull(sum(a.out_value),0) sum from outs a,txs b where a.tx_hash=b.tx_hash " +
-                    " and a.out_address=? and a.out_status=? and b.block_no is not null";
-            PreparedStatement statement = this.mDb.getPreparedStatement(unspendOutSql,
-                    new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
+    /**
+     * Unspent outs of the address with their txs, served from UtxoCache and loaded
+     * from the db when the address is not cached.
+     */
+    private List<UtxoCache.Utxo> getUtxosWithAddress(String address) {
+        UtxoCache cache = UtxoCache.getInstance();
+        List<UtxoCache.Utxo> utxos = cache.getByAddress(address);
+        if (utxos != null) {
+            return utxos;
+        }
+        long generation = cache.getGeneration();
+        utxos = new ArrayList<UtxoCache.Utxo>();
+        String sql = UTXO_BY_ADDRESS_SQL;
+        ReadSession session = null;
+        try {
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql,
+                    new Object[]{address, Out.OutStatus.unspent.getValue()});
             ResultSet c = statement.executeQuery();
-            if (c.next()) {
-                int idColumn = c.findColumn("sum");
-                if (idColumn != -1) {
-                    sum = c.getLong(idColumn);
-                }
+            while (c.next()) {
+                utxos.add(new UtxoCache.Utxo(c));
             }
             c.close();
             statement.close();
+            cache.putByAddress(address, utxos, generation);
+        } catch (AddressFormatException e) {
+            e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        return sum;
+        return utxos;
     }
 
     @Override
@@ -870,12 +689,13 @@ public class TxProvider implements ITxProvider {
         List<Tx> txList = new ArrayList<Tx>();
 
         HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
-
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select b.* from addresses_txs a, txs b " +
                     "where a.tx_hash=b.tx_hash and a.address=? and b.block_no is null " +
                     "order by b.block_no desc";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 Tx txItem = TxHelper.applyCursor(c);
@@ -890,7 +710,7 @@ public class TxProvider implements ITxProvider {
                     " from addresses_txs a, ins b, txs c " +
                     " where a.tx_hash=b.tx_hash and b.tx_hash=c.tx_hash and c.block_no is null and a.address=? "
                     + " order by b.tx_hash ,b.in_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            statement = session.getPreparedStatement(sql, new String[]{address});
             c = statement.executeQuery();
             while (c.next()) {
                 In inItem = TxHelper.applyCursorIn(c);
@@ -906,7 +726,7 @@ public class TxProvider implements ITxProvider {
                     "from addresses_txs a, outs b, txs c " +
                     "where a.tx_hash=b.tx_hash and b.tx_hash=c.tx_hash and c.block_no is null and a.address=? "
                     + "order by b.tx_hash,b.out_sn";
-            statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            statement = session.getPreparedStatement(sql, new String[]{address});
             c = statement.executeQuery();
             while (c.next()) {
                 Out out = TxHelper.applyCursorOut(c);
@@ -922,6 +742,10 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txList;
 
@@ -929,68 +753,39 @@ public class TxProvider implements ITxProvider {
 
     public List<Out> getUnSpendOutCanSpendWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String confirmedOutSql = "select a.*,b.block_no*a.out_value coin_depth from outs a,txs b" +
-                " where a.tx_hash=b.tx_hash and b.block_no is not null and a.out_address=? and a.out_status=?";
-        String selfOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash and b.block_no" +
-                " is null and a.out_address=? and a.out_status=? and b.source>=1";
-
-
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(confirmedOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                Out outItem = TxHelper.applyCursorOut(c);
-                int idColumn = c.findColumn("coin_depth");
-                if (idColumn != -1) {
-                    outItem.setCoinDepth(c.getLong(idColumn));
-                }
+        List<UtxoCache.Utxo> utxos = getUtxosWithAddress(address);
+        for (UtxoCache.Utxo utxo : utxos) {
+            if (utxo.isConfirmed()) {
+                Out outItem = utxo.toOut();
+                outItem.setCoinDepth(utxo.getCoinDepth());
                 outItems.add(outItem);
             }
-            c.close();
-            statement.close();
-            statement = this.mDb.getPreparedStatement(selfOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-            c = statement.executeQuery();
-            while (c.next()) {
-                outItems.add(TxHelper.applyCursorOut(c));
+        }
+        for (UtxoCache.Utxo utxo : utxos) {
+            if (!utxo.isConfirmed() && utxo.isSentBySelf()) {
+                outItems.add(utxo.toOut());
             }
-            c.close();
-            statement.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return outItems;
     }
 
     public List<Out> getUnSpendOutButNotConfirmWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String selfOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash and b.block_no" +
-                " is null and a.out_address=? and a.out_status=? and b.source=0";
-
-        try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(selfOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-            ResultSet c = statement.executeQuery();
-            while (c.next()) {
-                outItems.add(TxHelper.applyCursorOut(c));
-
+        for (UtxoCache.Utxo utxo : getUtxosWithAddress(address)) {
+            if (!utxo.isConfirmed() && !utxo.isSentBySelf()) {
+                outItems.add(utxo.toOut());
             }
-            c.close();
-            statement.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-
         return outItems;
     }
 
     public int txCount(String address) {
         int result = 0;
+        ReadSession session = null;
         try {
-            String sql = "select count(*) cnt from addresses_txs  where address=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address});
+            session = this.mDb.beginRead();
+            String sql = TX_COUNT_BY_ADDRESS_SQL;
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("cnt");
@@ -1002,6 +797,10 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
@@ -1009,7 +808,9 @@ public class TxProvider implements ITxProvider {
     @Override
     public long totalReceive(String address) {
         long result = 0;
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select sum(aa.receive-ifnull(bb.send,0)) sum" +
                     "  from (select a.tx_hash,sum(a.out_value) receive " +
                     "    from outs a where a.out_address=?" +
@@ -1019,7 +820,7 @@ public class TxProvider implements ITxProvider {
                     "    where a.tx_hash=b.prev_tx_hash and a.out_sn=b.prev_out_sn and a.out_address=?" +
                     "    group by b.tx_hash) bb on aa.tx_hash=bb.tx_hash " +
                     "  where aa.receive>ifnull(bb.send, 0)";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address, address});
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address, address});
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int idColumn = c.findColumn("sum");
@@ -1031,6 +832,10 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
@@ -1038,14 +843,18 @@ public class TxProvider implements ITxProvider {
 
     public void txSentBySelfHasSaw(byte[] txHash) {
         String sql = "update txs set source=source+1 where tx_hash=? and source>=1";
-        mDb.executeUpdate(sql, new String[]{Base58.encode(txHash)});
+        mDb.executeUpdate(sql, new Object[]{txHash});
+        UtxoCache.getInstance().invalidateTxs(Collections.singletonList(txHash));
+        dependencyLoader.invalidate(Collections.singletonList(txHash));
     }
 
     public List<Out> getOuts() {
         List<Out> outItemList = new ArrayList<Out>();
         String sql = "select * from outs ";
+        ReadSession session = null;
         try {
-            PreparedStatement preparedStatement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement preparedStatement = session.getPreparedStatement(sql, null);
             ResultSet c = preparedStatement.executeQuery();
 
             while (c.next()) {
@@ -1058,6 +867,10 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (AddressFormatException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return outItemList;
     }
@@ -1069,34 +882,41 @@ public class TxProvider implements ITxProvider {
                 "and ((b.block_no is null) or (b.block_no is not null and b.block_no>?)) " +
                 "order by ifnull(b.block_no,4294967295) desc, b.tx_time desc " +
                 "limit ? ";
-
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{address, Integer.toString(greateThanBlockNo), Integer.toString(limit)});
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, new String[]{address, Integer.toString(greateThanBlockNo), Integer.toString(limit)});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 Tx txItem = TxHelper.applyCursor(c);
                 txItemList.add(txItem);
             }
-            for (Tx item : txItemList) {
-                TxHelper.addInsAndOuts(this.mDb, item);
-            }
             c.close();
             statement.close();
+            for (Tx item : txItemList) {
+                TxHelper.addInsAndOuts(session, item);
+            }
         } catch (AddressFormatException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return txItemList;
     }
 
     public List<Long> txInValues(byte[] txHash) {
         List<Long> inValues = new ArrayList<Long>();
+        ReadSession session = null;
         try {
+            session = this.mDb.beginRead();
             String sql = "select b.out_value " +
                     "from ins a left outer join outs b on a.prev_tx_hash=b.tx_hash and a.prev_out_sn=b.out_sn " +
                     "where a.tx_hash=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(txHash)});
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{txHash});
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 int idColumn = c.findColumn("out_value");
@@ -1110,59 +930,31 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return inValues;
     }
 
     public HashMap<Sha256Hash, Tx> getTxDependencies(Tx txItem) {
-        HashMap<Sha256Hash, Tx> result = new HashMap<Sha256Hash, Tx>();
         try {
-            for (In inItem : txItem.getIns()) {
-                Tx tx;
-                String txHashStr = Base58.encode(inItem.getTxHash());
-                String sql = "select * from txs where tx_hash=?";
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{txHashStr});
-                ResultSet c = statement.executeQuery();
-                if (c.next()) {
-                    tx = TxHelper.applyCursor(c);
-                    c.close();
-                    statement.close();
-                } else {
-                    c.close();
-                    statement.close();
-                    continue;
-                }
-                TxHelper.addInsAndOuts(this.mDb, tx);
-                result.put(new Sha256Hash(tx.getTxHash()), tx);
-
-            }
+            return dependencyLoader.load(txItem);
         } catch (AddressFormatException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return result;
+        return new HashMap<Sha256Hash, Tx>();
     }
 
     public boolean isTxDoubleSpendWithConfirmedTx(Tx tx) {
-        String sql = "select count(0) cnt from ins a, txs b where a.tx_hash=b.tx_hash and" +
-                " b.block_no is not null and a.prev_tx_hash=? and a.prev_out_sn=?";
-        ResultSet rs;
         try {
-            for (In inItem : tx.getIns()) {
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
-                rs = statement.executeQuery();
-                if (rs.next()) {
-                    int columnIndex = rs.findColumn("cnt");
-                    if (columnIndex != -1 && rs.getInt(columnIndex) > 0) {
-                        rs.close();
-                        statement.close();
-                        return true;
-                    }
+            for (PrevOutResolver.PrevOut prevOut : prevOutResolver.resolve(tx.getIns())) {
+                if (prevOut.isSpentByConfirmedTx()) {
+                    return true;
                 }
-                rs.close();
-                statement.close();
-
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -1172,20 +964,11 @@ public class TxProvider implements ITxProvider {
 
     public List<String> getInAddresses(Tx tx) {
         List<String> result = new ArrayList<String>();
-        String sql = "select out_address from outs where tx_hash=? and out_sn=?";
-        ResultSet c;
         try {
-            for (In inItem : tx.getIns()) {
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
-                c = statement.executeQuery();
-                if (c.next()) {
-                    int column = c.findColumn("out_address");
-                    if (column != -1) {
-                        result.add(c.getString(column));
-                    }
+            for (PrevOutResolver.PrevOut prevOut : prevOutResolver.resolve(tx.getIns())) {
+                if (prevOut.isFound()) {
+                    result.add(prevOut.getOutAddress());
                 }
-                c.close();
-                statement.close();
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -1195,17 +978,26 @@ public class TxProvider implements ITxProvider {
 
     public void completeInSignature(final List<In> ins) {
         try {
-            this.mDb.getConn().setAutoCommit(false);
-            String sql = "update ins set in_signature=? where tx_hash=? and in_sn=? and ifnull(in_signature,'')=''";
+            this.mDb.getWriter().execute(new DbWriter.Operation<Void>() {
+                @Override
+                public Void run(Connection conn) throws SQLException {
+                    String sql = "update ins set in_signature=? where tx_hash=? and in_sn=? and ifnull(in_signature,'')=''";
+                    for (In in : ins) {
+                        PreparedStatement preparedStatement = mDb.getPreparedStatement(sql, null);
+                        preparedStatement.setString(1, Base58.encode(in.getInSignature()));
+                        preparedStatement.setBytes(2, in.getTxHash());
+                        preparedStatement.setInt(3, in.getInSn());
+                        preparedStatement.executeUpdate();
+                        preparedStatement.close();
+                    }
+                    return null;
+                }
+            });
+            List<byte[]> txHashes = new ArrayList<byte[]>(ins.size());
             for (In in : ins) {
-                PreparedStatement preparedStatement = this.mDb.getConn().prepareStatement(sql);
-                preparedStatement.setString(1, Base58.encode(in.getInSignature()));
-                preparedStatement.setString(2, Base58.encode(in.getTxHash()));
-                preparedStatement.setInt(3, in.getInSn());
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
+                txHashes.add(in.getTxHash());
             }
-            this.mDb.getConn().commit();
+            dependencyLoader.invalidate(txHashes);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -1217,8 +1009,10 @@ public class TxProvider implements ITxProvider {
         String sql = "select max(txs.block_no) as block_no from outs,ins,txs where outs.out_address='" + address +
                 "' and ins.prev_tx_hash=outs.tx_hash and ins.prev_out_sn=outs.out_sn " +
                 " and ifnull(ins.in_signature,'')='' and txs.tx_hash=ins.tx_hash";
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             if (c.next()) {
                 int index = c.findColumn("block_no");
@@ -1230,6 +1024,10 @@ public class TxProvider implements ITxProvider {
             statement.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
         return result;
     }
@@ -1240,8 +1038,10 @@ public class TxProvider implements ITxProvider {
 
         String sql = "select * from outs where out_status=0";
 
+        ReadSession session = null;
         try {
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, null);
+            session = this.mDb.beginRead();
+            PreparedStatement statement = session.getPreparedStatement(sql, null);
             ResultSet c = statement.executeQuery();
             while (c.next()) {
                 outItemList.add(TxHelper.applyCursorOut(c));
@@ -1252,41 +1052,32 @@ public class TxProvider implements ITxProvider {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
 
         return outItemList;
     }
 
     public boolean isAddressContainsTx(String address, Tx txItem) {
-        boolean result = false;
+        ReadSession session = null;
         try {
-
-
-            String sql = "select count(0) cnt from ins a, txs b where a.tx_hash=b.tx_hash and" +
-                    " b.block_no is not null and a.prev_tx_hash=? and a.prev_out_sn=?";
-            ResultSet c;
-            for (In inItem : txItem.getIns()) {
-                PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
-                c = statement.executeQuery();
-                if (c.next()) {
-                    int columnIndex = c.findColumn("cnt");
-                    if (columnIndex != -1 && c.getInt(columnIndex) > 0) {
-                        c.close();
-                        statement.close();
-                        return false;
-                    }
+            List<PrevOutResolver.PrevOut> prevOuts = prevOutResolver.resolve(txItem.getIns());
+            for (PrevOutResolver.PrevOut prevOut : prevOuts) {
+                if (prevOut.isSpentByConfirmedTx()) {
+                    return false;
                 }
-                c.close();
-                statement.close();
-
             }
-            sql = "select count(0) cnt from addresses_txs where tx_hash=? and address=?";
-            PreparedStatement statement = this.mDb.getPreparedStatement(sql, new String[]{
-                    Base58.encode(txItem.getTxHash()), address
+            // the resolver holds its own session, never two at once
+            session = this.mDb.beginRead();
+            String sql = "select count(0) cnt from addresses_txs where tx_hash=? and address=?";
+            PreparedStatement statement = session.getPreparedStatement(sql, new Object[]{
+                    txItem.getTxHash(), address
             });
-            c = statement.executeQuery();
+            ResultSet c = statement.executeQuery();
             int count = 0;
-
             if (c.next()) {
                 int columnIndex = c.findColumn("cnt");
                 if (columnIndex != -1) {
@@ -1298,63 +1089,28 @@ public class TxProvider implements ITxProvider {
             if (count > 0) {
                 return true;
             }
-            sql = "select count(0) cnt from outs where tx_hash=? and out_sn=? and out_address=?";
-            for (In inItem : txItem.getIns()) {
-                statement = this.mDb.getPreparedStatement(sql, new String[]{Base58.encode(inItem.getPrevTxHash())
-                        , Integer.toString(inItem.getPrevOutSn()), address});
-                c = statement.executeQuery();
-                count = 0;
-                if (c.next()) {
-                    int columnIndex = c.findColumn("cnt");
-                    if (columnIndex != -1) {
-                        count = c.getInt(columnIndex);
-                    }
-                }
-                c.close();
-                statement.close();
-                if (count > 0) {
+            for (PrevOutResolver.PrevOut prevOut : prevOuts) {
+                if (prevOut.isFound() && Utils.compareString(address, prevOut.getOutAddress())) {
                     return true;
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
         }
-        return result;
+        return false;
     }
 
 
     public void clearAllTx() {
         this.mDb.rebuildTx();
-
-    }
-
-
-    private static class AddressTx {
-        private String address;
-        private String txHash;
-
-        public AddressTx(String address, String txHash) {
-            this.address = address;
-            this.txHash = txHash;
-
-        }
-
-        public String getTxHash() {
-            return txHash;
-        }
-
-        public void setTxHash(String txHash) {
-            this.txHash = txHash;
-        }
-
-        public String getAddress() {
-            return address;
-        }
-
-        public void setAddress(String address) {
-            this.address = address;
-        }
-
+        // the peers go too, through the provider so its book goes with the table
+        PeerProvider.getInstance().recreate();
+        UtxoCache.getInstance().clear();
+        dependencyLoader.clear();
 
     }
 }
@@ -0,0 +1,360 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Utils;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Unspent outs per address and per HD account, loaded from the db on first use.
+ * Providers call the update methods after a write is committed: spent outs are
+ * dropped in place, everything else touched by the write is invalidated and
+ * reloaded on the next read. A load that raced with a write is not stored.
+ */
+public class UtxoCache {
+
+    private static UtxoCache utxoCache = new UtxoCache();
+
+    public static UtxoCache getInstance() {
+        return utxoCache;
+    }
+
+    /**
+     * One unspent out with the fields of its tx the providers return.
+     */
+    public static final class Utxo {
+        final byte[] txHash;
+        final int outSn;
+        final byte[] outScript;
+        final long outValue;
+        final String outAddress;
+        final int hdAccountId;
+        final int blockNo;
+        final int source;
+        final int txTime;
+        final int txVer;
+        final int txLockTime;
+
+        /**
+         * Reads a row of outs joined with tx_ver, tx_locktime, tx_time, block_no and source of txs.
+         */
+        Utxo(ResultSet c) throws SQLException, AddressFormatException {
+            txHash = c.getBytes(c.findColumn("tx_hash"));
+            outSn = c.getInt(c.findColumn("out_sn"));
+            outScript = Base58.decode(c.getString(c.findColumn("out_script")));
+            outValue = c.getLong(c.findColumn("out_value"));
+            outAddress = c.getString(c.findColumn("out_address"));
+            int idColumn = c.findColumn("hd_account_id");
+            hdAccountId = c.getObject(idColumn) == null ? -1 : c.getInt(idColumn);
+            idColumn = c.findColumn("block_no");
+            blockNo = c.getObject(idColumn) == null ? Tx.TX_UNCONFIRMED : c.getInt(idColumn);
+            source = c.getInt(c.findColumn("source"));
+            txTime = c.getInt(c.findColumn("tx_time"));
+            txVer = c.getInt(c.findColumn("tx_ver"));
+            txLockTime = c.getInt(c.findColumn("tx_locktime"));
+        }
+
+        public boolean isConfirmed() {
+            return blockNo != Tx.TX_UNCONFIRMED;
+        }
+
+        public long getOutValue() {
+            return outValue;
+        }
+
+        /**
+         * @return the same as ifnull(block_no,0)*out_value
+         */
+        public long getCoinDepth() {
+            return isConfirmed() ? (long) blockNo * outValue : 0;
+        }
+
+        /**
+         * @return true for a tx this wallet sent itself
+         */
+        public boolean isSentBySelf() {
+            return source >= 1;
+        }
+
+        public Out toOut() {
+            Out outItem = new Out();
+            outItem.setTxHash(txHash);
+            outItem.setOutSn(outSn);
+            outItem.setOutScript(outScript);
+            outItem.setOutValue(outValue);
+            outItem.setOutStatus(Out.OutStatus.unspent);
+            outItem.setOutAddress(outAddress);
+            return outItem;
+        }
+
+        public Tx toTx() {
+            Tx txItem = new Tx();
+            txItem.setBlockNo(blockNo);
+            txItem.setTxHash(txHash);
+            if (source >= 1) {
+                txItem.setSawByPeerCnt(source - 1);
+                txItem.setSource(1);
+            } else {
+                txItem.setSawByPeerCnt(0);
+                txItem.setSource(0);
+            }
+            txItem.setTxTime(txTime);
+            txItem.setTxVer(txVer);
+            txItem.setTxLockTime(txLockTime);
+            return txItem;
+        }
+
+        OutPoint outPoint() {
+            return new OutPoint(txHash, outSn);
+        }
+    }
+
+    private static final class OutPoint {
+        private final Sha256Hash txHash;
+        private final int outSn;
+
+        OutPoint(byte[] txHash, int outSn) {
+            this.txHash = new Sha256Hash(txHash);
+            this.outSn = outSn;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OutPoint)) {
+                return false;
+            }
+            OutPoint other = (OutPoint) o;
+            return outSn == other.outSn && txHash.equals(other.txHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return txHash.hashCode() * 31 + outSn;
+        }
+    }
+
+    private final HashMap<String, List<Utxo>> byAddress = new HashMap<String, List<Utxo>>();
+    private final HashMap<Integer, List<Utxo>> byHDAccount = new HashMap<Integer, List<Utxo>>();
+    // every cached out, to find the lists holding an out that gets spent
+    private final HashMap<OutPoint, Utxo> byOutPoint = new HashMap<OutPoint, Utxo>();
+
+    private long generation = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long invalidationCount = 0;
+    private long discardedLoadCount = 0;
+
+    private UtxoCache() {
+    }
+
+    /**
+     * Read before querying the db for a load, and pass it back to the put method.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized List<Utxo> getByAddress(String address) {
+        List<Utxo> utxos = byAddress.get(address);
+        countLookup(utxos);
+        return utxos == null ? null : new ArrayList<Utxo>(utxos);
+    }
+
+    public synchronized List<Utxo> getByHDAccount(int hdAccountId) {
+        List<Utxo> utxos = byHDAccount.get(hdAccountId);
+        countLookup(utxos);
+        return utxos == null ? null : new ArrayList<Utxo>(utxos);
+    }
+
+    public synchronized void putByAddress(String address, List<Utxo> utxos, long loadGeneration) {
+        if (loadGeneration != generation) {
+            discardedLoadCount++;
+            return;
+        }
+        byAddress.put(address, new ArrayList<Utxo>(utxos));
+        index(utxos);
+    }
+
+    public synchronized void putByHDAccount(int hdAccountId, List<Utxo> utxos, long loadGeneration) {
+        if (loadGeneration != generation) {
+            discardedLoadCount++;
+            return;
+        }
+        byHDAccount.put(hdAccountId, new ArrayList<Utxo>(utxos));
+        index(utxos);
+    }
+
+    /**
+     * The out was spent by a committed tx.
+     */
+    public synchronized void spend(byte[] prevTxHash, int prevOutSn) {
+        generation++;
+        Utxo utxo = byOutPoint.remove(new OutPoint(prevTxHash, prevOutSn));
+        if (utxo == null) {
+            return;
+        }
+        removeOutPoint(byAddress.get(utxo.outAddress), utxo);
+        if (utxo.hdAccountId > -1) {
+            removeOutPoint(byHDAccount.get(utxo.hdAccountId), utxo);
+        }
+    }
+
+    /**
+     * Outs were added to these addresses or changed.
+     */
+    public synchronized void invalidateAddresses(Collection<String> addresses) {
+        generation++;
+        for (String address : addresses) {
+            dropAddress(address);
+        }
+    }
+
+    public synchronized void invalidateHDAccounts(Collection<Integer> hdAccountIds) {
+        generation++;
+        for (Integer hdAccountId : hdAccountIds) {
+            dropHDAccount(hdAccountId);
+        }
+    }
+
+    /**
+     * Something of these txs changed, as the block they are in or their source.
+     */
+    public synchronized void invalidateTxs(Collection<byte[]> txHashes) {
+        generation++;
+        HashMap<Sha256Hash, Boolean> hashes = new HashMap<Sha256Hash, Boolean>();
+        for (byte[] txHash : txHashes) {
+            hashes.put(new Sha256Hash(txHash), Boolean.TRUE);
+        }
+        List<Utxo> touched = new ArrayList<Utxo>();
+        for (Utxo utxo : byOutPoint.values()) {
+            if (hashes.containsKey(new Sha256Hash(utxo.txHash))) {
+                touched.add(utxo);
+            }
+        }
+        for (Utxo utxo : touched) {
+            dropAddress(utxo.outAddress);
+            if (utxo.hdAccountId > -1) {
+                dropHDAccount(utxo.hdAccountId);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        invalidationCount += byAddress.size() + byHDAccount.size();
+        byAddress.clear();
+        byHDAccount.clear();
+        byOutPoint.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    public synchronized long getDiscardedLoadCount() {
+        return discardedLoadCount;
+    }
+
+    public synchronized int getCachedOutCount() {
+        return byOutPoint.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UtxoCache{addresses=" + byAddress.size() + ", hdAccounts=" + byHDAccount.size()
+                + ", outs=" + byOutPoint.size() + ", hit=" + hitCount + ", miss=" + missCount
+                + ", invalidation=" + invalidationCount + ", discardedLoad=" + discardedLoadCount + "}";
+    }
+
+    private void countLookup(List<Utxo> utxos) {
+        if (utxos == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+    }
+
+    private void index(List<Utxo> utxos) {
+        for (Utxo utxo : utxos) {
+            byOutPoint.put(utxo.outPoint(), utxo);
+        }
+    }
+
+    private void dropAddress(String address) {
+        List<Utxo> utxos = byAddress.remove(address);
+        if (utxos == null) {
+            return;
+        }
+        invalidationCount++;
+        for (Utxo utxo : utxos) {
+            // an out of a cached HD account stays indexed for that account's list
+            if (utxo.hdAccountId < 0 || !byHDAccount.containsKey(utxo.hdAccountId)) {
+                byOutPoint.remove(utxo.outPoint());
+            }
+        }
+    }
+
+    private void dropHDAccount(int hdAccountId) {
+        List<Utxo> utxos = byHDAccount.remove(hdAccountId);
+        if (utxos == null) {
+            return;
+        }
+        invalidationCount++;
+        for (Utxo utxo : utxos) {
+            if (Utils.isEmpty(utxo.outAddress) || !byAddress.containsKey(utxo.outAddress)) {
+                byOutPoint.remove(utxo.outPoint());
+            }
+        }
+    }
+
+    private static void removeOutPoint(List<Utxo> utxos, Utxo spent) {
+        if (utxos == null) {
+            return;
+        }
+        Iterator<Utxo> iterator = utxos.iterator();
+        while (iterator.hasNext()) {
+            Utxo utxo = iterator.next();
+            if (utxo.outSn == spent.outSn && Arrays.equals(utxo.txHash, spent.txHash)) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.db;
+
+import net.bither.bitherj.core.Address;
+import net.bither.bitherj.core.AddressManager;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.core.BlockChain;
+import net.bither.bitherj.core.HDAccount;
+import net.bither.bitherj.core.Tx;
+import net.bither.utils.LogUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * What the main frame shows first, kept in a small binary file next to the
+ * dbs: the addresses with their aliases and balances, the latest txs of each
+ * and the chain tip. It is written on a clean exit to a temp file that is
+ * synced and renamed over the old one, so a crash leaves either the old or
+ * the new snapshot, and read at launch through a memory mapped channel
+ * before the dbs are opened. DialogWalletSnapshot shows it while the dbs
+ * open and the wallet loads.
+ *
+ * A snapshot is only a hint. It is stale once the tx db changed after it was
+ * written, and reconcile compares it with the loaded wallet on a background
+ * thread, so nothing may rely on it once the wallet is loaded.
+ */
+public class WalletSnapshot {
+
+    public static final String FILE_NAME = "wallet.snapshot";
+    public static final int RECENT_TX_COUNT = 10;
+
+    public static final int KIND_PRIVATE_KEY = 0;
+    public static final int KIND_WATCH_ONLY = 1;
+    public static final int KIND_HDM = 2;
+    public static final int KIND_HD_ACCOUNT = 3;
+
+    private static final int MAGIC = 0x42534e50;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CRC_CHUNK = 8192;
+
+    /**
+     * One tx as the tx list shows it.
+     */
+    public static final class TxSummary {
+        private final byte[] txHash;
+        private final int txTime;
+        private final int blockNo;
+        private final long deltaAmount;
+
+        public TxSummary(byte[] txHash, int txTime, int blockNo, long deltaAmount) {
+            this.txHash = txHash;
+            this.txTime = txTime;
+            this.blockNo = blockNo;
+            this.deltaAmount = deltaAmount;
+        }
+
+        public byte[] getTxHash() {
+            return txHash;
+        }
+
+        public int getTxTime() {
+            return txTime;
+        }
+
+        public int getBlockNo() {
+            return blockNo;
+        }
+
+        public long getDeltaAmount() {
+            return deltaAmount;
+        }
+    }
+
+    /**
+     * One address, or the HD account under its first external address.
+     */
+    public static final class AddressSummary {
+        private final String address;
+        private final String alias;
+        private final int kind;
+        private final long balance;
+        private final List<TxSummary> recentTxs;
+
+        public AddressSummary(String address, String alias, int kind, long balance, List<TxSummary> recentTxs) {
+            this.address = address;
+            this.alias = alias;
+            this.kind = kind;
+            this.balance = balance;
+            this.recentTxs = recentTxs;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return null when the address has none
+         */
+        public String getAlias() {
+            return alias;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        public List<TxSummary> getRecentTxs() {
+            return recentTxs;
+        }
+    }
+
+    private static volatile WalletSnapshot launchSnapshot;
+    private static volatile boolean isReconciled = false;
+
+    private final long writeTime;
+    private final int tipBlockNo;
+    private final byte[] tipBlockHash;
+    private final List<AddressSummary> addresses;
+
+    public WalletSnapshot(long writeTime, int tipBlockNo, byte[] tipBlockHash, List<AddressSummary> addresses) {
+        this.writeTime = writeTime;
+        this.tipBlockNo = tipBlockNo;
+        this.tipBlockHash = tipBlockHash;
+        this.addresses = addresses;
+    }
+
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    public int getTipBlockNo() {
+        return tipBlockNo;
+    }
+
+    public byte[] getTipBlockHash() {
+        return tipBlockHash;
+    }
+
+    public List<AddressSummary> getAddresses() {
+        return addresses;
+    }
+
+    public long getTotalBalance() {
+        long total = 0;
+        for (AddressSummary address : addresses) {
+            total += address.getBalance();
+        }
+        return total;
+    }
+
+    /**
+     * The snapshot read at launch.
+     *
+     * @return null when there was none, it could not be read or it is stale
+     */
+    public static WalletSnapshot getLaunchSnapshot() {
+        return isReconciled ? null : launchSnapshot;
+    }
+
+    /**
+     * Reads the snapshot of the data directory, to be called before the dbs are opened.
+     */
+    public static void loadAtLaunch(String dataDirectory) {
+        long begin = System.currentTimeMillis();
+        File file = file(dataDirectory);
+        if (!file.exists()) {
+            return;
+        }
+        File txDb = dataFile(dataDirectory, TxDBHelper.DB_NAME);
+        File txDbWal = dataFile(dataDirectory, TxDBHelper.DB_NAME + "-wal");
+        try {
+            WalletSnapshot snapshot = read(file);
+            if (snapshot == null) {
+                LogUtil.printlnOut("wallet snapshot: unreadable, ignored");
+                return;
+            }
+            if (Math.max(txDb.lastModified(), txDbWal.lastModified()) > snapshot.getWriteTime()) {
+                // the app did not exit cleanly after the snapshot was written
+                LogUtil.printlnOut("wallet snapshot: older than the tx db, ignored");
+                return;
+            }
+            launchSnapshot = snapshot;
+            LogUtil.printlnOut("wallet snapshot: " + snapshot.getAddresses().size() + " addresses read in "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compares the launch snapshot with the loaded wallet on a background thread
+     * and retires it. Differences are only logged, the wallet is what counts.
+     */
+    public static void reconcileInBackground() {
+        if (launchSnapshot == null) {
+            isReconciled = true;
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WalletSnapshot snapshot = launchSnapshot;
+                    WalletSnapshot current = collect(0);
+                    List<String> differences = snapshot.diff(current);
+                    if (differences.size() == 0) {
+                        LogUtil.printlnOut("wallet snapshot: matches the wallet");
+                    } else {
+                        LogUtil.printlnOut("wallet snapshot: " + differences.size() + " differences " + differences);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    isReconciled = true;
+                    launchSnapshot = null;
+                }
+            }
+        }, "WalletSnapshotReconcile");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads the loaded wallet, to be called on exit while the dbs are still open.
+     *
+     * @return null when the wallet could not be read
+     */
+    public static WalletSnapshot collectOnExit() {
+        try {
+            return collect(RECENT_TX_COUNT);
+        } catch (RuntimeException e) {
+            // an exit must not fail on the snapshot, the next launch just goes without
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot, to be called after the dbs are closed so it is newer than they are.
+     */
+    public void save(String dataDirectory) {
+        long begin = System.currentTimeMillis();
+        try {
+            write(this, file(dataDirectory));
+            LogUtil.printlnOut("wallet snapshot: " + addresses.size() + " addresses written in "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the differences in balances, addresses and chain tip
+     */
+    public List<String> diff(WalletSnapshot other) {
+        List<String> differences = new ArrayList<String>();
+        if (tipBlockNo != other.tipBlockNo || !Arrays.equals(tipBlockHash, other.tipBlockHash)) {
+            differences.add("tip " + tipBlockNo + " -> " + other.tipBlockNo);
+        }
+        Map<String, AddressSummary> others = new HashMap<String, AddressSummary>();
+        for (AddressSummary address : other.addresses) {
+            others.put(address.getAddress(), address);
+        }
+        for (AddressSummary address : addresses) {
+            AddressSummary otherAddress = others.remove(address.getAddress());
+            if (otherAddress == null) {
+                differences.add(address.getAddress() + " gone");
+            } else if (address.getBalance() != otherAddress.getBalance()) {
+                differences.add(address.getAddress() + " balance " + address.getBalance() + " -> "
+                        + otherAddress.getBalance());
+            }
+        }
+        for (String address : others.keySet()) {
+            differences.add(address + " new");
+        }
+        return differences;
+    }
+
+    static WalletSnapshot collect(int recentTxCount) {
+        Map<String, String> aliases = AddressProvider.getInstance().getAliases();
+        List<AddressSummary> addresses = new ArrayList<AddressSummary>();
+        for (Address address : AddressManager.getInstance().getAllAddresses()) {
+            int kind = address.isHDM() ? KIND_HDM : (address.hasPrivKey() ? KIND_PRIVATE_KEY : KIND_WATCH_ONLY);
+            List<TxSummary> txs = Collections.emptyList();
+            if (recentTxCount > 0) {
+                // one keyset page of the newest txs, with the ins and outs of those only
+                txs = summarize(TxProvider.getInstance().getTxHistory(address.getAddress(), recentTxCount).nextPage(),
+                        address, recentTxCount);
+            }
+            addresses.add(new AddressSummary(address.getAddress(), aliases.get(address.getAddress()), kind,
+                    address.getBalance(), txs));
+        }
+        HDAccount hdAccount = AddressManager.getInstance().getHdAccount();
+        if (hdAccount != null) {
+            List<TxSummary> txs = Collections.emptyList();
+            if (recentTxCount > 0) {
+                txs = summarize(HDAccountProvider.getInstance().getTxHistory(recentTxCount).nextPage(), hdAccount,
+                        recentTxCount);
+            }
+            addresses.add(new AddressSummary(hdAccount.getAddress(), null, KIND_HD_ACCOUNT,
+                    hdAccount.getBalance(), txs));
+        }
+        Block tip = BlockChain.getInstance().getLastBlock();
+        return new WalletSnapshot(System.currentTimeMillis(), tip == null ? 0 : tip.getBlockNo(),
+                tip == null ? new byte[0] : tip.getBlockHash(), addresses);
+    }
+
+    private static List<TxSummary> summarize(List<Tx> txs, Address address, int limit) {
+        List<TxSummary> result = new ArrayList<TxSummary>(Math.min(limit, txs.size()));
+        for (Tx tx : txs) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(new TxSummary(tx.getTxHash(), tx.getTxTime(), tx.getBlockNo(), tx.deltaAmountFrom(address)));
+        }
+        return result;
+    }
+
+    static void write(WalletSnapshot snapshot, File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(snapshot.tipBlockNo);
+        writeBytes(out, snapshot.tipBlockHash);
+        out.writeInt(snapshot.addresses.size());
+        for (AddressSummary address : snapshot.addresses) {
+            writeString(out, address.getAddress());
+            writeString(out, address.getAlias() == null ? "" : address.getAlias());
+            out.writeByte(address.getKind());
+            out.writeLong(address.getBalance());
+            out.writeInt(address.getRecentTxs().size());
+            for (TxSummary tx : address.getRecentTxs()) {
+                writeBytes(out, tx.getTxHash());
+                out.writeInt(tx.getTxTime());
+                out.writeInt(tx.getBlockNo());
+                out.writeLong(tx.getDeltaAmount());
+            }
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            stream.write(body);
+            DataOutputStream crcOut = new DataOutputStream(stream);
+            crcOut.writeLong(crc.getValue());
+            crcOut.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            // windows does not rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("can not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @return null when the file is not a complete snapshot of this version
+     */
+    static WalletSnapshot read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int bodyLength = (int) size - 8;
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[CRC_CHUNK];
+            while (buffer.position() < bodyLength) {
+                int length = Math.min(chunk.length, bodyLength - buffer.position());
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if (buffer.getLong() != crc.getValue()) {
+                return null;
+            }
+            buffer.position(0);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long writeTime = buffer.getLong();
+            int tipBlockNo = buffer.getInt();
+            byte[] tipBlockHash = readBytes(buffer);
+            int addressCount = buffer.getInt();
+            List<AddressSummary> addresses = new ArrayList<AddressSummary>(addressCount);
+            for (int i = 0; i < addressCount; i++) {
+                String address = readString(buffer);
+                String alias = readString(buffer);
+                int kind = buffer.get();
+                long balance = buffer.getLong();
+                int txCount = buffer.getInt();
+                List<TxSummary> txs = new ArrayList<TxSummary>(txCount);
+                for (int j = 0; j < txCount; j++) {
+                    txs.add(new TxSummary(readBytes(buffer), buffer.getInt(), buffer.getInt(), buffer.getLong()));
+                }
+                addresses.add(new AddressSummary(address, alias.length() == 0 ? null : alias, kind, balance, txs));
+            }
+            return new WalletSnapshot(writeTime, tipBlockNo, tipBlockHash, addresses);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        writeBytes(out, str.getBytes("UTF-8"));
+    }
+
+    private static byte[] readBytes(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(MappedByteBuffer buffer) throws IOException {
+        return new String(readBytes(buffer), "UTF-8");
+    }
+
+    private static File file(String dataDirectory) {
+        return dataFile(dataDirectory, FILE_NAME);
+    }
+
+    private static File dataFile(String dataDirectory, String name) {
+        // the same path the db helpers use
+        return new File(dataDirectory + File.separator + name);
+    }
+}
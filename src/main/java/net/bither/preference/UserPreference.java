@@ -60,6 +60,8 @@ public class UserPreference {
 
     private static final String CHECK_PASSWORD_STRENGTH = "check_password_strength";
 
+    private static final String DB_MAINTENANCE_TIME = "db_maintenance_time_";
+
     private static UserPreference mInstance = new UserPreference();
 
     private Properties userPreferences;
@@ -91,14 +93,14 @@ public class UserPreference {
         }
     }
 
-    private int getLong(String key, int defaultValue) {
+    private long getLong(String key, long defaultValue) {
         String result = userPreferences.getProperty(key);
         if (Utils.isEmpty(result)) {
             return defaultValue;
         } else {
-            if (Utils.isInteger(result)) {
-                return Integer.valueOf(result);
-            } else {
+            try {
+                return Long.parseLong(result);
+            } catch (NumberFormatException e) {
                 return defaultValue;
             }
         }
@@ -389,4 +391,12 @@ public class UserPreference {
         setValue(CHECK_PASSWORD_STRENGTH, Boolean.toString(check));
     }
 
+    public long getDbMaintenanceTime(String job) {
+        return getLong(DB_MAINTENANCE_TIME + job, 0);
+    }
+
+    public void setDbMaintenanceTime(String job, long time) {
+        setValue(DB_MAINTENANCE_TIME + job, Long.toString(time));
+    }
+
 }
@@ -75,6 +75,7 @@ public class BitherVanitygen {
     private boolean useOpencl;
     private boolean igoreCase;
     private Process process = null;
+    private volatile JavaVanitygen javaVanitygen = null;
     private IVanitygenListener vanitygenListener;
     private boolean generatedKey = false;
     private long beginTime;
@@ -93,7 +94,16 @@ public class BitherVanitygen {
         this.vanitygenListener = vanitygenListener;
     }
 
+    /**
+     * The cpu search runs in process on the calling thread until it ends,
+     * only OpenCL still needs the oclvanitygen binary.
+     */
     public void generateAddress() {
+        if (!useOpencl) {
+            javaVanitygen = new JavaVanitygen(input, igoreCase, threadNum, ecKeyType, vanitygenListener);
+            javaVanitygen.generateAddress();
+            return;
+        }
         beginTime = System.currentTimeMillis();
         String path = "";
         if (OSUtils.isMac()) {
@@ -287,6 +297,9 @@ public class BitherVanitygen {
     }
 
     public void stop() {
+        if (javaVanitygen != null) {
+            javaVanitygen.stop();
+        }
         if (process != null) {
             process.destroy();
         }
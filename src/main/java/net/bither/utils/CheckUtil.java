@@ -30,23 +30,128 @@ import net.bither.model.Check.ICheckAction;
 import net.bither.preference.UserPreference;
 import net.bither.runnable.CheckRunnable;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CheckUtil {
+    // scrypt of an encrypted private key, N=16384 r=8, takes 128 * r * N bytes
+    private static final long SCRYPT_MEMORY = 128L * 8 * 16384;
+    // checks running together may take up to a quarter of the heap
+    private static final int SCRYPT_HEAP_SHARE = 4;
+
+    private static ExecutorService executor;
+    // one check someone is waiting for, never queued behind a batch
+    private static ExecutorService interactiveExecutor;
+    // re-encryption of a password change, never queued behind the checks of a panel
+    private static ExecutorService reEncryptExecutor;
+
     private CheckUtil() {
 
     }
 
-    public static ExecutorService runChecks(List<Check> checks, int threadCount) {
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        for (Check check : checks) {
-            executor.execute(new CheckRunnable(check));
+    /**
+     * Checks of one runChecks call, queued on the shared executor.
+     */
+    public static final class CheckRun {
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        private volatile boolean cancelled;
+
+        private CheckRun() {
+        }
+
+        /**
+         * Checks that have not started are dropped and never call their listener.
+         * A check already running finishes, scrypt can not be interrupted.
+         */
+        public void cancel() {
+            cancelled = true;
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * As many checks run at once as there are cores, unless the heap is too
+     * small for that many scrypt derivations.
+     */
+    public static int getCheckThreadCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long byMemory = Runtime.getRuntime().maxMemory() / SCRYPT_HEAP_SHARE / SCRYPT_MEMORY;
+        return (int) Math.max(1, Math.min(cores, byMemory));
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = newCheckExecutor(getCheckThreadCount(), "Check-");
         }
         return executor;
     }
 
+    /**
+     * Threads of their own for re-encrypting the keys of a password change, as
+     * many as runChecks uses. Do not shut it down.
+     */
+    public static synchronized Executor getReEncryptExecutor() {
+        if (reEncryptExecutor == null) {
+            reEncryptExecutor = newCheckExecutor(getCheckThreadCount(), "ReEncrypt-");
+        }
+        return reEncryptExecutor;
+    }
+
+    private static synchronized ExecutorService getInteractiveExecutor() {
+        if (interactiveExecutor == null) {
+            interactiveExecutor = newCheckExecutor(1, "CheckInteractive-");
+        }
+        return interactiveExecutor;
+    }
+
+    private static ExecutorService newCheckExecutor(int threadCount, final String namePrefix) {
+        return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs the checks on the shared executor. Each check reports to its
+     * listener as soon as it ends, from the executor thread.
+     */
+    public static CheckRun runChecks(List<Check> checks) {
+        CheckRun run = new CheckRun();
+        ExecutorService executor = getExecutor();
+        for (Check check : checks) {
+            run.futures.add(executor.submit(new CheckRunnable(check)));
+        }
+        return run;
+    }
+
+    /**
+     * Runs a check the user waits for, a password dialog for example, on a
+     * thread of its own, so it never waits for the checks of runChecks.
+     */
+    public static CheckRun runInteractiveCheck(Check check) {
+        CheckRun run = new CheckRun();
+        run.futures.add(getInteractiveExecutor().submit(new CheckRunnable(check)));
+        return run;
+    }
+
 
     public static Check initCheckForPrivateKey(
             final Address address, final SecureCharSequence password) {
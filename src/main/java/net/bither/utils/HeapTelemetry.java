@@ -0,0 +1,478 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.utils;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Watches the heap without ever asking for a GC. A daemon thread samples heap
+ * usage and the collectors, GC notifications are picked up as they arrive, and
+ * GC time and peak usage are charged to the phases running at that moment.
+ * Where the JVM can tell, the sampler also reads what each thread allocated
+ * since the previous sample and charges it to the phases the thread was in
+ * meanwhile. begin and end only count, they never read the heap, so they are
+ * cheap enough for the db writer thread. Wrap work in begin and end to get it
+ * measured:
+ * <pre>
+ * long token = HeapTelemetry.getInstance().begin(HeapTelemetry.Phase.TxIngest);
+ * try {
+ *     ...
+ * } finally {
+ *     HeapTelemetry.getInstance().end(HeapTelemetry.Phase.TxIngest, token);
+ * }
+ * </pre>
+ */
+public class HeapTelemetry {
+
+    public enum Phase {
+        HeaderSync("memory_phase_header_sync"),
+        TxIngest("memory_phase_tx_ingest"),
+        UIRefresh("memory_phase_ui_refresh");
+
+        private final String localeKey;
+
+        Phase(String localeKey) {
+            this.localeKey = localeKey;
+        }
+
+        public String getLocaleKey() {
+            return localeKey;
+        }
+    }
+
+    public static final long SAMPLE_INTERVAL_MILLIS = 1000;
+    public static final long LOG_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    private static HeapTelemetry heapTelemetry = new HeapTelemetry();
+
+    public static HeapTelemetry getInstance() {
+        return heapTelemetry;
+    }
+
+    /**
+     * Totals of one phase since start.
+     */
+    public static final class PhaseStats {
+        private long runCount;
+        private long runMillis;
+        private long gcCount;
+        private long gcMillis;
+        private long allocatedBytes;
+        private long peakUsedBytes;
+
+        public long getRunCount() {
+            return runCount;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Allocations are read between samples, so a thread's allocations
+         * outside the phase in the sample it ran in count too.
+         *
+         * @return allocated bytes per second of run time, -1 when the JVM can not count allocations per thread
+         */
+        public long getAllocationRate() {
+            if (!isAllocationCounted()) {
+                return -1;
+            }
+            return runMillis == 0 ? 0 : allocatedBytes * 1000 / runMillis;
+        }
+
+        public long getPeakUsedBytes() {
+            return peakUsedBytes;
+        }
+
+        private PhaseStats copy() {
+            PhaseStats stats = new PhaseStats();
+            stats.runCount = runCount;
+            stats.runMillis = runMillis;
+            stats.gcCount = gcCount;
+            stats.gcMillis = gcMillis;
+            stats.allocatedBytes = allocatedBytes;
+            stats.peakUsedBytes = peakUsedBytes;
+            return stats;
+        }
+    }
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final boolean allocationCounted = enableAllocationCount();
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    private final PhaseStats[] phaseStats = new PhaseStats[Phase.values().length];
+    // threads that ever began a phase, read by the sampler
+    private final ConcurrentHashMap<Long, ThreadPhases> threads = new ConcurrentHashMap<Long, ThreadPhases>();
+    private final ThreadLocal<ThreadPhases> threadPhases = new ThreadLocal<ThreadPhases>() {
+        @Override
+        protected ThreadPhases initialValue() {
+            ThreadPhases state = new ThreadPhases(Thread.currentThread());
+            threads.put(state.threadId, state);
+            return state;
+        }
+    };
+    // per phase, the threads in it and whether it ran since the last sample, even if it already ended
+    private final AtomicIntegerArray activeCount = new AtomicIntegerArray(Phase.values().length);
+    private final AtomicIntegerArray touched = new AtomicIntegerArray(Phase.values().length);
+    // runs ended since the last sample, folded into phaseStats by the sampler
+    private final AtomicLongArray endedRunCount = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray endedRunMillis = new AtomicLongArray(Phase.values().length);
+
+    private long lastGcCount;
+    private long lastGcMillis;
+    private long lastUsedBytes;
+    private long peakUsedBytes;
+    private long totalGcCount;
+    private long totalGcMillis;
+    private long totalHeapGrowthBytes;
+    private long startTime;
+    private long lastLogTime;
+
+    private Thread sampler;
+    private volatile boolean isStop = false;
+
+    private HeapTelemetry() {
+        for (int i = 0; i < phaseStats.length; i++) {
+            phaseStats[i] = new PhaseStats();
+        }
+    }
+
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        startTime = System.currentTimeMillis();
+        lastLogTime = startTime;
+        lastUsedBytes = memoryBean.getHeapMemoryUsage().getUsed();
+        peakUsedBytes = lastUsedBytes;
+        lastGcCount = sumGcCount();
+        lastGcMillis = sumGcMillis();
+        NotificationListener gcListener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                collectGc();
+            }
+        };
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            if (gcBean instanceof NotificationEmitter) {
+                ((NotificationEmitter) gcBean).addNotificationListener(gcListener, null, null);
+            }
+        }
+        sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isStop) {
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sample();
+                }
+            }
+        }, "HeapTelemetry");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void stop() {
+        isStop = true;
+    }
+
+    /**
+     * @return a token to hand back to end
+     */
+    public long begin(Phase phase) {
+        ThreadPhases state = threadPhases.get();
+        int ordinal = phase.ordinal();
+        // a phase nested in itself is active from the outermost begin
+        if (state.depth.getAndIncrement(ordinal) == 0) {
+            activeCount.incrementAndGet(ordinal);
+        }
+        state.touched.set(ordinal, 1);
+        touched.set(ordinal, 1);
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Must be called on the thread that called begin.
+     */
+    public void end(Phase phase, long token) {
+        ThreadPhases state = threadPhases.get();
+        int ordinal = phase.ordinal();
+        if (state.depth.decrementAndGet(ordinal) == 0) {
+            activeCount.decrementAndGet(ordinal);
+        }
+        endedRunCount.incrementAndGet(ordinal);
+        endedRunMillis.addAndGet(ordinal, System.currentTimeMillis() - token);
+    }
+
+    public static boolean isAllocationCounted() {
+        return allocationCounted;
+    }
+
+    public synchronized PhaseStats getPhaseStats(Phase phase) {
+        return phaseStats[phase.ordinal()].copy();
+    }
+
+    public synchronized long getUsedBytes() {
+        return lastUsedBytes;
+    }
+
+    public synchronized long getPeakUsedBytes() {
+        return peakUsedBytes;
+    }
+
+    public long getMaxBytes() {
+        return memoryBean.getHeapMemoryUsage().getMax();
+    }
+
+    public synchronized long getGcCount() {
+        return totalGcCount;
+    }
+
+    public synchronized long getGcMillis() {
+        return totalGcMillis;
+    }
+
+    /**
+     * @return heap growth between samples per second since start, a lower bound of
+     * the allocation rate of the whole process: what a GC frees between two samples is not seen
+     */
+    public synchronized long getHeapGrowthRate() {
+        long millis = System.currentTimeMillis() - startTime;
+        return millis <= 0 ? 0 : totalHeapGrowthBytes * 1000 / millis;
+    }
+
+    /**
+     * @return one localised line for the heap and one for each phase
+     */
+    public synchronized String[] getSummaryLines() {
+        Phase[] phases = Phase.values();
+        String[] lines = new String[phases.length + 1];
+        lines[0] = String.format(LocaliserUtils.getString("memory_telemetry_heap"),
+                formatBytes(lastUsedBytes), formatBytes(peakUsedBytes), formatBytes(getMaxBytes()),
+                totalGcCount, totalGcMillis, formatBytes(getHeapGrowthRate()));
+        for (Phase phase : phases) {
+            PhaseStats stats = phaseStats[phase.ordinal()];
+            lines[phase.ordinal() + 1] = String.format(LocaliserUtils.getString("memory_telemetry_phase"),
+                    LocaliserUtils.getString(phase.getLocaleKey()), stats.runCount, stats.gcMillis,
+                    formatBytes(stats.getAllocationRate()), formatBytes(stats.peakUsedBytes));
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("HeapTelemetry{used=").append(lastUsedBytes)
+                .append(", peak=").append(peakUsedBytes).append(", gc=").append(totalGcCount)
+                .append("/").append(totalGcMillis).append("ms, heapGrowthRate=").append(getHeapGrowthRate());
+        for (Phase phase : Phase.values()) {
+            PhaseStats stats = phaseStats[phase.ordinal()];
+            builder.append(", ").append(phase.name()).append("={runs=").append(stats.runCount)
+                    .append(", runMs=").append(stats.runMillis).append(", gc=").append(stats.gcCount)
+                    .append("/").append(stats.gcMillis).append("ms, allocated=").append(stats.allocatedBytes)
+                    .append(", peak=").append(stats.peakUsedBytes).append("}");
+        }
+        return builder.append("}").toString();
+    }
+
+    private void sample() {
+        collectGc();
+        String log = null;
+        synchronized (this) {
+            long used = memoryBean.getHeapMemoryUsage().getUsed();
+            totalHeapGrowthBytes += Math.max(0, used - lastUsedBytes);
+            lastUsedBytes = used;
+            if (used > peakUsedBytes) {
+                peakUsedBytes = used;
+            }
+            collectAllocations();
+            for (int i = 0; i < phaseStats.length; i++) {
+                PhaseStats stats = phaseStats[i];
+                stats.runCount += endedRunCount.getAndSet(i, 0);
+                stats.runMillis += endedRunMillis.getAndSet(i, 0);
+                if (isRunning(i)) {
+                    if (used > stats.peakUsedBytes) {
+                        stats.peakUsedBytes = used;
+                    }
+                    touched.set(i, 0);
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastLogTime >= LOG_INTERVAL_MILLIS) {
+                lastLogTime = now;
+                log = toString();
+            }
+        }
+        if (log != null) {
+            LogUtil.printlnOut(log);
+        }
+    }
+
+    /**
+     * Reads the collectors and charges new collections to the running phases.
+     * Runs on the notification thread and on the sampler, so it works by delta.
+     */
+    private synchronized void collectGc() {
+        long gcCount = sumGcCount();
+        long gcMillis = sumGcMillis();
+        long deltaCount = gcCount - lastGcCount;
+        long deltaMillis = gcMillis - lastGcMillis;
+        if (deltaCount <= 0) {
+            return;
+        }
+        lastGcCount = gcCount;
+        lastGcMillis = gcMillis;
+        totalGcCount += deltaCount;
+        totalGcMillis += deltaMillis;
+        MemoryUsage usage = memoryBean.getHeapMemoryUsage();
+        // usage right after the collection, growth from here on is new
+        lastUsedBytes = Math.min(lastUsedBytes, usage.getUsed());
+        for (int i = 0; i < phaseStats.length; i++) {
+            if (isRunning(i)) {
+                phaseStats[i].gcCount += deltaCount;
+                phaseStats[i].gcMillis += deltaMillis;
+            }
+        }
+    }
+
+    /**
+     * Reads what each thread allocated since the previous sample and charges it
+     * to the phases the thread was in meanwhile. Runs on the sampler only.
+     */
+    private void collectAllocations() {
+        Iterator<ThreadPhases> iterator = threads.values().iterator();
+        while (iterator.hasNext()) {
+            ThreadPhases state = iterator.next();
+            Thread thread = state.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                iterator.remove();
+                continue;
+            }
+            long allocated = getThreadAllocatedBytes(state.threadId);
+            // the first sample of a thread only takes its baseline
+            long delta = state.lastAllocatedBytes < 0 ? 0 : Math.max(0, allocated - state.lastAllocatedBytes);
+            state.lastAllocatedBytes = allocated;
+            for (int i = 0; i < phaseStats.length; i++) {
+                boolean wasTouched = state.touched.getAndSet(i, 0) == 1;
+                if (wasTouched || state.depth.get(i) > 0) {
+                    phaseStats[i].allocatedBytes += delta;
+                }
+            }
+        }
+    }
+
+    private boolean isRunning(int ordinal) {
+        return activeCount.get(ordinal) > 0 || touched.get(ordinal) == 1;
+    }
+
+    private static boolean enableAllocationCount() {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        try {
+            if (!bean.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!bean.isThreadAllocatedMemoryEnabled()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static long getThreadAllocatedBytes(long threadId) {
+        if (!allocationCounted) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Phases of one thread: how deep the thread is in each and whether it was
+     * in it since the last sample.
+     */
+    private static final class ThreadPhases {
+        private final long threadId;
+        private final WeakReference<Thread> thread;
+        private final AtomicIntegerArray depth = new AtomicIntegerArray(Phase.values().length);
+        private final AtomicIntegerArray touched = new AtomicIntegerArray(Phase.values().length);
+        // only touched by the sampler
+        private long lastAllocatedBytes = -1;
+
+        private ThreadPhases(Thread thread) {
+            this.threadId = thread.getId();
+            this.thread = new WeakReference<Thread>(thread);
+        }
+    }
+
+    private long sumGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            count += Math.max(0, gcBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private long sumGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            millis += Math.max(0, gcBean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 0) {
+            return "-";
+        }
+        return Math.round(bytes / 1e6) + " MB";
+    }
+}
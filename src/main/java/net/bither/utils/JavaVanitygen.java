@@ -0,0 +1,507 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.utils;
+
+import net.bither.BitherSetting;
+import net.bither.bitherj.utils.Base58;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Searches for a vanity address in process, on the cpu, without the vanitygen
+ * binaries. Every worker thread starts from a random key and walks BATCH_SIZE
+ * consecutive keys at once: all points of the batch move on by BATCH_SIZE * G
+ * together, so the modular inversions of one step are batched into a single
+ * one. Workers share nothing but the found flag, the search scales with the
+ * cores.
+ *
+ * A key matches when the 24 bytes after the version byte of its address,
+ * hash160 and checksum, fall in one of the ranges the prefix stands for. The
+ * same ranges give the difficulty, which vanitygen reports as well.
+ */
+public class JavaVanitygen {
+
+    private static final BigInteger P = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+    private static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final Point G = new Point(
+            new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+            new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16));
+
+    private static final int BATCH_SIZE = 256;
+    private static final Point BATCH_STEP = multiply(BigInteger.valueOf(BATCH_SIZE), G);
+
+    // hash160 and checksum, the part of an address after the version byte
+    private static final int PAYLOAD_LENGTH = 24;
+    private static final BigInteger PAYLOAD_SPACE = BigInteger.ONE.shiftLeft(PAYLOAD_LENGTH * 8);
+    private static final BigInteger BASE = BigInteger.valueOf(58);
+    // an address has at most 34 characters
+    private static final int MAX_PAYLOAD_DIGITS = 34;
+    // case-insensitive prefixes with more letters than this are out of reach anyway
+    private static final int MAX_CASE_VARIANTS = 1 << 12;
+
+    private static final long PROGRESS_INTERVAL = 1000;
+    private static final int[] POSSIBILITIES = new int[]{50, 75, 80, 90, 95, 99};
+
+    private static final class Point {
+        private final BigInteger x;
+        private final BigInteger y;
+
+        private Point(BigInteger x, BigInteger y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Payloads from low to high, both inclusive, as big endian bytes.
+     */
+    private static final class Range {
+        private final byte[] low;
+        private final byte[] high;
+
+        private Range(BigInteger low, BigInteger high) {
+            this.low = toBytes(low, PAYLOAD_LENGTH);
+            this.high = toBytes(high, PAYLOAD_LENGTH);
+        }
+    }
+
+    private final String input;
+    private final boolean ignoreCase;
+    private final int threadNum;
+    private final BitherSetting.ECKeyType ecKeyType;
+    private final BitherVanitygen.IVanitygenListener vanitygenListener;
+
+    private final AtomicBoolean found = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+    // released by a match or a stop
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Range[] ranges;
+    private Worker[] workers;
+
+    public JavaVanitygen(String input, boolean ignoreCase, int threadNum, BitherSetting.ECKeyType ecKeyType,
+                         BitherVanitygen.IVanitygenListener vanitygenListener) {
+        this.input = input;
+        this.ignoreCase = ignoreCase;
+        this.threadNum = threadNum;
+        this.ecKeyType = ecKeyType;
+        this.vanitygenListener = vanitygenListener;
+    }
+
+    /**
+     * Searches until an address is found or stop is called, reporting progress once a second.
+     */
+    public void generateAddress() {
+        long beginTime = System.currentTimeMillis();
+        List<Range> rangeList = getRanges(input, ignoreCase);
+        if (rangeList == null || rangeList.size() == 0) {
+            vanitygenListener.error(LocaliserUtils.getString("vanity_generated_failed"));
+            return;
+        }
+        ranges = rangeList.toArray(new Range[rangeList.size()]);
+        BigInteger matching = BigInteger.ZERO;
+        for (Range range : ranges) {
+            matching = matching.add(new BigInteger(1, range.high).subtract(new BigInteger(1, range.low)))
+                    .add(BigInteger.ONE);
+        }
+        BigInteger difficulty = PAYLOAD_SPACE.divide(matching);
+        vanitygenListener.onDifficulty(difficulty.toString());
+
+        int count = threadNum > 0 && threadNum <= SystemUtil.getAvailableProcessors()
+                ? threadNum : SystemUtil.getAvailableProcessors();
+        workers = new Worker[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new Worker(beginTime);
+            workers[i].setName("JavaVanitygen-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        // the chance a key matches, log(1 - p) keeps tiny chances apart from 0
+        double logMiss = Math.log1p(-1 / difficulty.doubleValue());
+        long lastTime = beginTime;
+        long lastGenerated = 0;
+        while (true) {
+            try {
+                if (done.await(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                stop();
+                break;
+            }
+            long now = System.currentTimeMillis();
+            long generated = 0;
+            for (Worker worker : workers) {
+                generated += worker.generated;
+            }
+            double speed = (generated - lastGenerated) * 1000.0 / Math.max(1, now - lastTime);
+            lastTime = now;
+            lastGenerated = generated;
+            double progress = -Math.expm1(generated * logMiss) * 100;
+            int nextPossibility = POSSIBILITIES[POSSIBILITIES.length - 1];
+            for (int possibility : POSSIBILITIES) {
+                if (possibility > progress) {
+                    nextPossibility = possibility;
+                    break;
+                }
+            }
+            double keysNeeded = Math.log1p(-nextPossibility / 100.0) / logMiss;
+            double seconds = speed > 0 ? Math.max(0, keysNeeded - generated) / speed : 0;
+            vanitygenListener.onProgress(formatSpeed(speed), generated, progress, nextPossibility,
+                    formatSeconds(seconds));
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        done.countDown();
+    }
+
+    private class Worker extends Thread {
+        private final long beginTime;
+        // only this worker writes it
+        private volatile long generated;
+
+        private final MessageDigest sha256;
+        private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        private final byte[] pubKey;
+        private final byte[] hash160 = new byte[20];
+        private final byte[] versioned = new byte[21];
+        private final byte[] payload = new byte[PAYLOAD_LENGTH];
+
+        private Worker(long beginTime) {
+            this.beginTime = beginTime;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            pubKey = new byte[ecKeyType == BitherSetting.ECKeyType.Compressed ? 33 : 65];
+        }
+
+        @Override
+        public void run() {
+            SecureRandom random = new SecureRandom();
+            while (!stopped && !found.get()) {
+                BigInteger base = new BigInteger(256, random);
+                if (base.signum() == 0 || base.compareTo(N) >= 0) {
+                    continue;
+                }
+                search(base);
+            }
+        }
+
+        /**
+         * Walks the keys from base on, until a match, a stop, or a step the batch can not take.
+         */
+        private void search(BigInteger base) {
+            Point[] points = new Point[BATCH_SIZE];
+            points[0] = multiply(base, G);
+            for (int i = 1; i < BATCH_SIZE; i++) {
+                points[i] = add(points[i - 1], G);
+                if (points[i] == null) {
+                    return;
+                }
+            }
+            BigInteger[] products = new BigInteger[BATCH_SIZE];
+            BigInteger[] inverses = new BigInteger[BATCH_SIZE];
+            long offset = 0;
+            while (!stopped && !found.get()) {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    if (matches(points[i])) {
+                        onFound(base.add(BigInteger.valueOf(offset + i)).mod(N));
+                        return;
+                    }
+                }
+                generated += BATCH_SIZE;
+                offset += BATCH_SIZE;
+
+                // Montgomery's trick: one inversion for the whole batch
+                BigInteger product = BigInteger.ONE;
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    BigInteger dx = BATCH_STEP.x.subtract(points[i].x).mod(P);
+                    if (dx.signum() == 0) {
+                        // the step would double a point, start over from a new key
+                        return;
+                    }
+                    products[i] = product;
+                    product = product.multiply(dx).mod(P);
+                }
+                BigInteger inverse = product.modInverse(P);
+                for (int i = BATCH_SIZE - 1; i >= 0; i--) {
+                    inverses[i] = inverse.multiply(products[i]).mod(P);
+                    inverse = inverse.multiply(BATCH_STEP.x.subtract(points[i].x)).mod(P);
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Point point = points[i];
+                    BigInteger lambda = BATCH_STEP.y.subtract(point.y).multiply(inverses[i]).mod(P);
+                    BigInteger x = lambda.multiply(lambda).subtract(point.x).subtract(BATCH_STEP.x).mod(P);
+                    BigInteger y = lambda.multiply(point.x.subtract(x)).subtract(point.y).mod(P);
+                    points[i] = new Point(x, y);
+                }
+            }
+        }
+
+        private boolean matches(Point point) {
+            byte[] x = toBytes(point.x, 32);
+            if (pubKey.length == 33) {
+                pubKey[0] = (byte) (point.y.testBit(0) ? 0x03 : 0x02);
+                System.arraycopy(x, 0, pubKey, 1, 32);
+            } else {
+                pubKey[0] = 0x04;
+                System.arraycopy(x, 0, pubKey, 1, 32);
+                System.arraycopy(toBytes(point.y, 32), 0, pubKey, 33, 32);
+            }
+            byte[] sha = sha256.digest(pubKey);
+            ripemd160.update(sha, 0, sha.length);
+            ripemd160.doFinal(hash160, 0);
+            System.arraycopy(hash160, 0, versioned, 1, 20);
+            byte[] checksum = doubleSha256(sha256, versioned);
+            System.arraycopy(hash160, 0, payload, 0, 20);
+            System.arraycopy(checksum, 0, payload, 20, 4);
+            return inRanges(payload);
+        }
+
+        private void onFound(BigInteger privateKey) {
+            if (!found.compareAndSet(false, true)) {
+                return;
+            }
+            byte[] address = new byte[25];
+            System.arraycopy(versioned, 0, address, 0, 21);
+            System.arraycopy(payload, 20, address, 21, 4);
+
+            boolean compressed = pubKey.length == 33;
+            byte[] wif = new byte[compressed ? 38 : 37];
+            wif[0] = (byte) 0x80;
+            System.arraycopy(toBytes(privateKey, 32), 0, wif, 1, 32);
+            if (compressed) {
+                wif[33] = 0x01;
+            }
+            byte[] body = new byte[wif.length - 4];
+            System.arraycopy(wif, 0, body, 0, body.length);
+            System.arraycopy(doubleSha256(sha256, body), 0, wif, body.length, 4);
+
+            vanitygenListener.getAddress(Base58.encode(address));
+            vanitygenListener.getPrivateKey(Base58.encode(wif), System.currentTimeMillis() - beginTime);
+            done.countDown();
+        }
+    }
+
+    private boolean inRanges(byte[] payload) {
+        int low = 0;
+        int high = ranges.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Range range = ranges[mid];
+            if (compare(payload, range.low) < 0) {
+                high = mid - 1;
+            } else if (compare(payload, range.high) > 0) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The payloads whose addresses start with input, sorted, or null when
+     * input is not a version 0 address prefix.
+     */
+    private static List<Range> getRanges(String input, boolean ignoreCase) {
+        String alphabet = new String(Base58.ALPHABET);
+        if (input.length() == 0 || input.charAt(0) != '1') {
+            return null;
+        }
+        for (int i = 0; i < input.length(); i++) {
+            if (alphabet.indexOf(input.charAt(i)) < 0) {
+                return null;
+            }
+        }
+        List<String> prefixes = new ArrayList<String>();
+        prefixes.add(input.substring(1));
+        if (ignoreCase) {
+            for (int i = 1; i < input.length(); i++) {
+                char lower = Character.toLowerCase(input.charAt(i));
+                char upper = Character.toUpperCase(input.charAt(i));
+                if (lower == upper || alphabet.indexOf(lower) < 0 || alphabet.indexOf(upper) < 0) {
+                    continue;
+                }
+                if (prefixes.size() * 2 > MAX_CASE_VARIANTS) {
+                    return null;
+                }
+                List<String> variants = new ArrayList<String>(prefixes.size() * 2);
+                for (String prefix : prefixes) {
+                    char[] chars = prefix.toCharArray();
+                    chars[i - 1] = lower;
+                    variants.add(new String(chars));
+                    chars[i - 1] = upper;
+                    variants.add(new String(chars));
+                }
+                prefixes = variants;
+            }
+        }
+        List<Range> ranges = new ArrayList<Range>();
+        for (String prefix : prefixes) {
+            addRanges(ranges, prefix, alphabet);
+        }
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range r1, Range r2) {
+                return JavaVanitygen.compare(r1.low, r2.low);
+            }
+        });
+        return ranges;
+    }
+
+    /**
+     * Each further leading 1 stands for a zero byte in front of the payload,
+     * the rest for the base58 digits the payload starts with, whatever its length.
+     */
+    private static void addRanges(List<Range> ranges, String prefix, String alphabet) {
+        int zeros = 0;
+        while (zeros < prefix.length() && prefix.charAt(zeros) == '1') {
+            zeros++;
+        }
+        if (zeros >= PAYLOAD_LENGTH) {
+            return;
+        }
+        BigInteger min = BigInteger.ONE.shiftLeft((PAYLOAD_LENGTH - zeros - 1) * 8);
+        BigInteger max = BigInteger.ONE.shiftLeft((PAYLOAD_LENGTH - zeros) * 8).subtract(BigInteger.ONE);
+        String digits = prefix.substring(zeros);
+        if (digits.length() == 0) {
+            ranges.add(new Range(min, max));
+            return;
+        }
+        BigInteger value = BigInteger.ZERO;
+        for (int i = 0; i < digits.length(); i++) {
+            value = value.multiply(BASE).add(BigInteger.valueOf(alphabet.indexOf(digits.charAt(i))));
+        }
+        for (int length = digits.length(); length <= MAX_PAYLOAD_DIGITS; length++) {
+            BigInteger scale = BASE.pow(length - digits.length());
+            BigInteger low = value.multiply(scale).max(min);
+            BigInteger high = value.add(BigInteger.ONE).multiply(scale).subtract(BigInteger.ONE).min(max);
+            if (low.compareTo(high) <= 0) {
+                ranges.add(new Range(low, high));
+            }
+        }
+    }
+
+    private static Point add(Point a, Point b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        BigInteger lambda;
+        if (a.x.equals(b.x)) {
+            if (!a.y.equals(b.y) || a.y.signum() == 0) {
+                return null;
+            }
+            BigInteger xx = a.x.multiply(a.x).mod(P);
+            lambda = xx.multiply(BigInteger.valueOf(3)).multiply(a.y.shiftLeft(1).modInverse(P)).mod(P);
+        } else {
+            lambda = b.y.subtract(a.y).multiply(b.x.subtract(a.x).modInverse(P)).mod(P);
+        }
+        BigInteger x = lambda.multiply(lambda).subtract(a.x).subtract(b.x).mod(P);
+        BigInteger y = lambda.multiply(a.x.subtract(x)).subtract(a.y).mod(P);
+        return new Point(x, y);
+    }
+
+    private static Point multiply(BigInteger k, Point point) {
+        Point result = null;
+        for (int i = k.bitLength() - 1; i >= 0; i--) {
+            result = add(result, result);
+            if (k.testBit(i)) {
+                result = add(result, point);
+            }
+        }
+        return result;
+    }
+
+    private static byte[] doubleSha256(MessageDigest sha256, byte[] data) {
+        return sha256.digest(sha256.digest(data));
+    }
+
+    private static byte[] toBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[length];
+        int copy = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - copy, result, length - copy, copy);
+        return result;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private static String formatSpeed(double speed) {
+        String[] units = new String[]{"", "K", "M", "G"};
+        int i = 0;
+        while (speed >= 1000 && i < units.length - 1) {
+            i++;
+            speed /= 1000;
+        }
+        return String.format("%.2f %skey/s", speed, units[i]);
+    }
+
+    private static String formatSeconds(double seconds) {
+        if (seconds < 60) {
+            return String.format("%.0fs", seconds);
+        }
+        if (seconds < 3600) {
+            return String.format("%.1fmin", seconds / 60);
+        }
+        if (seconds < 86400) {
+            return String.format("%.1fh", seconds / 3600);
+        }
+        if (seconds < 86400 * 365) {
+            return String.format("%.1fd", seconds / 86400);
+        }
+        return String.format("%.1fy", seconds / (86400 * 365));
+    }
+}
@@ -16,9 +16,14 @@
 package net.bither.viewsystem.action;
 
 
+import net.bither.ApplicationDataDirectoryLocator;
 import net.bither.ApplicationInstanceManager;
 import net.bither.Bither;
 import net.bither.bitherj.core.PeerManager;
+import net.bither.db.DbMaintenance;
+import net.bither.db.PeerProvider;
+import net.bither.db.SqlStats;
+import net.bither.db.WalletSnapshot;
 import net.bither.utils.LocaliserUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.io.File;
 
 /**
  * Exit the application.
@@ -33,6 +39,8 @@ import java.awt.event.ActionEvent;
 public class ExitAction extends AbstractExitAction {
     private static final Logger log = LoggerFactory.getLogger(ExitAction.class);
 
+    private static final String SQL_STATS_FILE_NAME = "sql_stats.txt";
+
     /**
      * Creates a new {@link ExitAction}.
      */
@@ -71,7 +79,16 @@ public class ExitAction extends AbstractExitAction {
         if (Bither.getMainFrame() != null) {
             Bither.getMainFrame().dispose();
         }
+        DbMaintenance.getInstance().stop();
+        PeerProvider.getInstance().flush();
+        WalletSnapshot snapshot = WalletSnapshot.collectOnExit();
         ApplicationInstanceManager.txDBHelper.close();
+        ApplicationInstanceManager.addressDBHelper.close();
+        if (snapshot != null) {
+            snapshot.save(new ApplicationDataDirectoryLocator().getApplicationDataDirectory());
+        }
+        SqlStats.getInstance().dump(new File(new ApplicationDataDirectoryLocator().getApplicationDataDirectory(),
+                SQL_STATS_FILE_NAME));
 
 
         System.exit(0);
@@ -0,0 +1,63 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.viewsystem.dialogs;
+
+import net.bither.db.TxDBHelper;
+import net.bither.utils.LocaliserUtils;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Shown while the database is upgraded at startup, before the main frame exists,
+ * so it can not be a BitherDialog.
+ */
+public class DialogDbUpgrade extends JWindow implements TxDBHelper.UpgradeListener {
+
+    private static final int PROGRESS_MAX = 1000;
+
+    private JLabel labelProgress;
+    private JProgressBar progressBar;
+
+    public DialogDbUpgrade() {
+        JPanel contentPane = new JPanel(new BorderLayout(0, 10));
+        contentPane.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        labelProgress = new JLabel(String.format(LocaliserUtils.getString("upgrade_db_progress"), 0.0));
+        progressBar = new JProgressBar(0, PROGRESS_MAX);
+        contentPane.add(labelProgress, BorderLayout.NORTH);
+        contentPane.add(progressBar, BorderLayout.CENTER);
+        setContentPane(contentPane);
+        setMinimumSize(new Dimension(400, 80));
+        pack();
+        setLocationRelativeTo(null);
+    }
+
+    @Override
+    public void onProgress(long done, long total) {
+        final double rate = total > 0 ? Math.min(1, (double) done / total) : 1;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                progressBar.setValue((int) (rate * PROGRESS_MAX));
+                labelProgress.setText(String.format(LocaliserUtils.getString("upgrade_db_progress"), rate * 100));
+            }
+        });
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ *
+ *  Copyright 2014 http://Bither.net
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package net.bither.viewsystem.dialogs;
+
+import net.bither.db.WalletSnapshot;
+import net.bither.utils.DateUtils;
+import net.bither.utils.LocaliserUtils;
+import net.bither.utils.UnitUtilWrapper;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The balances and latest txs of the wallet snapshot, shown from launch until
+ * the main frame exists, so it can not be a BitherDialog.
+ */
+public class DialogWalletSnapshot extends JWindow {
+
+    private static final int ROW_COUNT = 6;
+
+    public DialogWalletSnapshot(WalletSnapshot snapshot) {
+        JPanel contentPane = new JPanel(new BorderLayout(0, 10));
+        contentPane.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JPanel panelHeader = new JPanel(new BorderLayout());
+        panelHeader.add(new JLabel(LocaliserUtils.getString("total_btc_prefix") + " "
+                + UnitUtilWrapper.formatValue(snapshot.getTotalBalance())), BorderLayout.WEST);
+        panelHeader.add(new JLabel(String.format(LocaliserUtils.getString("wallet_snapshot_tip"),
+                snapshot.getTipBlockNo())), BorderLayout.EAST);
+        contentPane.add(panelHeader, BorderLayout.NORTH);
+
+        JPanel panelTables = new JPanel(new GridLayout(2, 1, 0, 10));
+        panelTables.add(newTable(addressRows(snapshot), new String[]{LocaliserUtils.getString("address"),
+                LocaliserUtils.getString("address_balance")}));
+        panelTables.add(newTable(txRows(snapshot), new String[]{LocaliserUtils.getString("walletData.dateText"),
+                LocaliserUtils.getString("address"), LocaliserUtils.getString("sendBitcoinPanel.amountLabel")}));
+        contentPane.add(panelTables, BorderLayout.CENTER);
+
+        JPanel panelLoading = new JPanel(new BorderLayout(0, 5));
+        panelLoading.add(new JLabel(LocaliserUtils.getString("wallet_snapshot_loading")), BorderLayout.NORTH);
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        panelLoading.add(progressBar, BorderLayout.CENTER);
+        contentPane.add(panelLoading, BorderLayout.SOUTH);
+
+        setContentPane(contentPane);
+        setMinimumSize(new Dimension(560, 360));
+        pack();
+        setLocationRelativeTo(null);
+    }
+
+    private static JScrollPane newTable(Object[][] rows, String[] columns) {
+        JTable table = new JTable(new DefaultTableModel(rows, columns) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        });
+        table.setRowSelectionAllowed(false);
+        table.setFocusable(false);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(520, table.getRowHeight() * (ROW_COUNT + 1)));
+        return scrollPane;
+    }
+
+    private static Object[][] addressRows(WalletSnapshot snapshot) {
+        List<WalletSnapshot.AddressSummary> addresses = snapshot.getAddresses();
+        Object[][] rows = new Object[addresses.size()][];
+        for (int i = 0; i < addresses.size(); i++) {
+            WalletSnapshot.AddressSummary address = addresses.get(i);
+            rows[i] = new Object[]{nameOf(address), UnitUtilWrapper.formatValue(address.getBalance())};
+        }
+        return rows;
+    }
+
+    /**
+     * @return the latest txs of the whole wallet, the newest first
+     */
+    private static Object[][] txRows(WalletSnapshot snapshot) {
+        List<TxRow> txs = new ArrayList<TxRow>();
+        for (WalletSnapshot.AddressSummary address : snapshot.getAddresses()) {
+            for (WalletSnapshot.TxSummary tx : address.getRecentTxs()) {
+                txs.add(new TxRow(tx, nameOf(address)));
+            }
+        }
+        Collections.sort(txs, new Comparator<TxRow>() {
+            @Override
+            public int compare(TxRow lhs, TxRow rhs) {
+                int l = lhs.tx.getTxTime();
+                int r = rhs.tx.getTxTime();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        int count = Math.min(txs.size(), WalletSnapshot.RECENT_TX_COUNT);
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            TxRow row = txs.get(i);
+            rows[i] = new Object[]{DateUtils.getDateTimeString(new Date(row.tx.getTxTime() * 1000L)), row.name,
+                    UnitUtilWrapper.formatValue(row.tx.getDeltaAmount())};
+        }
+        return rows;
+    }
+
+    private static String nameOf(WalletSnapshot.AddressSummary address) {
+        return address.getAlias() == null ? address.getAddress() : address.getAlias();
+    }
+
+    private static final class TxRow {
+        private final WalletSnapshot.TxSummary tx;
+        private final String name;
+
+        private TxRow(WalletSnapshot.TxSummary tx, String name) {
+            this.tx = tx;
+            this.name = name;
+        }
+    }
+}
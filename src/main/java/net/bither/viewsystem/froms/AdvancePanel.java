@@ -34,6 +34,8 @@ import net.bither.languages.MessageKey;
 import net.bither.preference.UserPreference;
 import net.bither.utils.HDMKeychainRecoveryUtil;
 import net.bither.utils.HDMResetServerPasswordUtil;
+import net.bither.utils.HeapTelemetry;
+import net.bither.utils.HtmlUtils;
 import net.bither.utils.LocaliserUtils;
 import net.bither.utils.PeerUtil;
 import net.bither.viewsystem.base.Buttons;
@@ -47,6 +49,8 @@ import net.bither.viewsystem.listener.IDialogPasswordListener;
 import net.miginfocom.swing.MigLayout;
 
 import javax.swing.*;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
@@ -75,7 +79,7 @@ public class AdvancePanel extends WizardPanel {
         panel.setLayout(new MigLayout(
                 Panels.migXYLayout(),
                 "[][][]", // Column constraints
-                "[][][][][][]" // Row constraints
+                "[][][][][][][]" // Row constraints
         ));
         rbLow = getRbLow();
         rbNormal = getRbNormal();
@@ -166,6 +170,30 @@ public class AdvancePanel extends WizardPanel {
             });
             panel.add(btnRestHDMPassword, "push,align left");
         }
+        final JLabel labelMemory = Labels.newNoteLabel(HeapTelemetry.getInstance().getSummaryLines());
+        panel.add(labelMemory, "newline,span,push,align left");
+        final Timer memoryTimer = new Timer((int) HeapTelemetry.SAMPLE_INTERVAL_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                labelMemory.setText(HtmlUtils.localiseWithLineBreaks(HeapTelemetry.getInstance().getSummaryLines()));
+            }
+        });
+        // refresh only while the panel is on screen
+        labelMemory.addAncestorListener(new AncestorListener() {
+            @Override
+            public void ancestorAdded(AncestorEvent event) {
+                memoryTimer.start();
+            }
+
+            @Override
+            public void ancestorRemoved(AncestorEvent event) {
+                memoryTimer.stop();
+            }
+
+            @Override
+            public void ancestorMoved(AncestorEvent event) {
+            }
+        });
 
     }
 
@@ -24,6 +24,7 @@ import net.bither.bitherj.crypto.PasswordSeed;
 import net.bither.bitherj.crypto.SecureCharSequence;
 import net.bither.bitherj.runnable.EditPasswordThread;
 import net.bither.bitherj.utils.Utils;
+import net.bither.db.AddressProvider;
 import net.bither.fonts.AwesomeIcon;
 import net.bither.languages.MessageKey;
 import net.bither.preference.UserPreference;
@@ -349,6 +350,17 @@ public class ChangePasswordPanel extends WizardPanel {
 
         private void changePassword(SecureCharSequence currentCharSequence, SecureCharSequence newSequence) {
             spinner.setVisible(true);
+            AddressProvider.getInstance().setChangePasswordListener(new AddressProvider.ChangePasswordListener() {
+                @Override
+                public void onReEncrypted(final int done, final int total) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            spinner.setText(String.format(LocaliserUtils.getString("edit_password_progress"), done, total));
+                        }
+                    });
+                }
+            });
             EditPasswordThread editPasswordThread = new EditPasswordThread(currentCharSequence, newSequence, new EditPasswordThread.EditPasswordListener() {
                 @Override
                 public void onSuccess() {
@@ -356,7 +368,9 @@ public class ChangePasswordPanel extends WizardPanel {
                     SwingUtilities.invokeLater(new Runnable() {
                         @Override
                         public void run() {
+                            AddressProvider.getInstance().setChangePasswordListener(null);
                             spinner.setVisible(false);
+                            spinner.setText("");
                             closePanel();
                             new MessageDialog(LocaliserUtils.getString("edit_password_success")).showMsg();
 
@@ -371,7 +385,9 @@ public class ChangePasswordPanel extends WizardPanel {
                     SwingUtilities.invokeLater(new Runnable() {
                         @Override
                         public void run() {
+                            AddressProvider.getInstance().setChangePasswordListener(null);
                             spinner.setVisible(false);
+                            spinner.setText("");
                             new MessageDialog(LocaliserUtils.getString("edit_password_fail")).showMsg();
 
                         }
@@ -50,7 +50,6 @@ import java.util.List;
 public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPasswordListener {
 
 
-    private static final int PrivateKeyCheckThreadCount = 1;
     private static final int ListExpandAnimDuration = 500;
 
 
@@ -67,6 +66,11 @@ public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPassword
     private ArrayList<CheckPoint> checkPoints = new ArrayList<CheckPoint>();
     private CheckPrivateKeyTableModel checkPrivateKeyTableModel;
 
+    private CheckUtil.CheckRun checkRun;
+    // bumped by every check, results of a cancelled one are dropped
+    private int checkGeneration;
+    private ArrayList<SecureCharSequence> checkPasswords = new ArrayList<SecureCharSequence>();
+
 
     public CheckPrivateKeyPanel() {
         super(MessageKey.CHECK_PRIVATE_KEY, AwesomeIcon.SHIELD);
@@ -134,21 +138,42 @@ public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPassword
 
     }
 
-    private void check(final List<Check> checks, final int threadCount) {
+    private void check(final List<Check> checks) {
         checkCount = checks.size();
         checkFinishedCount = 0;
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                CheckUtil.runChecks(checks, threadCount);
-            }
-        });
+        checkRun = CheckUtil.runChecks(checks);
 //        checkHeaderView.setTotalCheckCount(checkCount);
 //        checkHeaderView.setPassedCheckCount(0);
 
     }
 
+    private void cancelCheck() {
+        if (checkRun != null) {
+            checkRun.cancel();
+            checkRun = null;
+        }
+        checkGeneration++;
+        // checks that never ran still hold a copy of the password
+        for (SecureCharSequence checkPassword : checkPasswords) {
+            checkPassword.wipe();
+        }
+        checkPasswords.clear();
+    }
+
+    @Override
+    public void closePanel() {
+        cancelCheck();
+        super.closePanel();
+    }
+
+    private SecureCharSequence copyPassword(SecureCharSequence password) {
+        SecureCharSequence copy = new SecureCharSequence(password);
+        checkPasswords.add(copy);
+        return copy;
+    }
+
     public void beginCheck(SecureCharSequence password) {
+        cancelCheck();
         for (AddressCheck addressCheck : addressCheckList) {
             addressCheck.setCheckStatus(AddressCheck.CheckStatus.Prepare);
         }
@@ -163,21 +188,21 @@ public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPassword
                 case Address:
                     point = new CheckPoint(addressCheck);
                     checkPoints.add(point);
-                    checks.add(CheckUtil.initCheckForPrivateKey(addressCheck.getAddress(), new SecureCharSequence(password))
+                    checks.add(CheckUtil.initCheckForPrivateKey(addressCheck.getAddress(), copyPassword(password))
                             .setCheckListener(point));
                     break;
                 case HDMKeyChain:
                     point = new CheckPoint(addressCheck);
                     checkPoints.add(point);
                     checks.add(CheckUtil.initCheckForHDMKeychain(AddressManager.getInstance()
-                            .getHdmKeychain(), new SecureCharSequence(password)).setCheckListener(point));
+                            .getHdmKeychain(), copyPassword(password)).setCheckListener(point));
 
                     break;
                 case HDAccount:
                     point = new CheckPoint(addressCheck);
                     checkPoints.add(point);
                     checks.add(CheckUtil.initCheckForHDAccount(AddressManager.getInstance()
-                            .getHdAccount(), new SecureCharSequence(password)).setCheckListener(point));
+                            .getHdAccount(), copyPassword(password)).setCheckListener(point));
 
                     break;
             }
@@ -189,7 +214,7 @@ public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPassword
         password.wipe();
         checkPrivateKeyTableModel.fireTableDataChanged();
 
-        check(checks, PrivateKeyCheckThreadCount);
+        check(checks);
 
     }
 
@@ -206,21 +231,43 @@ public class CheckPrivateKeyPanel extends WizardPanel implements IDialogPassword
         private boolean checking;
         private boolean result;
         private AddressCheck addressCheck;
+        private int generation;
 
         public CheckPoint(AddressCheck addressCheck) {
             waiting = true;
             this.addressCheck = addressCheck;
+            this.generation = checkGeneration;
         }
 
+        // checks end on the check executor, the table is updated on the event thread
         @Override
         public void onCheckBegin(Check check) {
-            checking = true;
-            waiting = false;
-            checkPrivateKeyTableModel.fireTableDataChanged();
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != checkGeneration) {
+                        return;
+                    }
+                    checking = true;
+                    waiting = false;
+                    checkPrivateKeyTableModel.fireTableDataChanged();
+                }
+            });
         }
 
         @Override
-        public void onCheckEnd(Check check, boolean success) {
+        public void onCheckEnd(Check check, final boolean success) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == checkGeneration) {
+                        showResult(success);
+                    }
+                }
+            });
+        }
+
+        private void showResult(boolean success) {
             checking = false;
             result = success;
             checkFinishedCount++;
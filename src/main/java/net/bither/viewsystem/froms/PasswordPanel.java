@@ -47,8 +47,6 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -69,7 +67,6 @@ public class PasswordPanel extends WizardPanel {
     private boolean checkPre = true;
 
 
-    private ExecutorService executor;
     private boolean etPasswordConfirmIsVisible = false;
     private JProgressBar pb;
     private JLabel labStrength;
@@ -370,9 +367,7 @@ public class PasswordPanel extends WizardPanel {
 
     private void confirmPassword() {
         if ((passwordSeed != null && checkPre) || checkPasswordListener != null) {
-            ArrayList<Check> checks = new ArrayList<Check>();
-            checks.add(passwordCheck);
-            executor = CheckUtil.runChecks(checks, 1);
+            CheckUtil.runInteractiveCheck(passwordCheck);
         } else {
             passwordEntered = true;
             closePanel();
@@ -455,10 +450,6 @@ public class PasswordPanel extends WizardPanel {
 
         @Override
         public void onCheckEnd(Check check, boolean success) {
-            if (executor != null) {
-                executor.shutdown();
-                executor = null;
-            }
             if (success) {
                 passwordEntered = true;
                 closePanel();
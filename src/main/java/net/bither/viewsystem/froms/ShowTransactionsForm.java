@@ -25,11 +25,15 @@ import net.bither.bitherj.core.AddressManager;
 import net.bither.bitherj.core.HDAccount;
 import net.bither.bitherj.core.Tx;
 import net.bither.bitherj.utils.Utils;
+import net.bither.db.HDAccountProvider;
+import net.bither.db.TxHistoryCursor;
+import net.bither.db.TxProvider;
 import net.bither.implbitherj.BlockNotificationCenter;
 import net.bither.implbitherj.TxNotificationCenter;
 import net.bither.languages.MessageKey;
 import net.bither.model.TxTableModel;
 import net.bither.utils.DateUtils;
+import net.bither.utils.HeapTelemetry;
 import net.bither.utils.LocaliserUtils;
 import net.bither.utils.ViewUtil;
 import net.bither.viewsystem.action.ShowTransactionDetailsAction;
@@ -45,25 +49,23 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
-import javax.swing.table.TableModel;
-import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
-import java.math.BigDecimal;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.DecimalFormat;
-import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
 public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxListener, BlockNotificationCenter.IBlockListener {
 
+    // rows left below the viewport when the next page starts loading
+    private static final int PAGE_LOAD_THRESHOLD = 10;
+
     private JTable table;
     private TxTableModel txTableModel;
-    private TableRowSorter<TableModel> rowSorter;
 
     private ListSelectionModel listSelectionModel;
     private int selectedRow = -1;
@@ -77,6 +79,9 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
     private JPanel panelMain;
     private List<Tx> txList = new ArrayList<Tx>();
     private JButton btnAddress;
+    // only touched on the event dispatch thread
+    private TxHistoryCursor txHistoryCursor;
+    private boolean isLoadingPage = false;
 
     public ShowTransactionsForm() {
         TxNotificationCenter.addTxListener(ShowTransactionsForm.this);
@@ -88,6 +93,8 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
     }
 
     private void refreshTx() {
+        // keep as many txs as are shown, so a refresh does not cut the scrolled list
+        final int shownCount = txList.size();
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -103,11 +110,26 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
                         }
                     });
 
-                    final List<Tx> actionTxList = Bither.getActionAddress().getTxs();
+                    final TxHistoryCursor cursor;
+                    if (Bither.getActionAddress() instanceof HDAccount) {
+                        cursor = HDAccountProvider.getInstance().getTxHistory();
+                    } else {
+                        cursor = TxProvider.getInstance().getTxHistory(Bither.getActionAddress().getAddress());
+                    }
+                    final List<Tx> actionTxList = new ArrayList<Tx>();
+                    long token = HeapTelemetry.getInstance().begin(HeapTelemetry.Phase.UIRefresh);
+                    try {
+                        do {
+                            actionTxList.addAll(cursor.nextPage());
+                        } while (cursor.hasNext() && actionTxList.size() < shownCount);
+                    } finally {
+                        HeapTelemetry.getInstance().end(HeapTelemetry.Phase.UIRefresh, token);
+                    }
                     SwingUtilities.invokeLater(new Runnable() {
                         @Override
                         public void run() {
-
+                            txHistoryCursor = cursor;
+                            isLoadingPage = false;
                             txList.clear();
                             txList.addAll(actionTxList);
                             txTableModel.fireTableDataChanged();
@@ -120,6 +142,34 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
         }).start();
     }
 
+    private void loadNextPage() {
+        final TxHistoryCursor cursor = txHistoryCursor;
+        if (cursor == null || isLoadingPage || !cursor.hasNext()) {
+            return;
+        }
+        isLoadingPage = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<Tx> pageTxList = cursor.nextPage();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        // a refresh replaced the cursor while this page was loading
+                        if (cursor != txHistoryCursor) {
+                            return;
+                        }
+                        isLoadingPage = false;
+                        if (pageTxList.size() > 0) {
+                            txList.addAll(pageTxList);
+                            txTableModel.fireTableDataChanged();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
     private void initUI() {
 
         showTransactionHeaderForm = new ShowTransactionHeaderForm();
@@ -208,24 +258,22 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
         tableColumn.setPreferredWidth(amountBTCWidth);
         tableColumn.setMinWidth(amountBTCWidth);
 
-        // Row sorter.
-        rowSorter = new TableRowSorter<TableModel>(table.getModel());
-        table.setRowSorter(rowSorter);
-
-        // Sort by date descending.
-        List<TableRowSorter.SortKey> sortKeys = new ArrayList<TableRowSorter.SortKey>();
-        sortKeys.add(new TableRowSorter.SortKey(1, SortOrder.DESCENDING));
-        rowSorter.setSortKeys(sortKeys);
-
-
-        rowSorter.setComparator(1, dateComparator);
-        rowSorter.setComparator(2, comparatorNumber);
-
+        // Rows keep the order of the history cursor, newest first. A row sorter would
+        // only sort the pages loaded so far, so the columns are not sortable.
 
         scrollPane = new JScrollPane(table, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 
         scrollPaneSetup();
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                BoundedRangeModel model = scrollPane.getVerticalScrollBar().getModel();
+                if (model.getValue() + model.getExtent() >= model.getMaximum() - PAGE_LOAD_THRESHOLD * table.getRowHeight()) {
+                    loadNextPage();
+                }
+            }
+        });
 
         showTransactionDetailsAction.setEnabled(table.getSelectedRow() > -1);
 
@@ -360,7 +408,7 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
 
     public Tx getSelectedRowData() {
         int row = table.getSelectedRow();
-        return txTableModel.getRow(rowSorter.convertRowIndexToModel(row));
+        return txTableModel.getRow(row);
     }
 
     public JTable getTable() {
@@ -451,73 +499,4 @@ public class ShowTransactionsForm implements Viewable, TxNotificationCenter.ITxL
         }
     }
 
-    Comparator<Date> dateComparator = new Comparator<Date>() {
-        @Override
-        public int compare(Date o1, Date o2) {
-            if (o1 == null) {
-                if (o2 == null) {
-                    return 0;
-                } else {
-                    return 1;
-                }
-            } else {
-                if (o2 == null) {
-                    return -1;
-                }
-            }
-            long n1 = o1.getTime();
-            long n2 = o2.getTime();
-            if (n1 == 0) {
-                // Object 1 has missing date.
-                return 1;
-            }
-            if (n2 == 0) {
-                // Object 2 has missing date.
-                return -1;
-            }
-            if (n1 < n2) {
-                return -1;
-            } else if (n1 > n2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-
-    Comparator<String> comparatorNumber = new Comparator<String>() {
-        @Override
-        public int compare(String o1, String o2) {
-            try {
-                if (o1 == null) {
-                    if (o2 == null) {
-                        return 0;
-                    } else {
-                        return 1;
-                    }
-                } else {
-                    if (o2 == null) {
-                        return -1;
-                    }
-                }
-                DecimalFormat formatter = (DecimalFormat) DecimalFormat.getInstance(LocaliserUtils.getLocale());
-                formatter.setParseBigDecimal(true);
-
-                // Convert spaces to non breakable space.
-                o1 = o1.replaceAll(" ", "\u00A0");
-                o2 = o2.replaceAll(" ", "\u00A0");
-
-                BigDecimal parsedO1 = (BigDecimal) formatter.parse(o1);
-                BigDecimal parsedO2 = (BigDecimal) formatter.parse(o2);
-                return parsedO1.compareTo(parsedO2);
-            } catch (NumberFormatException nfe) {
-                return o1.compareTo(o2);
-            } catch (ParseException e) {
-                return o1.compareTo(o2);
-            }
-        }
-    };
-
-
 }
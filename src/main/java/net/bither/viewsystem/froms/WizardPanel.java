@@ -23,7 +23,6 @@ import net.bither.fonts.AwesomeDecorator;
 import net.bither.fonts.AwesomeIcon;
 import net.bither.languages.MessageKey;
 import net.bither.utils.StringUtil;
-import net.bither.utils.SystemUtil;
 import net.bither.viewsystem.base.Buttons;
 import net.bither.viewsystem.base.Labels;
 import net.bither.viewsystem.base.Panels;
@@ -109,7 +108,6 @@ public abstract class WizardPanel {
         } else {
             Panels.hideLightBoxIfPresent();
         }
-        SystemUtil.callSystemGC();
     }
 
     public void setOkAction(Action action) {